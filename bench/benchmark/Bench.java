@@ -0,0 +1,127 @@
+package benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Harness minimo per i benchmark: esegue alcune iterazioni di riscaldamento e poi le iterazioni misurate,
+ * riportando throughput, tempo per operazione, byte allocati per operazione e attività del garbage collector
+ * (l'equivalente del profiler gc di JMH).
+ * 
+ * L'allocazione è letta da {@link com.sun.management.ThreadMXBean} sommando tutti i thread vivi,
+ * per cui comprende il lavoro svolto dai thread di supporto (dispatcher, lettura della socket, ...).
+ *
+ */
+final class Bench {
+	
+	private static final com.sun.management.ThreadMXBean THREADS = 
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static final List<GarbageCollectorMXBean> COLLECTORS = ManagementFactory.getGarbageCollectorMXBeans();
+	
+	private final int warmups;
+	private final int iterations;
+	
+	/**
+	 * 
+	 * @param warmups : numero di iterazioni di riscaldamento
+	 * @param iterations : numero di iterazioni misurate
+	 */
+	Bench(final int warmups, final int iterations) {
+		this.warmups = warmups;
+		this.iterations = iterations;
+		THREADS.setThreadAllocatedMemoryEnabled(true);
+	}
+	
+	/**
+	 * 
+	 * Corpo di un benchmark.
+	 *
+	 */
+	interface Body {
+		
+		/**
+		 * Esegue il numero di operazioni dato e attende che siano completate.
+		 * @param operations : numero di operazioni
+		 * @throws Exception se il benchmark fallisce
+		 */
+		void run(long operations) throws Exception;
+	}
+	
+	/**
+	 * Esegue un benchmark e ne stampa il risultato.
+	 * @param name : nome del benchmark
+	 * @param operations : operazioni per iterazione
+	 * @param body : corpo del benchmark
+	 * @throws Exception se il benchmark fallisce
+	 */
+	void run(final String name, final long operations, final Body body) throws Exception {
+		for (int i = 0; i < this.warmups; i++) {
+			body.run(operations);
+		}
+		
+		final double[] throughput = new double[this.iterations];
+		long allocated = 0;
+		long gcCount = 0;
+		long gcTime = 0;
+		long elapsed = 0;
+		for (int i = 0; i < this.iterations; i++) {
+			final long allocatedBefore = allocatedBytes();
+			final long gcCountBefore = gcCount();
+			final long gcTimeBefore = gcTime();
+			final long start = System.nanoTime();
+			body.run(operations);
+			final long time = System.nanoTime() - start;
+			allocated += allocatedBytes() - allocatedBefore;
+			gcCount += gcCount() - gcCountBefore;
+			gcTime += gcTime() - gcTimeBefore;
+			elapsed += time;
+			throughput[i] = operations * 1e9 / time;
+		}
+		
+		Arrays.sort(throughput);
+		final long total = operations * this.iterations;
+		System.out.println(String.format("%-40s %12.0f ops/s  [%.0f .. %.0f]  %8.1f ns/op  %8.1f B/op  gc %d (%d ms)",
+				name, total * 1e9 / elapsed, throughput[0], throughput[throughput.length - 1],
+				(double) elapsed / total, (double) allocated / total, gcCount, gcTime));
+	}
+	
+	/**
+	 * Stampa i percentili di una serie di latenze.
+	 * @param name : nome della misura
+	 * @param samples : latenze in nanosecondi, vengono ordinate
+	 * @param count : numero di campioni validi
+	 */
+	static void printLatency(final String name, final long[] samples, final int count) {
+		Arrays.sort(samples, 0, count);
+		System.out.println(String.format("%-40s p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us",
+				name, percentile(samples, count, 0.5), percentile(samples, count, 0.99),
+				percentile(samples, count, 0.999), samples[count - 1] / 1e3));
+	}
+	
+	private static double percentile(final long[] sorted, final int count, final double p) {
+		return sorted[Math.min(count - 1, (int) Math.ceil(p * count) - 1)] / 1e3;
+	}
+	
+	static long allocatedBytes() {
+		long total = 0;
+		for (final long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+	
+	static long gcCount() {
+		return COLLECTORS.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+	}
+	
+	static long gcTime() {
+		return COLLECTORS.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+	}
+}
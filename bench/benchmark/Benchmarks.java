@@ -0,0 +1,53 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Suite di benchmark del middleware: event dispatcher, lettura e framing delle righe, invio sulla socket.
+ * Non richiede dispositivi nè rete: seriale e server sono sostituiti da stream in memoria e socket locali.
+ * 
+ * Uso: {@code java -cp bin:bin-bench benchmark.Benchmarks [dispatch] [lines] [socket] [-quick]}
+ * (senza argomenti esegue tutti i gruppi). Per risultati ripetibili eseguire con heap fisso,
+ * ad esempio {@code -Xms1g -Xmx1g}, e senza altri processi attivi.
+ *
+ */
+public final class Benchmarks {
+	
+	private static final String DISPATCH = "dispatch";
+	private static final String LINES = "lines";
+	private static final String SOCKET = "socket";
+	private static final String QUICK = "-quick";
+	
+	private Benchmarks() { }
+	
+	/**
+	 * 
+	 * @param args : gruppi da eseguire e opzione -quick per meno iterazioni
+	 * @throws Exception se un benchmark fallisce
+	 */
+	public static void main(final String[] args) throws Exception {
+		final List<String> options = Arrays.asList(args);
+		final boolean quick = options.contains(QUICK);
+		final boolean all = options.stream().allMatch(QUICK::equals);
+		final Bench bench = quick ? new Bench(1, 3) : new Bench(5, 10);
+		final long operations = quick ? 100000 : 1000000;
+		
+		System.out.println("Java " + System.getProperty("java.version") + ", " 
+				+ Runtime.getRuntime().availableProcessors() + " cpu, max heap " 
+				+ Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB");
+		
+		if (all || options.contains(DISPATCH)) {
+			new DispatcherBenchmark().run(bench, operations);
+		}
+		if (all || options.contains(LINES)) {
+			new LineReadingBenchmark().run(bench, operations);
+		}
+		if (all || options.contains(SOCKET)) {
+			new SocketWriteBenchmark().run(bench, operations / 4);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Server locale che riceve le righe inoltrate dal middleware durante il test di carico
+ * e misura la latenza di ognuna dal timestamp {@code t=} inserito dal dispositivo simulato.
+ * Le righe di un passo precedente (campo {@code s=}) arrivate in ritardo vengono ignorate.
+ *
+ */
+final class Collector extends Thread {
+	
+	private final Socket socket;
+	private volatile Step current;
+	
+	Collector(final Socket socket) {
+		super("Collector");
+		this.setDaemon(true);
+		this.socket = socket;
+		this.start();
+	}
+	
+	/**
+	 * Inizia la misura di un nuovo passo.
+	 * @param number : numero del passo
+	 * @param expected : numero di righe attese
+	 * @return oggetto {@link Step} con i risultati, aggiornato dal thread del collettore
+	 */
+	Step start(final int number, final int expected) {
+		final Step step = new Step(number, expected);
+		this.current = step;
+		return step;
+	}
+	
+	@Override
+	public void run() {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()), 1 << 16)) {
+			String line = reader.readLine();
+			while (line != null) {
+				final long now = System.nanoTime();
+				final Step step = this.current;
+				if (step != null && field(line, " s=") == step.number && step.received < step.latencies.length) {
+					step.latencies[step.received] = now - field(line, " t=");
+					step.lastArrival = now;
+					step.received++;
+				}
+				line = reader.readLine();
+			}
+		} catch (IOException e) {
+			System.err.println("Collector : " + e.getMessage());
+		}
+	}
+	
+	private static long field(final String line, final String name) {
+		final int start = line.indexOf(name);
+		if (start < 0) {
+			return -1;
+		}
+		
+		long value = 0;
+		for (int i = start + name.length(); i < line.length() && line.charAt(i) >= '0' && line.charAt(i) <= '9'; i++) {
+			value = value * 10 + line.charAt(i) - '0';
+		}
+		return value;
+	}
+	
+	/**
+	 * 
+	 * Risultati di un passo del test. I campi sono scritti solo dal thread del collettore.
+	 *
+	 */
+	static final class Step {
+		
+		private final int number;
+		final long[] latencies;
+		volatile int received;
+		volatile long lastArrival;
+		
+		Step(final int number, final int expected) {
+			this.number = number;
+			this.latencies = new long[expected];
+		}
+	}
+}
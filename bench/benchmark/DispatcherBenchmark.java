@@ -0,0 +1,109 @@
+package benchmark;
+
+import java.util.concurrent.locks.LockSupport;
+
+import event.Event;
+import event.EventDispatcher;
+import event.EventHandler;
+import event.EventType;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Throughput e latenza dell'{@link EventDispatcher} con un numero crescente di event handler.
+ * 
+ * Il dispatcher è un singleton e gli handler non possono essere rimossi, per cui le configurazioni
+ * vengono eseguite in ordine crescente aggiungendo handler: solo l'ultimo aggiunto segnala
+ * il completamento degli eventi, gli altri eseguono solo il controllo del tipo e un contatore.
+ *
+ */
+final class DispatcherBenchmark {
+	
+	private static final int[] HANDLERS = { 1, 2, 4, 8 };
+	private static final int LATENCY_SAMPLES = 20000;
+	private static final Object PAYLOAD = "arduino1:bme280 t=21.53 h=40.2";
+	
+	private final EventDispatcher dispatcher;
+	private Probe last;
+	
+	DispatcherBenchmark() {
+		this.dispatcher = EventDispatcher.getDispatcher();
+		final Thread loop = new Thread(this.dispatcher::mainLoop, "EventDispatcher");
+		loop.setDaemon(true);
+		loop.start();
+	}
+	
+	void run(final Bench bench, final long operations) throws Exception {
+		int handlers = 0;
+		for (final int n : HANDLERS) {
+			while (handlers < n) {
+				if (this.last != null) {
+					this.last.signal = false;
+				}
+				this.last = new Probe();
+				this.dispatcher.addEventHandler(this.last);
+				handlers++;
+			}
+			
+			bench.run("dispatch.throughput handlers=" + n, operations, this::throughput);
+			this.latency(n);
+		}
+	}
+	
+	private void throughput(final long operations) {
+		final Probe probe = this.last;
+		final long target = probe.handled + operations;
+		for (long i = 0; i < operations; i++) {
+			this.dispatcher.dispatchEvent(new Event(EventType.message_from_serial, PAYLOAD));
+		}
+		while (probe.handled < target) {
+			LockSupport.parkNanos(10000);
+		}
+	}
+	
+	/*
+	 * Latenza a coda vuota: un evento alla volta, dall'inserimento alla fine della gestione dell'ultimo handler.
+	 */
+	private void latency(final int n) {
+		final Probe probe = this.last;
+		final long[] samples = new long[LATENCY_SAMPLES];
+		for (int i = 0; i < samples.length; i++) {
+			final long target = probe.handled + 1;
+			final long start = System.nanoTime();
+			this.dispatcher.dispatchEvent(new Event(EventType.message_from_serial, PAYLOAD));
+			while (probe.handled < target) {
+				Thread.yield();
+			}
+			samples[i] = probe.time - start;
+		}
+		Bench.printLatency("dispatch.latency handlers=" + n, samples, samples.length);
+	}
+	
+	/**
+	 * 
+	 * Handler di prova: conta gli eventi e, se è l'ultimo aggiunto, pubblica il contatore e l'istante di gestione.
+	 *
+	 */
+	private static final class Probe implements EventHandler {
+		
+		private volatile boolean signal = true;
+		private volatile long handled;
+		private volatile long time;
+		private long count;
+		
+		@Override
+		public void handleEvent(final Event e) {
+			this.count++;
+			if (this.signal) {
+				this.time = System.nanoTime();
+				this.handled = this.count;
+			}
+		}
+		
+		@Override
+		public boolean isTriggered(final Event event) {
+			return event.getType() == EventType.message_from_serial;
+		}
+	}
+}
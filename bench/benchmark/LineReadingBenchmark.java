@@ -0,0 +1,140 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import io.FramedLink;
+import utilities.KeyValues;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Lettura delle righe ricevute dalla seriale, con gli stessi passi del thread di lettura di
+ * {@link io.ArduinoCommunication} ma su uno stream in memoria al posto della porta seriale:
+ * <ul>
+ * <li>lines: BufferedReader.readLine su uno stream di byte</li>
+ * <li>lines+parse: come sopra, più l'analisi delle coppie chiave=valore con {@link KeyValues}</li>
+ * <li>framing: invio e ricezione con {@link FramedLink} tra due estremi collegati in memoria, conferme comprese</li>
+ * </ul>
+ *
+ */
+final class LineReadingBenchmark {
+	
+	private static final String LINE = "bme280 t=21.53 h=40.2 p=1013.25 alt=152";
+	
+	private final BufferedReader reader;
+	private final KeyValues.Visitor visitor;
+	private final FramedLink sender;
+	private final byte[] message;
+	private long pairs;
+	private long received;
+	
+	LineReadingBenchmark() {
+		this.reader = new BufferedReader(new InputStreamReader(new RepeatingStream((LINE + "\r\n").getBytes())));
+		this.visitor = (text, keyStart, keyEnd, valueStart, valueEnd) -> 
+			this.pairs += (long) KeyValues.parseDouble(text, valueStart, valueEnd);
+		this.message = LINE.getBytes();
+		
+		final Wire toReceiver = new Wire();
+		final Wire toSender = new Wire();
+		this.sender = new FramedLink(toReceiver, m -> { });
+		final FramedLink receiver = new FramedLink(toSender, m -> this.received++);
+		toReceiver.peer = receiver;
+		toSender.peer = this.sender;
+	}
+	
+	void run(final Bench bench, final long operations) throws Exception {
+		bench.run("lines.readLine", operations, this::readLines);
+		bench.run("lines.readLine+parse", operations, this::parseLines);
+		bench.run("lines.framing", operations, this::framing);
+		if (this.pairs == 0) {
+			throw new IllegalStateException("No values parsed");
+		}
+	}
+	
+	private void readLines(final long operations) throws IOException {
+		for (long i = 0; i < operations; i++) {
+			if (this.reader.readLine() == null) {
+				throw new IOException("End of stream");
+			}
+		}
+	}
+	
+	private void parseLines(final long operations) throws IOException {
+		for (long i = 0; i < operations; i++) {
+			KeyValues.parse(this.reader.readLine(), this.visitor);
+		}
+	}
+	
+	private void framing(final long operations) throws IOException {
+		final long target = this.received + operations;
+		for (long i = 0; i < operations; i++) {
+			this.sender.send(this.message);
+		}
+		if (this.received != target) {
+			throw new IOException("Lost " + (target - this.received) + " frames");
+		}
+	}
+	
+	/**
+	 * 
+	 * Stream che ripete all'infinito lo stesso contenuto, senza allocazioni.
+	 *
+	 */
+	private static final class RepeatingStream extends InputStream {
+		
+		private final byte[] data;
+		private int position;
+		
+		RepeatingStream(final byte[] data) {
+			this.data = data;
+		}
+		
+		@Override
+		public int read() {
+			final int b = this.data[this.position] & 0xFF;
+			this.position = (this.position + 1) % this.data.length;
+			return b;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			int n = 0;
+			while (n < len) {
+				final int count = Math.min(len - n, this.data.length - this.position);
+				System.arraycopy(this.data, this.position, b, off + n, count);
+				n += count;
+				this.position = (this.position + count) % this.data.length;
+			}
+			return n;
+		}
+	}
+	
+	/**
+	 * 
+	 * Collegamento in memoria tra due {@link FramedLink}: accumula i byte scritti e consegna
+	 * ogni frame al ricevente quando arriva il delimitatore, come fa il thread di lettura.
+	 *
+	 */
+	private static final class Wire extends OutputStream {
+		
+		private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		private FramedLink peer;
+		
+		@Override
+		public void write(final int b) throws IOException {
+			if (b == 0) {
+				final byte[] bytes = this.frame.toByteArray();
+				this.frame.reset();
+				this.peer.onFrame(bytes, bytes.length);
+			} else {
+				this.frame.write(b);
+			}
+		}
+	}
+}
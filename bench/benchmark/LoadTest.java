@@ -0,0 +1,191 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import event.Event;
+import event.EventDispatcher;
+import event.EventType;
+import event.MyEventHandler;
+import io.ArduinoCommunication;
+import io.SerialProtocol;
+import utilities.Log;
+import utilities.Tracer;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Test di carico dell'intero percorso del middleware: {@link ArduinoCommunication} → {@link EventDispatcher} 
+ * → {@link MyEventHandler} → {@link net.EndPoint} → collettore.
+ * 
+ * Il middleware viene avviato nello stesso processo con un dispositivo simulato, collegato tramite una coppia
+ * di stream al posto della porta seriale, e un collettore TCP locale al posto del server.
+ * Per ogni combinazione di frequenza e dimensione dei messaggi il dispositivo invia righe a ritmo costante
+ * e il collettore misura throughput sostenuto, latenza end-to-end, perdite, allocazione e attività del GC.
+ * 
+ * La latenza è misurata dall'istante in cui ogni riga avrebbe dovuto essere inviata, per cui include anche
+ * l'attesa del dispositivo quando il middleware non riesce a smaltire il carico (nessuna coordinated omission).
+ * L'allocazione per messaggio è misurata su tutti i thread, per cui comprende dispositivo simulato e collettore.
+ * 
+ * Con l'opzione {@code trace=n} viene tracciato un messaggio ogni n e per ogni passo viene stampata
+ * la latenza delle singole fasi (vedi {@link Tracer}).
+ * 
+ * Uso: {@code java -cp bin:bin-bench benchmark.LoadTest [rates=1000,10000] [sizes=64,256] [seconds=5] [trace=100] [-quick]}
+ *
+ */
+public final class LoadTest {
+	
+	private static final int[] RATES = { 1000, 5000, 20000, 50000 };
+	private static final int[] SIZES = { 32, 128, 512 };
+	private static final int SECONDS = 5;
+	private static final long DRAIN_TIMEOUT = 5000000000L;
+	private static final String DEVICE = "sim1";
+	
+	private final PipedOutputStream device;
+	private final Collector collector;
+	private final byte[] newLine = { '\n' };
+	private int step;
+	private int sampling;
+	
+	private LoadTest() throws IOException {
+		final EventDispatcher dispatcher = EventDispatcher.getDispatcher();
+		dispatcher.addEventHandler(new MyEventHandler());
+		final Thread loop = new Thread(dispatcher::mainLoop, "EventDispatcher");
+		loop.setDaemon(true);
+		loop.start();
+		
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+		this.collector = new Collector(server.accept());
+		server.close();
+		dispatcher.dispatchEvent(new Event(EventType.server_connection_established, socket));
+		
+		final PipedInputStream input = new PipedInputStream(1 << 16);
+		this.device = new PipedOutputStream(input);
+		final ArduinoCommunication arduino = new ArduinoCommunication(DEVICE, input, new OutputStream() {
+			@Override
+			public void write(final int b) { }
+		}, null, ArduinoCommunication.WAITING_TIME, SerialProtocol.text, dispatcher);
+		dispatcher.dispatchEvent(new Event(EventType.serial_connection_established, arduino));
+	}
+	
+	/**
+	 * 
+	 * @param args : frequenze (messaggi al secondo), dimensioni (byte per riga), durata di ogni passo 
+	 * in secondi e opzione -quick per un passo breve con meno combinazioni
+	 * @throws Exception se il test fallisce
+	 */
+	public static void main(final String[] args) throws Exception {
+		final boolean quick = Arrays.asList(args).contains("-quick");
+		int[] rates = quick ? new int[] { 1000, 10000 } : RATES;
+		int[] sizes = quick ? new int[] { 64 } : SIZES;
+		int seconds = quick ? 1 : SECONDS;
+		int sampling = 0;
+		for (final String arg : args) {
+			if (arg.startsWith("rates=")) {
+				rates = parseList(arg);
+			} else if (arg.startsWith("sizes=")) {
+				sizes = parseList(arg);
+			} else if (arg.startsWith("seconds=")) {
+				seconds = Integer.parseInt(arg.substring("seconds=".length()));
+			} else if (arg.startsWith("trace=")) {
+				sampling = Integer.parseInt(arg.substring("trace=".length()));
+			}
+		}
+		
+		// il log di ogni riga ricevuta falserebbe la misura
+		Log.setLevel(Log.Level.warn);
+		System.out.println("Java " + System.getProperty("java.version") + ", " 
+				+ Runtime.getRuntime().availableProcessors() + " cpu, max heap " 
+				+ Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB");
+		
+		final LoadTest test = new LoadTest();
+		test.sampling = sampling;
+		test.run(Math.min(1000, rates[0]), sizes[0], 1, false);
+		for (final int size : sizes) {
+			for (final int rate : rates) {
+				test.run(rate, size, seconds, true);
+			}
+		}
+		System.exit(0);
+	}
+	
+	private static int[] parseList(final String arg) {
+		return Arrays.stream(arg.substring(arg.indexOf('=') + 1).split(",")).mapToInt(Integer::parseInt).toArray();
+	}
+	
+	/*
+	 * Il primo passo, non riportato, serve a completare l'handshake del dispositivo e a riscaldare la JVM.
+	 */
+	private void run(final int rate, final int size, final int seconds, final boolean report) throws IOException {
+		final int count = rate * seconds;
+		final long interval = 1000000000L / rate;
+		final Collector.Step current = this.collector.start(++this.step, count);
+		final long allocated = Bench.allocatedBytes();
+		final long gcCount = Bench.gcCount();
+		final long gcTime = Bench.gcTime();
+		final StringBuilder line = new StringBuilder(size + 32);
+		Tracer.setSampling(report ? this.sampling : 0);
+		
+		final long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			final long intended = start + i * interval;
+			long wait = intended - System.nanoTime();
+			while (wait > 0) {
+				if (wait > 100000) {
+					LockSupport.parkNanos(wait - 50000);
+				} else {
+					Thread.yield();
+				}
+				wait = intended - System.nanoTime();
+			}
+			
+			line.setLength(0);
+			line.append("load s=").append(this.step).append(" n=").append(i).append(" t=").append(intended).append(" p=");
+			while (line.length() < size) {
+				line.append('x');
+			}
+			this.device.write(line.toString().getBytes());
+			this.device.write(this.newLine);
+			// il flush risveglia il thread di lettura, altrimenti in attesa sullo stream fino ad un secondo
+			this.device.flush();
+		}
+		
+		long last = current.received;
+		long progress = System.nanoTime();
+		while (current.received < count && System.nanoTime() - progress < DRAIN_TIMEOUT) {
+			LockSupport.parkNanos(1000000);
+			if (current.received != last) {
+				last = current.received;
+				progress = System.nanoTime();
+			}
+		}
+		
+		if (report) {
+			final int received = current.received;
+			final double elapsed = (current.lastArrival - start) / 1e9;
+			final long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			System.out.println(String.format("rate %6d/s size %4d B: %8d sent %8d received %6d lost  "
+					+ "%8.0f msg/s %6.2f MB/s  %6.0f B/msg  heap %4d MB  gc %d (%d ms)",
+					rate, size, count, received, count - received, received / elapsed,
+					received * (double) (size + DEVICE.length() + 2) / elapsed / (1024 * 1024),
+					(double) (Bench.allocatedBytes() - allocated) / Math.max(1, received), heap / (1024 * 1024),
+					Bench.gcCount() - gcCount, Bench.gcTime() - gcTime));
+			if (received > 0) {
+				Bench.printLatency("    end-to-end latency", current.latencies, received);
+			}
+			if (this.sampling > 0) {
+				Tracer.printStats();
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+import net.DeflateBatcher;
+import net.EndPoint;
+import net.NetEventHandler;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Throughput di {@link EndPoint#sendMessage(String, boolean)} verso un ricevente sulla stessa macchina:
+ * flush ad ogni messaggio, flush ogni BATCH messaggi e compressione con {@link DeflateBatcher}.
+ * Ogni iterazione termina quando il ricevente ha letto tutti i byte inviati.
+ *
+ */
+final class SocketWriteBenchmark {
+	
+	private static final String MESSAGE = "arduino1:bme280 t=21.53 h=40.2 p=1013.25 alt=152";
+	private static final int BATCH = 64;
+	
+	void run(final Bench bench, final long operations) throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			this.run(bench, operations, server, "socket.send flush=each", 1, false);
+			this.run(bench, operations, server, "socket.send flush=" + BATCH, BATCH, false);
+			this.run(bench, operations, server, "socket.send compressed", BATCH, true);
+		}
+	}
+	
+	private void run(final Bench bench, final long operations, final ServerSocket server, final String name,
+			final int batch, final boolean compressed) throws Exception {
+		
+		final EndPoint endPoint = new EndPoint(new Socket(server.getInetAddress(), server.getLocalPort()), 
+				new NoHandler());
+		final Sink sink = new Sink(server.accept());
+		if (compressed) {
+			endPoint.setCompression(16384, 50);
+		}
+		
+		try {
+			bench.run(name, operations, n -> {
+				for (long i = 1; i <= n; i++) {
+					endPoint.sendMessage(MESSAGE, i % batch == 0);
+				}
+				endPoint.flush();
+				sink.await(endPoint, n);
+			});
+		} finally {
+			endPoint.closeConnection();
+			sink.close();
+		}
+	}
+	
+	/**
+	 * 
+	 * Thread che legge e scarta i byte ricevuti.
+	 *
+	 */
+	private static final class Sink extends Thread {
+		
+		private final Socket socket;
+		private volatile long bytes;
+		private long sent;
+		
+		Sink(final Socket socket) {
+			super("Sink");
+			this.setDaemon(true);
+			this.socket = socket;
+			this.start();
+		}
+		
+		@Override
+		public void run() {
+			final byte[] buffer = new byte[65536];
+			try (InputStream input = this.socket.getInputStream()) {
+				int n = input.read(buffer);
+				while (n >= 0) {
+					this.bytes += n;
+					n = input.read(buffer);
+				}
+			} catch (IOException e) { }
+		}
+		
+		/*
+		 * Con la compressione ogni frame ha un'intestazione di 4 byte con la lunghezza.
+		 */
+		void await(final EndPoint endPoint, final long messages) throws IOException {
+			if (endPoint.getCompression().isPresent()) {
+				final DeflateBatcher batcher = endPoint.getCompression().get();
+				this.sent = batcher.getCompressedBytes() + 4 * batcher.getFrames();
+			} else {
+				this.sent += messages * (MESSAGE.length() + 1);
+			}
+			
+			while (this.bytes < this.sent) {
+				if (!this.isAlive()) {
+					throw new IOException("Connection closed");
+				}
+				LockSupport.parkNanos(10000);
+			}
+		}
+		
+		void close() throws IOException {
+			this.socket.close();
+		}
+	}
+	
+	/**
+	 * 
+	 * Handler che ignora i messaggi ricevuti.
+	 *
+	 */
+	private static final class NoHandler implements NetEventHandler {
+
+		@Override
+		public void handleMessage(final EndPoint endPoint, final String message) { }
+
+		@Override
+		public void handleError(final EndPoint endPoint, final Exception e) { }
+	}
+}
@@ -0,0 +1,43 @@
+package jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Evento JFR istantaneo per l'inserimento di un evento nella coda dell'event dispatcher.
+ *
+ */
+@Name("middleware.DispatchEnqueue")
+@Label("Event Enqueued")
+@Category({ "Middleware", "Dispatch" })
+@Description("Event added to the dispatcher queue")
+@StackTrace(false)
+public final class DispatchEnqueueEvent extends jdk.jfr.Event implements Recorders.DispatchEnqueue {
+	
+	@Label("Event Type")
+	private String eventType;
+	
+	@Label("Queue Size")
+	@Description("Events in the queue after the insertion")
+	private int queueSize;
+	
+	/**
+	 * Registra l'evento, se abilitato.
+	 * @param type : tipo dell'evento inserito
+	 * @param size : numero di eventi in coda dopo l'inserimento
+	 */
+	@Override
+	public void record(final Object type, final int size) {
+		if (this.shouldCommit()) {
+			this.eventType = String.valueOf(type);
+			this.queueSize = size;
+			this.commit();
+		}
+	}
+}
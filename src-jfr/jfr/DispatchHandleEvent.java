@@ -0,0 +1,53 @@
+package jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Evento JFR per la gestione di un evento da parte dell'event dispatcher.
+ * La durata è il tempo impiegato dagli event handler, il tempo di attesa in coda è riportato a parte.
+ *
+ */
+@Name("middleware.DispatchHandle")
+@Label("Event Handled")
+@Category({ "Middleware", "Dispatch" })
+@Description("Event taken from the dispatcher queue and handled")
+@StackTrace(false)
+public final class DispatchHandleEvent extends jdk.jfr.Event implements Recorders.DispatchHandle {
+	
+	@Label("Event Type")
+	private String eventType;
+	
+	@Label("Queue Time")
+	@Description("Time spent in the queue before being handled, 0 if not measured")
+	@Timespan
+	private long queueTime;
+	
+	@Label("Queue Size")
+	@Description("Events left in the queue")
+	private int queueSize;
+	
+	/**
+	 * Termina la misura della durata e registra l'evento, se abilitato e oltre la soglia.
+	 * @param type : tipo dell'evento gestito
+	 * @param waitNanos : tempo di attesa in coda in nanosecondi
+	 * @param size : numero di eventi rimasti in coda
+	 */
+	@Override
+	public void record(final Object type, final long waitNanos, final int size) {
+		this.end();
+		if (this.shouldCommit()) {
+			this.eventType = String.valueOf(type);
+			this.queueTime = waitNanos;
+			this.queueSize = size;
+			this.commit();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package jfr;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Registratori basati sugli eventi JFR, caricati per riflessione da {@link Recorders} se la JVM contiene JFR.
+ *
+ */
+public final class JdkRecorders implements Recorders.Factory {
+
+	@Override
+	public Recorders.SerialLine serialLine() {
+		return new SerialLineEvent();
+	}
+
+	@Override
+	public Recorders.DispatchEnqueue dispatchEnqueue() {
+		return new DispatchEnqueueEvent();
+	}
+
+	@Override
+	public Recorders.DispatchHandle dispatchHandle() {
+		return new DispatchHandleEvent();
+	}
+
+	@Override
+	public Recorders.SocketWrite socketWrite() {
+		return new SocketWriteEvent();
+	}
+
+	@Override
+	public Recorders.Reconnect reconnect() {
+		return new ReconnectEvent();
+	}
+}
@@ -0,0 +1,61 @@
+package jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Evento JFR per un tentativo di connessione al server.
+ * La durata è il tempo impiegato per aprire la socket, fino al successo o all'errore.
+ *
+ */
+@Name("middleware.Reconnect")
+@Label("Server Connection Attempt")
+@Category({ "Middleware", "Network" })
+@Description("Attempt to connect to the server")
+@StackTrace(false)
+public final class ReconnectEvent extends jdk.jfr.Event implements Recorders.Reconnect {
+	
+	@Label("Host")
+	private String host;
+	
+	@Label("Port")
+	private int port;
+	
+	@Label("Attempt")
+	@Description("Number of the attempt since the connection was requested")
+	private int attempt;
+	
+	@Label("Connected")
+	private boolean connected;
+	
+	@Label("Error")
+	private String error;
+	
+	/**
+	 * Termina la misura della durata e registra l'evento, se abilitato e oltre la soglia.
+	 * @param ip : indirizzo del server
+	 * @param serverPort : porta del server
+	 * @param count : numero del tentativo, a partire da 1
+	 * @param success : true se la connessione è stata stabilita
+	 * @param message : messaggio di errore, null se il tentativo è riuscito
+	 */
+	@Override
+	public void record(final String ip, final int serverPort, final int count, final boolean success,
+			final String message) {
+		this.end();
+		if (this.shouldCommit()) {
+			this.host = ip;
+			this.port = serverPort;
+			this.attempt = count;
+			this.connected = success;
+			this.error = message;
+			this.commit();
+		}
+	}
+}
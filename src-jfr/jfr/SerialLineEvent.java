@@ -0,0 +1,52 @@
+package jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Evento JFR per una riga ricevuta da un dispositivo seriale.
+ * La durata comprende la gestione della riga sul thread di lettura (log e inserimento nella coda degli eventi).
+ *
+ */
+@Name("middleware.SerialLine")
+@Label("Serial Line Received")
+@Category({ "Middleware", "Serial" })
+@Description("Line or frame received from a serial device")
+@StackTrace(false)
+public final class SerialLineEvent extends jdk.jfr.Event implements Recorders.SerialLine {
+	
+	@Label("Device")
+	private String device;
+	
+	@Label("Size")
+	@DataAmount
+	private int size;
+	
+	@Label("Framed")
+	@Description("True if the line was received as a framed packet")
+	private boolean framed;
+	
+	/**
+	 * Termina la misura della durata e registra l'evento, se abilitato e oltre la soglia.
+	 * @param deviceId : identificativo del dispositivo
+	 * @param bytes : lunghezza della riga
+	 * @param isFramed : true se la riga è stata ricevuta come frame
+	 */
+	@Override
+	public void record(final String deviceId, final int bytes, final boolean isFramed) {
+		this.end();
+		if (this.shouldCommit()) {
+			this.device = deviceId;
+			this.size = bytes;
+			this.framed = isFramed;
+			this.commit();
+		}
+	}
+}
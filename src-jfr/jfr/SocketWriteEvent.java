@@ -0,0 +1,58 @@
+package jfr;
+
+import java.net.Socket;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Evento JFR per l'invio di un messaggio su una socket.
+ * La durata comprende la scrittura nel buffer e l'eventuale flush o compressione del lotto.
+ *
+ */
+@Name("middleware.SocketWrite")
+@Label("Socket Message Write")
+@Category({ "Middleware", "Network" })
+@Description("Message written to a socket by an EndPoint")
+@StackTrace(false)
+public final class SocketWriteEvent extends jdk.jfr.Event implements Recorders.SocketWrite {
+	
+	@Label("Remote Address")
+	private String address;
+	
+	@Label("Size")
+	@DataAmount
+	private int size;
+	
+	@Label("Flush")
+	private boolean flush;
+	
+	@Label("Compressed")
+	private boolean compressed;
+	
+	/**
+	 * Termina la misura della durata e registra l'evento, se abilitato e oltre la soglia.
+	 * @param socket : socket su cui è stato scritto il messaggio
+	 * @param bytes : lunghezza del messaggio
+	 * @param flushed : true se il buffer è stato svuotato
+	 * @param isCompressed : true se il messaggio è stato inserito in un lotto compresso
+	 */
+	@Override
+	public void record(final Socket socket, final int bytes, final boolean flushed, final boolean isCompressed) {
+		this.end();
+		if (this.shouldCommit()) {
+			this.address = String.valueOf(socket.getRemoteSocketAddress());
+			this.size = bytes;
+			this.flush = flushed;
+			this.compressed = isCompressed;
+			this.commit();
+		}
+	}
+}
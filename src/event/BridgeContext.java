@@ -0,0 +1,189 @@
+package event;
+
+import java.util.concurrent.CompletableFuture;
+
+import io.SerialConnectionService;
+import net.ServerConnectionService;
+import utilities.Scheduler;
+
+/**
+ * 
+ * @author Gabriele Giunchi
+ * 
+ * Contesto di un bridge: un {@link EventDispatcher}, il {@link MyEventHandler} che lo serve e i servizi
+ * di riconnessione al server e ai dispositivi. Ogni contesto ha i propri dispositivi, la propria connessione
+ * al server e la propria configurazione, per cui più bridge indipendenti possono essere eseguiti nello stesso processo
+ * e avviati o fermati separatamente.
+ * 
+ * I contesti condividono i thread e i timer dello {@link utilities.Scheduler}: un contesto inattivo
+ * non occupa thread, solo i thread di lettura dei dispositivi e delle socket aperte sono dedicati.
+ * 
+ * Il contesto restituito da {@link #getDefault()} usa le istanze dell'applicazione 
+ * ({@link EventDispatcher#getDispatcher()}, {@link ServerConnectionService#getInstance()}, 
+ * {@link SerialConnectionService#getInstance()}).
+ *
+ */
+public final class BridgeContext {
+	
+	/**
+	 * Nome del contesto dell'applicazione.
+	 */
+	public static final String DEFAULT_NAME = "main";
+	
+	private static final long CLOSE_TIMEOUT = 1000;
+	private static BridgeContext defaultContext;
+	
+	private final String name;
+	private final EventDispatcher dispatcher;
+	private final ServerConnectionService serverConnection;
+	private final SerialConnectionService serialConnection;
+	private final MyEventHandler handler;
+	
+	/**
+	 * Crea un nuovo contesto, non ancora avviato.
+	 * @param name : nome del contesto
+	 */
+	public BridgeContext(final String name) {
+		this(name, new EventDispatcher());
+	}
+	
+	private BridgeContext(final String name, final EventDispatcher dispatcher) {
+		this(name, dispatcher, new ServerConnectionService(dispatcher), new SerialConnectionService(dispatcher));
+	}
+	
+	private BridgeContext(final String name, final EventDispatcher dispatcher, 
+			final ServerConnectionService serverConnection, final SerialConnectionService serialConnection) {
+		this.name = name;
+		this.dispatcher = dispatcher;
+		this.serverConnection = serverConnection;
+		this.serialConnection = serialConnection;
+		this.handler = new MyEventHandler(dispatcher, serverConnection, serialConnection);
+		this.dispatcher.addEventHandler(this.handler);
+	}
+	
+	/**
+	 * 
+	 * @return contesto dell'applicazione
+	 */
+	public static synchronized BridgeContext getDefault() {
+		if (defaultContext == null) {
+			defaultContext = new BridgeContext(DEFAULT_NAME, EventDispatcher.getDispatcher(), 
+					ServerConnectionService.getInstance(), SerialConnectionService.getInstance());
+		}
+		
+		return defaultContext;
+	}
+	
+	/**
+	 * Avvia la gestione degli eventi del contesto.
+	 */
+	public void start() {
+		this.dispatcher.start();
+	}
+	
+	/**
+	 * Chiude tutte le connessioni del contesto e termina il suo dispatcher.
+	 */
+	public void stop() {
+		this.dispatcher.dispatchEvent(new Event(EventType.exit_action));
+		if (!this.dispatcher.isRunning()) {
+			this.dispatcher.start();
+		}
+	}
+	
+	/**
+	 * Chiude il contesto senza perdere i messaggi già ricevuti: il contesto viene prima svuotato 
+	 * (vedi {@link MyEventHandler#drain(long)}), poi vengono chiuse le connessioni e ne viene stampato il resoconto.
+	 * La chiusura viene eseguita sul pool di thread dello {@link Scheduler}; se le connessioni non vengono chiuse
+	 * entro CLOSE_TIMEOUT millisecondi vengono interrotte (vedi {@link MyEventHandler#abort()}), per cui 
+	 * dura al più timeout + 2 * CLOSE_TIMEOUT millisecondi.
+	 * @param timeout : tempo massimo in millisecondi per lo svuotamento, 0 per chiudere subito
+	 * @return {@link CompletableFuture} completato con il resoconto dello svuotamento al termine della chiusura
+	 */
+	public CompletableFuture<MyEventHandler.DrainReport> shutdown(final long timeout) {
+		final CompletableFuture<MyEventHandler.DrainReport> result = new CompletableFuture<>();
+		Scheduler.getScheduler().execute(() -> {
+			final MyEventHandler.DrainReport report = this.handler.drain(timeout);
+			System.out.println("Context " + this.name + " drained: " + report);
+			this.stop();
+			try {
+				if (!this.awaitTermination(CLOSE_TIMEOUT)) {
+					System.err.println("Context " + this.name + " not closed after " + CLOSE_TIMEOUT + " ms, aborting");
+					this.handler.abort();
+					this.awaitTermination(CLOSE_TIMEOUT);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			result.complete(report);
+		});
+		return result;
+	}
+	
+	/**
+	 * Attende la terminazione del contesto.
+	 * @param timeout : tempo massimo di attesa in millisecondi, 0 per attendere senza limiti
+	 * @return true se il contesto è terminato
+	 * @throws InterruptedException se il thread viene interrotto durante l'attesa
+	 */
+	public boolean awaitTermination(final long timeout) throws InterruptedException {
+		return this.dispatcher.awaitTermination(timeout);
+	}
+	
+	/**
+	 * 
+	 * @return true se il contesto è stato avviato e non è terminato
+	 */
+	public boolean isRunning() {
+		return this.dispatcher.isRunning();
+	}
+	
+	/**
+	 * 
+	 * @return nome del contesto
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * 
+	 * @return event dispatcher del contesto
+	 */
+	public EventDispatcher getDispatcher() {
+		return this.dispatcher;
+	}
+	
+	/**
+	 * 
+	 * @return event handler del contesto
+	 */
+	public MyEventHandler getHandler() {
+		return this.handler;
+	}
+	
+	/**
+	 * 
+	 * @return servizio di connessione al server del contesto
+	 */
+	public ServerConnectionService getServerConnection() {
+		return this.serverConnection;
+	}
+	
+	/**
+	 * 
+	 * @return servizio di riconnessione ai dispositivi del contesto
+	 */
+	public SerialConnectionService getSerialConnection() {
+		return this.serialConnection;
+	}
+	
+	@Override
+	public String toString() {
+		return this.name + (this.isRunning() ? " (running)" : " (stopped)") 
+				+ " - devices: " + this.handler.getDevices().stream().filter(d -> !d.isClosed()).count()
+				+ ", server: " + this.handler.getServerConnection().filter(s -> !s.isClosed())
+					.map(s -> s.getSocket().getRemoteSocketAddress().toString()).orElse("not connected")
+				+ ", queued events: " + this.dispatcher.getQueueSize();
+	}
+}
@@ -2,6 +2,8 @@ package event;
 
 import java.util.Optional;
 
+import utilities.Tracer;
+
 /**
  * @author Gabriele Giunchi
  * 
@@ -12,6 +14,8 @@ public class Event {
 	
 	private final EventType type;
 	private final Object data;
+	private long enqueueTime;
+	private Tracer.Trace trace;
 	
 	/**
 	 * Costruisce un istanza di {@link Event} con il tipo dato.
@@ -46,5 +50,32 @@ public class Event {
 	public final Optional<Object> getData() {
 		return Optional.ofNullable(this.data);
 	}
+	
+	/**
+	 * Associa all'evento la traccia del messaggio che trasporta (vedi {@link Tracer}).
+	 * @param trace : oggetto {@link Tracer.Trace}, null se il messaggio non è tracciato
+	 */
+	public final void setTrace(final Tracer.Trace trace) {
+		this.trace = trace;
+	}
+	
+	/**
+	 * 
+	 * @return traccia del messaggio, null se il messaggio non è tracciato
+	 */
+	public final Tracer.Trace getTrace() {
+		return this.trace;
+	}
+	
+	/*
+	 * Istante di inserimento nella coda del dispatcher in nanosecondi, 0 se non misurato.
+	 */
+	final long getEnqueueTime() {
+		return this.enqueueTime;
+	}
+	
+	final void setEnqueueTime(final long nanos) {
+		this.enqueueTime = nanos;
+	}
 
 }
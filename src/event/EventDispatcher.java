@@ -1,36 +1,67 @@
 package event;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jfr.Recorders;
+import utilities.Scheduler;
+import utilities.Tracer;
 
 /**
- * 
+ *
  * @author Gabriele Giunchi
- * 
- * Event dispatcher dell'applicazione che si occupa di memorizzare gli eventi e gli event handler.
- * Adotta il pattern singleton
- * 
+ *
+ * Event dispatcher che si occupa di memorizzare gli eventi e gli event handler.
+ * L'istanza restituita da {@link #getDispatcher()} è quella dell'applicazione, altre istanze indipendenti
+ * possono essere create per i contesti aggiuntivi (vedi {@link BridgeContext}).
+ *
+ * Il dispatcher non ha un thread proprio: quando arriva un evento la coda viene svuotata da un task eseguito
+ * sul pool di thread condiviso dello {@link Scheduler}, per cui un dispatcher senza eventi non occupa thread.
+ * Gli eventi di uno stesso dispatcher sono comunque gestiti uno alla volta e nell'ordine di arrivo;
+ * dopo BATCH eventi il task viene rimesso in coda al pool per non monopolizzare un thread.
+ *
+ * L'inserimento e la gestione di ogni evento generano gli eventi JFR {@link Recorders.DispatchEnqueue}
+ * e {@link Recorders.DispatchHandle}; il tempo di attesa in coda viene misurato solo se il secondo è abilitato.
+ *
  */
 public final class EventDispatcher {
 	
-	private static final int SLEEP_TIME = 20;
 	private static final EventDispatcher SINGLETON = new EventDispatcher();
+	private static final int BATCH = 256;
 	
 	private final List<EventHandler> handlers;
 	private final Queue<Event> events;
+	// ConcurrentLinkedQueue.size() scorre tutta la coda, la dimensione viene mantenuta a parte
+	private final AtomicInteger size;
+	private final AtomicBoolean scheduled;
+	private final CountDownLatch terminated;
+	private final Runnable drain;
+	private volatile boolean started;
 	private volatile boolean stop;
+	private volatile long handled;
 	
-	private EventDispatcher() {
+	/**
+	 * Crea un dispatcher senza event handler. Gli eventi vengono accodati finchè il dispatcher non viene avviato.
+	 */
+	public EventDispatcher() {
 		this.events = new ConcurrentLinkedQueue<>();
-		this.handlers = new ArrayList<>();
+		this.size = new AtomicInteger();
+		this.handlers = new CopyOnWriteArrayList<>();
+		this.scheduled = new AtomicBoolean();
+		this.terminated = new CountDownLatch(1);
+		this.drain = this::drain;
 		this.stop = false;
 	}
 	
 	/**
-	 * 
-	 * @return unica istanza di EventDispatcher
+	 *
+	 * @return istanza di EventDispatcher dell'applicazione
 	 */
 	public static EventDispatcher getDispatcher() {
 		return SINGLETON;
@@ -41,7 +72,17 @@ public final class EventDispatcher {
 	 * @param newEvent : oggetto {@link Event} da aggiungere
 	 */
 	public void dispatchEvent(final Event newEvent) {
+		if (Recorders.dispatchHandle().isEnabled()) {
+			newEvent.setEnqueueTime(System.nanoTime());
+		}
+		if (newEvent.getTrace() != null) {
+			newEvent.getTrace().stamp(Tracer.Stage.enqueue);
+		}
+		final int queued = this.size.incrementAndGet();
 		this.events.add(newEvent);
+		this.schedule();
+		
+		Recorders.dispatchEnqueue().record(newEvent.getType(), queued);
 	}
 	
 	/**
@@ -53,30 +94,148 @@ public final class EventDispatcher {
 	}
 	
 	/**
-	 * Termina l'esecuzione dell'event dispatcher.
+	 * Avvia la gestione degli eventi, compresi quelli già accodati.
+	 */
+	public void start() {
+		if (!this.started) {
+			this.started = true;
+			System.out.println("Event Dispatcher started");
+			this.schedule();
+		}
+	}
+	
+	/**
+	 * Termina l'esecuzione dell'event dispatcher. Gli eventi ancora in coda vengono scartati.
 	 */
 	public void terminate() {
 		this.stop = true;
+		this.started = true;
+		this.schedule();
+	}
+	
+	/**
+	 *
+	 * @return true se il dispatcher è stato avviato e non è terminato
+	 */
+	public boolean isRunning() {
+		return this.started && this.terminated.getCount() > 0;
+	}
+	
+	/**
+	 *
+	 * @return numero di eventi in coda
+	 */
+	public int getQueueSize() {
+		return Math.max(0, this.size.get());
+	}
+	
+	/**
+	 * 
+	 * @return true se non ci sono eventi in coda né in gestione
+	 */
+	public boolean isIdle() {
+		return this.events.isEmpty() && !this.scheduled.get();
+	}
+	
+	/**
+	 * Scarta gli eventi in coda, ad esempio quando il tempo concesso per gestirli è scaduto.
+	 * @return numero di eventi scartati
+	 */
+	public int discardEvents() {
+		int count = 0;
+		while (this.events.poll() != null) {
+			this.size.decrementAndGet();
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * 
+	 * @return numero di eventi gestiti dalla creazione del dispatcher
+	 */
+	public long getHandledCount() {
+		return this.handled;
 	}
 	
 	/**
-	 * Esegue il loop di event dispatcher.
+	 * Attende la terminazione del dispatcher.
+	 * @param timeout : tempo massimo di attesa in millisecondi, 0 per attendere senza limiti
+	 * @return true se il dispatcher è terminato
+	 * @throws InterruptedException se il thread viene interrotto durante l'attesa
+	 */
+	public boolean awaitTermination(final long timeout) throws InterruptedException {
+		if (timeout == 0) {
+			this.terminated.await();
+			return true;
+		}
+		return this.terminated.await(timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Avvia la gestione degli eventi e attende la terminazione del dispatcher.
 	 */
 	public void mainLoop() {
-		System.out.println("Event Dispatcher started");
-		while (!stop) {
-			if (!this.events.isEmpty()) {
-				final Event e = this.events.poll();
-				this.handlers.stream().filter(h -> h.isTriggered(e)).forEach(h1 -> h1.handleEvent(e));
-			}
-			
-			try {
-				Thread.sleep(SLEEP_TIME);
-			} catch (InterruptedException e1) {
-				System.err.println(e1);
-			}
+		this.start();
+		try {
+			this.terminated.await();
+		} catch (InterruptedException e) {
+			System.err.println(e);
+			Thread.currentThread().interrupt();
 		}
 		
 		System.out.println("Event Dispatcher terminated");
 	}
+	
+	private void schedule() {
+		if (this.started && this.scheduled.compareAndSet(false, true)) {
+			Scheduler.getScheduler().execute(this.drain);
+		}
+	}
+	
+	/*
+	 * Al più un task di svuotamento per dispatcher è attivo: il flag viene rilasciato solo dopo aver svuotato la coda
+	 * e ricontrollato subito dopo, per non perdere gli eventi (o la terminazione) arrivati nel frattempo.
+	 */
+	private void drain() {
+		int count = 0;
+		Event e = null;
+		while (!this.stop && count++ < BATCH && (e = this.events.poll()) != null) {
+			this.size.decrementAndGet();
+			this.handle(e);
+		}
+		
+		if (this.stop) {
+			this.events.clear();
+			this.size.set(0);
+			this.terminated.countDown();
+			return;
+		}
+		
+		this.scheduled.set(false);
+		if (!this.events.isEmpty() || this.stop) {
+			this.schedule();
+		}
+	}
+	
+	private void handle(final Event e) {
+		if (e.getTrace() != null) {
+			e.getTrace().stamp(Tracer.Stage.dequeue);
+		}
+		final long queueTime = e.getEnqueueTime() != 0 ? System.nanoTime() - e.getEnqueueTime() : 0;
+		final Recorders.DispatchHandle trace = Recorders.dispatchHandle();
+		trace.begin();
+		try {
+			for (final EventHandler h : this.handlers) {
+				if (h.isTriggered(e)) {
+					h.handleEvent(e);
+				}
+			}
+		} catch (RuntimeException ex) {
+			System.err.println("EventDispatcher : " + e.getType() + " - " + ex);
+		}
+		// un solo task di svuotamento alla volta incrementa il contatore
+		this.handled++;
+		trace.record(e.getType(), queueTime, this.size.get());
+	}
 }
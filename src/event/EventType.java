@@ -20,17 +20,35 @@ public enum EventType {
 	server_connection_lost,
 	
 	/**
-	 * Messaggio da inviare sulla seriale.
+	 * Indica che è stata stabilita (o ristabilita) una connessione con un dispositivo, 
+	 * il payload è l'oggetto {@link io.ArduinoCommunication}.
+	 */
+	serial_connection_established,
+	
+	/**
+	 * Indica che la connessione con un dispositivo è stata persa, il payload è l'id del dispositivo.
+	 */
+	serial_connection_lost,
+	
+	/**
+	 * Messaggio da inviare sulla seriale. 
+	 * Se il messaggio inizia con {@code <id>:} viene inviato solo al dispositivo con quell'id, 
+	 * altrimenti a tutti i dispositivi.
 	 */
 	message_to_serial,
 	
+	/**
+	 * Messaggio da inviare al server così com'è, senza passare dal pipeline dei messaggi in uscita.
+	 */
+	message_to_server,
+	
 	/**
 	 * Messaggio ricevuto sulla socket dal server.
 	 */
 	message_from_server,
 	
 	/**
-	 * Messaggio ricevuto sulla seriale.
+	 * Messaggio ricevuto sulla seriale, il payload è un oggetto {@link io.SerialMessage}.
 	 */
 	message_from_serial,
 	
@@ -40,7 +58,13 @@ public enum EventType {
 	exit_action,
 	
 	/**
-	 * Chiusura della connessione sulla seriale.
+	 * Invio immediato dei messaggi in attesa nei buffer di uscita (lotto compresso diretto al server).
+	 */
+	flush_action,
+	
+	/**
+	 * Chiusura della connessione sulla seriale. 
+	 * Il payload opzionale è l'id del dispositivo da chiudere, se assente vengono chiusi tutti i dispositivi.
 	 */
 	close_serial_connection,
 	
@@ -2,32 +2,133 @@ package event;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 import io.ArduinoCommunication;
+import io.FramedLink;
+import io.SerialConnectionService;
+import io.SerialMessage;
 import net.EndPoint;
 import net.MyNetEventHandler;
+import net.PubSubServer;
+import net.RawBridge;
 import net.ServerConnectionService;
+import net.UplinkSpool;
+import pipeline.Pipeline;
+import telemetry.HistoryStore;
+import telemetry.LastValueCache;
+import utilities.Scheduler;
+import utilities.Tracer;
 
 /**
  * 
  * @author Gabriele Giunchi
  * 
  * Event handler specifico dell'applicazione. 
- * Si occupa di fare da ponte tra il server ed Arduino
+ * Si occupa di fare da ponte tra il server e uno o più dispositivi Arduino.
+ * I messaggi ricevuti dai dispositivi vengono inoltrati al server etichettati con l'id del dispositivo,
+ * quelli ricevuti dal server vengono instradati in base al prefisso {@code <id>:}
+ * 
+ * Se la connessione con un dispositivo viene persa, la porta viene riaperta in background
+ * (vedi {@link SerialConnectionService}) e i messaggi diretti al dispositivo vengono trattenuti
+ * fino alla riconnessione.
+ * 
+ * Se è configurato un {@link UplinkSpool}, i messaggi che non possono essere inviati al server 
+ * vengono memorizzati su disco e inviati appena la connessione viene ristabilita.
+ * 
+ * I messaggi in entrambe le direzioni attraversano un {@link Pipeline} configurabile 
+ * che può filtrarli, trasformarli o arricchirli.
+ * 
+ * Se è configurata una {@link LastValueCache}, le richieste {@code get <chiave>} del server vengono
+ * soddisfatte dalla cache quando il valore è ancora valido.
+ * 
+ * La frequenza dei messaggi in ciascuna direzione può essere limitata (vedi {@link RateLimits}):
+ * i messaggi oltre il limite vengono scartati oppure rielaborati al termine del ritardo assegnato.
+ * 
+ * Prima della chiusura l'handler può essere svuotato con {@link #drain(long)}, per inviare entro un tempo massimo
+ * i messaggi già ricevuti.
  *
  */
 public final class MyEventHandler implements EventHandler {
 	
-	private EndPoint server;
-	private ArduinoCommunication arduino;
+	private static final int MAX_HELD_MESSAGES = 1000;
+	private static final long POLL_TIME = TimeUnit.MILLISECONDS.toNanos(Scheduler.TICK);
+	
+	private final Map<String, ArduinoCommunication> devices;
+	private final Map<String, Queue<String>> held;
+	private final Map<String, RawBridge> bridges;
+	private final RateLimits uplinkLimits;
+	private final RateLimits downlinkLimits;
+	private final Postponed uplinkPostponed;
+	private final Postponed downlinkPostponed;
+	private final EventDispatcher dispatcher;
+	private final ServerConnectionService serverConnection;
+	private final SerialConnectionService serialConnection;
+	private final AtomicInteger delayed;
+	private volatile EndPoint server;
+	private volatile UplinkSpool spool;
+	private volatile Pipeline uplink;
+	private volatile Pipeline downlink;
+	private volatile LastValueCache cache;
+	private volatile HistoryStore history;
+	private volatile PubSubServer pubSub;
+	private volatile int compressionBytes;
+	private volatile long compressionDelay;
+	private volatile boolean draining;
+	
+	/**
+	 * Costruisce un event handler senza dispositivi collegati che usa il dispatcher e i servizi di connessione 
+	 * dell'applicazione.
+	 */
+	public MyEventHandler() {
+		this(EventDispatcher.getDispatcher(), ServerConnectionService.getInstance(), SerialConnectionService.getInstance());
+	}
+	
+	/**
+	 * Costruisce un event handler senza dispositivi collegati.
+	 * @param dispatcher : event dispatcher a cui vengono inviati gli eventi generati dall'handler
+	 * @param serverConnection : servizio usato per riconnettersi al server
+	 * @param serialConnection : servizio usato per riconnettersi ai dispositivi
+	 */
+	public MyEventHandler(final EventDispatcher dispatcher, final ServerConnectionService serverConnection, 
+			final SerialConnectionService serialConnection) {
+		this.dispatcher = dispatcher;
+		this.serverConnection = serverConnection;
+		this.serialConnection = serialConnection;
+		this.devices = new ConcurrentHashMap<>();
+		this.held = new ConcurrentHashMap<>();
+		this.bridges = new ConcurrentHashMap<>();
+		this.uplinkLimits = new RateLimits();
+		this.downlinkLimits = new RateLimits();
+		this.uplinkPostponed = new Postponed();
+		this.downlinkPostponed = new Postponed();
+		this.uplink = Pipeline.EMPTY;
+		this.downlink = Pipeline.EMPTY;
+		this.delayed = new AtomicInteger();
+	}
 	
 	/**
-	 * Setta l'oggetto {@link ArduinoCommunication} con cui è possibile comunicare con Arduino.
+	 * Aggiunge un dispositivo con cui è possibile comunicare. 
+	 * Se esiste già un dispositivo con lo stesso id viene sostituito.
 	 * @param arduino : istanza di {@link ArduinoCommunication}
 	 */
-	public void setArduino(final ArduinoCommunication arduino) {
-		this.arduino = arduino;
+	public void addDevice(final ArduinoCommunication arduino) {
+		final ArduinoCommunication old = this.devices.put(arduino.getId(), arduino);
+		if (old != null && old != arduino && !old.isClosed()) {
+			old.closeConnection();
+		}
 	}
 	
 	/**
@@ -38,12 +139,169 @@ public final class MyEventHandler implements EventHandler {
 		this.server = server;
 	}
 	
+	/**
+	 * Abilita la compressione dei messaggi diretti al server, anche per le connessioni successive.
+	 * @param maxBytes : dimensione oltre la quale un lotto viene inviato, 0 per disabilitare la compressione
+	 * @param maxDelay : tempo massimo in millisecondi per cui un messaggio può restare nel lotto
+	 * @throws IOException se si verifica un errore I/O nell'invio dei messaggi già accumulati
+	 */
+	public void setCompression(final int maxBytes, final long maxDelay) throws IOException {
+		this.compressionBytes = maxBytes;
+		this.compressionDelay = maxDelay;
+		final EndPoint current = this.server;
+		if (current != null && !current.isClosed()) {
+			current.setCompression(maxBytes, maxDelay);
+		}
+	}
+	
+	/**
+	 * Setta la coda su disco usata per i messaggi diretti al server mentre la connessione non è disponibile.
+	 * @param spool : istanza di {@link UplinkSpool}, null per scartare i messaggi
+	 */
+	public void setSpool(final UplinkSpool spool) {
+		this.spool = spool;
+	}
+	
+	/**
+	 * 
+	 * @return coda su disco dei messaggi diretti al server
+	 */
+	public Optional<UplinkSpool> getSpool() {
+		return Optional.ofNullable(this.spool);
+	}
+	
+	/**
+	 * Setta la cache degli ultimi valori ricevuti dai dispositivi.
+	 * @param cache : oggetto {@link LastValueCache}, null per inoltrare sempre le richieste ai dispositivi
+	 */
+	public void setCache(final LastValueCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * 
+	 * @return cache degli ultimi valori ricevuti dai dispositivi
+	 */
+	public Optional<LastValueCache> getCache() {
+		return Optional.ofNullable(this.cache);
+	}
+	
+	/**
+	 * Setta l'archivio in cui vengono memorizzati i valori ricevuti dai dispositivi.
+	 * @param history : oggetto {@link HistoryStore}, null per non memorizzare i valori
+	 */
+	public void setHistory(final HistoryStore history) {
+		this.history = history;
+	}
+	
+	/**
+	 * 
+	 * @return archivio dei valori ricevuti dai dispositivi
+	 */
+	public Optional<HistoryStore> getHistory() {
+		return Optional.ofNullable(this.history);
+	}
+	
+	/**
+	 * Setta il server publish/subscribe su cui vengono pubblicati i dati ricevuti dai dispositivi.
+	 * @param pubSub : oggetto {@link PubSubServer}, null per non pubblicare i dati
+	 */
+	public void setPubSubServer(final PubSubServer pubSub) {
+		this.pubSub = pubSub;
+	}
+	
 	/**
 	 * 
-	 * @return istanza di {@link ArduinoCommunication} usata per la comunicazione con Arduino
+	 * @return server publish/subscribe
 	 */
-	public Optional<ArduinoCommunication> getArduinoCommunication() {
-		return Optional.ofNullable(this.arduino);
+	public Optional<PubSubServer> getPubSubServer() {
+		return Optional.ofNullable(this.pubSub);
+	}
+	
+	/**
+	 * 
+	 * @return limiti di frequenza dei messaggi ricevuti dai dispositivi
+	 */
+	public RateLimits getUplinkLimits() {
+		return this.uplinkLimits;
+	}
+	
+	/**
+	 * 
+	 * @return limiti di frequenza dei messaggi diretti ai dispositivi
+	 */
+	public RateLimits getDownlinkLimits() {
+		return this.downlinkLimits;
+	}
+	
+	/**
+	 * Setta il pipeline applicato ai messaggi ricevuti dai dispositivi.
+	 * @param uplink : oggetto {@link Pipeline}
+	 */
+	public void setUplinkPipeline(final Pipeline uplink) {
+		this.uplink = uplink;
+	}
+	
+	/**
+	 * Setta il pipeline applicato ai messaggi diretti ai dispositivi.
+	 * @param downlink : oggetto {@link Pipeline}
+	 */
+	public void setDownlinkPipeline(final Pipeline downlink) {
+		this.downlink = downlink;
+	}
+	
+	/**
+	 * 
+	 * @return pipeline applicato ai messaggi ricevuti dai dispositivi
+	 */
+	public Pipeline getUplinkPipeline() {
+		return this.uplink;
+	}
+	
+	/**
+	 * 
+	 * @return pipeline applicato ai messaggi diretti ai dispositivi
+	 */
+	public Pipeline getDownlinkPipeline() {
+		return this.downlink;
+	}
+	
+	/**
+	 * 
+	 * @param id : identificativo del dispositivo
+	 * @return istanza di {@link ArduinoCommunication} usata per la comunicazione con il dispositivo dato
+	 */
+	public Optional<ArduinoCommunication> getDevice(final String id) {
+		return Optional.ofNullable(this.devices.get(id));
+	}
+	
+	/**
+	 * 
+	 * @return dispositivi attualmente gestiti
+	 */
+	public Collection<ArduinoCommunication> getDevices() {
+		return Collections.unmodifiableCollection(this.devices.values());
+	}
+	
+	/**
+	 * Aggiunge un tunnel tra una seriale e una socket, chiudendo l'eventuale tunnel con lo stesso id.
+	 * I dispositivi collegati tramite tunnel non ricevono i messaggi diretti alla seriale.
+	 * @param bridge : oggetto {@link RawBridge}
+	 */
+	public void addBridge(final RawBridge bridge) {
+		final RawBridge old = this.bridges.put(bridge.getId(), bridge);
+		if (old != null && old != bridge) {
+			old.close();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return tunnel attivi
+	 */
+	public Collection<RawBridge> getBridges() {
+		this.bridges.values().removeIf(RawBridge::isClosed);
+		return Collections.unmodifiableCollection(this.bridges.values());
 	}
 	
 	/**
@@ -54,45 +312,185 @@ public final class MyEventHandler implements EventHandler {
 		return Optional.ofNullable(this.server);
 	}
 
+	/**
+	 * Svuota il bridge prima della chiusura, in modo che i messaggi già ricevuti non vengano persi.
+	 * 
+	 * La ricezione dai dispositivi e dal server viene interrotta (le connessioni restano aperte per l'invio)
+	 * insieme ai tentativi di riconnessione ai dispositivi; poi si attende che il dispatcher abbia gestito 
+	 * gli eventi in coda e i messaggi ritardati dai limitatori di frequenza, viene inviato il lotto compresso 
+	 * in attesa (vedi {@link EventType#flush_action}) e si attende la conferma dei frame in volo verso i dispositivi.
+	 * Quello che resta alla scadenza del tempo massimo viene conteggiato come abbandonato e gli eventi
+	 * ancora in coda vengono scartati, per cui la chiusura non attende la loro gestione.
+	 * Le connessioni vanno poi chiuse con l'evento {@link EventType#exit_action}.
+	 * 
+	 * Deve essere invocato da un thread diverso da quelli che gestiscono gli eventi del dispatcher.
+	 * @param timeout : tempo massimo in millisecondi
+	 * @return resoconto dello svuotamento
+	 */
+	public DrainReport drain(final long timeout) {
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+		final long handled = this.dispatcher.getHandledCount();
+		
+		// i dispositivi e le connessioni stabiliti da qui in poi vengono silenziati dai rispettivi eventi
+		this.draining = true;
+		this.serialConnection.stopAll();
+		this.devices.values().forEach(ArduinoCommunication::stopReceiving);
+		final EndPoint endPoint = this.server;
+		if (endPoint != null) {
+			endPoint.stopReceiving();
+		}
+		
+		this.awaitIdle(deadline);
+		final int queued = this.dispatcher.discardEvents();
+		
+		// il lotto compresso viene inviato dal dispatcher, per non bloccare questo thread se il server non legge
+		this.dispatcher.dispatchEvent(new Event(EventType.flush_action));
+		this.awaitIdle(deadline);
+		
+		int unacknowledged = 0;
+		for (final ArduinoCommunication d : this.devices.values()) {
+			final FramedLink link = d.getFramedLink().orElse(null);
+			while (link != null && !d.isClosed() && System.nanoTime() < deadline 
+					&& link.getBacklog() + link.getInFlight() > 0) {
+				LockSupport.parkNanos(POLL_TIME);
+			}
+			if (link != null && !d.isClosed()) {
+				unacknowledged += link.getBacklog() + link.getInFlight();
+			}
+		}
+		
+		final UplinkSpool currentSpool = this.spool;
+		return new DrainReport(this.dispatcher.getHandledCount() - handled, queued, 
+				this.delayed.get(), this.held.values().stream().mapToInt(Queue::size).sum(), unacknowledged, 
+				currentSpool != null ? currentSpool.getPendingBytes() : 0, 
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+	
+	/**
+	 * Chiude subito la socket del server e i dispositivi senza attendere le scritture in corso, che falliscono
+	 * sbloccando il dispatcher. Da usare quando la chiusura non termina entro il tempo previsto, 
+	 * ad esempio perchè il server ha smesso di leggere.
+	 */
+	public void abort() {
+		final EndPoint current = this.server;
+		if (current != null) {
+			try {
+				current.getSocket().close();
+			} catch (IOException e) {
+				System.err.println("MyEventHandler : " + e.getMessage());
+			}
+		}
+		this.devices.values().stream().filter(d -> !d.isClosed()).forEach(ArduinoCommunication::closeConnection);
+	}
+	
 	@Override
 	public void handleEvent(final Event event) {
 		final EventType type = event.getType();
+		if (event instanceof AdmittedEvent) {
+			((AdmittedEvent) event).postponed.pending.decrementAndGet();
+		}
 		
 		switch(type) {
 			case server_connection_established :
 				if (this.server != null && !this.server.isClosed()) {
-					this.server.closeConnection();
+					this.closeServer();
 				}
 				
 				final Socket socket = (Socket) event.getData().get();
 				try {
-					this.setServer(new EndPoint(socket, new MyNetEventHandler()));
+					final EndPoint endPoint = new EndPoint(socket, new MyNetEventHandler(this.dispatcher));
+					endPoint.setCompression(this.compressionBytes, this.compressionDelay);
+					if (this.draining) {
+						endPoint.stopReceiving();
+					}
+					this.setServer(endPoint);
+					this.drainSpool();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 				break;
 			
 			case server_connection_lost:
-				this.server.closeConnection();
+				this.closeServer();
 				final String ip = this.server.getSocket().getInetAddress().getHostAddress();
 				final int port = this.server.getSocket().getPort();
-				ServerConnectionService.getInstance().connect(ip, port);
+				if (!this.draining) {
+					this.serverConnection.connect(ip, port);
+				}
 				break;
 				
-			case message_from_serial : 
-				if (this.server != null) {
-					try {
-						this.server.sendMessage((String) event.getData().get());
-					} catch (IOException e) {
-						System.err.println("MyEventHandler : " + e.getMessage());
+			case serial_connection_established :
+				final ArduinoCommunication arduino = (ArduinoCommunication) event.getData().get();
+				if (this.draining) {
+					arduino.stopReceiving();
+				}
+				this.addDevice(arduino);
+				final Queue<String> messages = this.held.remove(arduino.getId());
+				if (messages != null) {
+					messages.forEach(m -> this.write(arduino, m, true));
+				}
+				break;
+				
+			case serial_connection_lost :
+				final String id = (String) event.getData().get();
+				this.getDevice(id).ifPresent(d -> {
+					this.closeDevice(d);
+					if (d.getSerialPort() != null && !this.draining) {
+						this.held.put(id, new ArrayDeque<>());
+						this.serialConnection
+							.reconnect(id, d.getPortName(), d.getBaud(), d.getProbe(), d.getReadyTimeout(), d.getProtocol());
 					}
+				});
+				break;
+				
+			case message_from_serial : 
+				final SerialMessage serial = (SerialMessage) event.getData().get();
+				if (!this.admit(event, this.uplinkLimits, this.uplinkPostponed, serial.getDeviceId())) {
+					break;
 				}
+				if (event.getTrace() != null) {
+					event.getTrace().stamp(Tracer.Stage.handle);
+				}
+				final LastValueCache currentCache = this.cache;
+				if (currentCache != null) {
+					currentCache.update(serial);
+				}
+				final HistoryStore currentHistory = this.history;
+				if (currentHistory != null) {
+					currentHistory.append(serial);
+				}
+				final PubSubServer currentPubSub = this.pubSub;
+				if (currentPubSub != null) {
+					currentPubSub.publish(serial);
+				}
+				final String text = this.uplink.process(serial.getDeviceId(), serial.getText());
+				if (text != null) {
+					this.sendToServer(text == serial.getText() 
+							? serial.toString() 
+							: new SerialMessage(serial.getDeviceId(), text).toString(), event.getTrace());
+				}
+				break;
+				
+			case message_to_server :
+				this.sendToServer((String) event.getData().get(), null);
 				break;
 				
 			case message_from_server: 
-				if (this.arduino != null && this.arduino.isReady()) {
+				final String request = (String) event.getData().get();
+				final LastValueCache requestCache = this.cache;
+				final Optional<String> cached = requestCache != null ? requestCache.answer(request) : Optional.empty();
+				if (cached.isPresent()) {
+					this.sendToServer(cached.get(), null);
+				} else if (this.admit(event, this.downlinkLimits, this.downlinkPostponed, targetOf(request))) {
+					this.route(this.downlink.process(null, request), false);
+				}
+				break;
+				
+			case flush_action :
+				if (this.server != null && !this.server.isClosed()) {
 					try {
-						this.arduino.writeString((String) event.getData().get());
+						this.server.flush();
 					} catch (IOException e) {
 						System.err.println("MyEventHandler : " + e.getMessage());
 					}
@@ -100,30 +498,54 @@ public final class MyEventHandler implements EventHandler {
 				break;
 				
 			case exit_action :
-				this.arduino.closeConnection();
-				this.server.closeConnection();
-				EventDispatcher.getDispatcher().terminate();
+				this.stopReconnecting();
+				this.serverConnection.stopRunning();
+				this.closeDevices();
+				if (this.server != null) {
+					this.closeServer();
+				}
+				final HistoryStore exitHistory = this.history;
+				if (exitHistory != null) {
+					exitHistory.close();
+				}
+				final PubSubServer exitPubSub = this.pubSub;
+				if (exitPubSub != null) {
+					exitPubSub.close();
+				}
+				this.dispatcher.terminate();
 				break;
 				
-			case close_serial_connection : this.arduino.closeConnection(); break;
+			case close_serial_connection : 
+				if (event.getData().isPresent()) {
+					final String device = (String) event.getData().get();
+					this.serialConnection.stopRunning(device);
+					this.held.remove(device);
+					this.getDevice(device).ifPresent(this::closeDevice);
+					final RawBridge bridge = this.bridges.remove(device);
+					if (bridge != null) {
+						bridge.close();
+					}
+				} else {
+					this.stopReconnecting();
+					this.closeDevices(); 
+				}
+				break;
 			
 			case close_server_connection: 
-				this.server.closeConnection(); 
-				ServerConnectionService.getInstance().stopRunning();
+				this.closeServer(); 
+				this.serverConnection.stopRunning();
 				break;
 			
 			case close_all_connections : 
-				this.arduino.closeConnection();
-				this.server.closeConnection(); 
+				this.stopReconnecting();
+				this.closeDevices();
+				this.closeServer(); 
 				break;
 		
 			case message_to_serial:
-				if (this.arduino != null) {
-					try {
-						this.arduino.writeString((String) event.getData().get());
-					} catch (IOException e) {
-						EventDispatcher.getDispatcher().dispatchEvent(new Event(EventType.close_all_connections));
-					}
+				final String message = (String) event.getData().get();
+				if (this.admit(event, this.downlinkLimits, this.downlinkPostponed, targetOf(message))) {
+					this.route(this.downlink.process(null, message), true);
 				}
 				break;		
 				
@@ -135,4 +557,272 @@ public final class MyEventHandler implements EventHandler {
 	public boolean isTriggered(final Event e) {
 		return Arrays.asList(EventType.values()).contains(e.getType());
 	}
+	
+	/*
+	 * Applica i limiti di frequenza di una direzione. I messaggi ritardati vengono accodati in ordine di arrivo
+	 * e ogni scadenza rimette in coda al dispatcher il più vecchio come evento già ammesso: l'ordine non dipende
+	 * quindi dall'arrotondamento dei ritardi al tick dello Scheduler. Finchè ci sono messaggi ritardati non ancora
+	 * elaborati anche i messaggi ammessi subito vengono accodati, per non superare quelli precedenti.
+	 */
+	private boolean admit(final Event event, final RateLimits limits, final Postponed postponed, final String device) {
+		if (event instanceof AdmittedEvent || (limits.isEmpty() && postponed.pending.get() == 0)) {
+			return true;
+		}
+		
+		final long wait = limits.isEmpty() ? 0 : limits.acquire(device);
+		if (wait < 0) {
+			return false;
+		} else if (wait == 0 && postponed.pending.get() == 0) {
+			return true;
+		}
+		
+		postponed.events.add(event);
+		postponed.pending.incrementAndGet();
+		this.delayed.incrementAndGet();
+		Scheduler.getScheduler().schedule(() -> {
+			this.delayed.decrementAndGet();
+			this.dispatcher.dispatchEvent(new AdmittedEvent(postponed.events.poll(), postponed));
+		}, TimeUnit.NANOSECONDS.toMillis(wait + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+		return false;
+	}
+	
+	private static String targetOf(final String message) {
+		final int separator = message.indexOf(SerialMessage.SEPARATOR);
+		return separator > 0 ? message.substring(0, separator) : null;
+	}
+	
+	/**
+	 * Inoltra un messaggio ai dispositivi. Se il messaggio inizia con {@code <id>:} e l'id corrisponde 
+	 * ad un dispositivo, il resto del messaggio viene inviato solo a quel dispositivo, 
+	 * altrimenti il messaggio viene inviato a tutti i dispositivi.
+	 * I messaggi destinati ad un dispositivo in fase di riconnessione vengono trattenuti.
+	 * I messaggi scartati dal pipeline (null) vengono ignorati.
+	 */
+	private void route(final String message, final boolean closeOnError) {
+		if (message == null) {
+			return;
+		}
+		
+		final int separator = message.indexOf(SerialMessage.SEPARATOR);
+		final String id = separator > 0 ? message.substring(0, separator) : null;
+		final ArduinoCommunication target = id != null ? this.devices.get(id) : null;
+		
+		if (target != null) {
+			this.write(target, message.substring(separator + 1), closeOnError);
+		} else if (id != null && this.held.containsKey(id)) {
+			this.hold(id, message.substring(separator + 1));
+		} else {
+			this.devices.values().forEach(d -> this.write(d, message, closeOnError));
+			this.held.keySet().forEach(h -> this.hold(h, message));
+		}
+	}
+	
+	/*
+	 * Se la connessione non è disponibile, o ci sono ancora messaggi memorizzati da inviare, il messaggio
+	 * viene accodato su disco per mantenere l'ordine di invio. La coda viene letta una sola volta perchè
+	 * può essere sostituita dalla console.
+	 */
+	private void sendToServer(final String message, final Tracer.Trace trace) {
+		final boolean connected = this.server != null && !this.server.isClosed();
+		final UplinkSpool currentSpool = this.spool;
+		try {
+			if (currentSpool != null && (!connected || !currentSpool.isEmpty())) {
+				currentSpool.append(message);
+				if (connected) {
+					this.drainSpool();
+				}
+			} else if (connected) {
+				this.server.sendMessage(message, true, trace);
+			}
+		} catch (IOException e) {
+			System.err.println("MyEventHandler : " + e.getMessage());
+			// con la compressione il messaggio resta nel lotto e viene messo in coda alla chiusura della connessione
+			if (currentSpool != null && connected && currentSpool.isEmpty() && !this.server.getCompression().isPresent()) {
+				try {
+					currentSpool.append(message);
+				} catch (IOException e1) {
+					System.err.println("MyEventHandler : " + e1.getMessage());
+				}
+			}
+		}
+	}
+	
+	/*
+	 * I messaggi rimasti nel lotto compresso sono già stati considerati inviati: vengono messi in coda su disco
+	 * per essere inviati alla prossima connessione.
+	 */
+	private void closeServer() {
+		final List<String> unsent = this.server.closeConnection();
+		if (unsent.isEmpty()) {
+			return;
+		}
+		
+		final UplinkSpool currentSpool = this.spool;
+		if (currentSpool == null) {
+			System.err.println("MyEventHandler : " + unsent.size() + " batched messages lost, no spool set");
+			return;
+		}
+		try {
+			for (final String message : unsent) {
+				currentSpool.append(message);
+			}
+			System.out.println(unsent.size() + " batched messages kept in the spool");
+		} catch (IOException e) {
+			System.err.println("MyEventHandler : " + e.getMessage());
+		}
+	}
+	
+	private void drainSpool() {
+		final UplinkSpool currentSpool = this.spool;
+		if (currentSpool != null && !currentSpool.isEmpty()) {
+			try {
+				final long sent = currentSpool.drain(m -> this.server.sendMessage(m, false));
+				this.server.flush();
+				System.out.println(sent + " spooled messages sent to the server");
+			} catch (IOException e) {
+				System.err.println("MyEventHandler : " + e.getMessage());
+			}
+		}
+	}
+	
+	private void awaitIdle(final long deadline) {
+		while (System.nanoTime() < deadline && this.dispatcher.isRunning() 
+				&& (!this.dispatcher.isIdle() || this.delayed.get() > 0)) {
+			LockSupport.parkNanos(POLL_TIME);
+		}
+	}
+	
+	private void hold(final String id, final String message) {
+		final Queue<String> queue = this.held.get(id);
+		if (queue.size() >= MAX_HELD_MESSAGES) {
+			queue.poll();
+		}
+		queue.add(message);
+	}
+	
+	private void stopReconnecting() {
+		this.serialConnection.stopAll();
+		this.held.clear();
+	}
+	
+	private void write(final ArduinoCommunication device, final String message, final boolean closeOnError) {
+		try {
+			device.writeString(message);
+		} catch (IOException e) {
+			System.err.println("MyEventHandler : " + e.getMessage());
+			if (closeOnError) {
+				this.dispatcher.dispatchEvent(new Event(EventType.close_serial_connection, device.getId()));
+			}
+		}
+	}
+	
+	private void closeDevice(final ArduinoCommunication device) {
+		this.devices.remove(device.getId(), device);
+		if (!device.isClosed()) {
+			device.closeConnection();
+		}
+	}
+	
+	private void closeDevices() {
+		this.devices.values().forEach(this::closeDevice);
+		this.bridges.values().forEach(RawBridge::close);
+		this.bridges.clear();
+	}
+
+	/**
+	 * 
+	 * Resoconto dello svuotamento eseguito da {@link MyEventHandler#drain(long)}.
+	 *
+	 */
+	public static final class DrainReport {
+		
+		private final long delivered;
+		private final int queued;
+		private final int delayed;
+		private final int held;
+		private final int unacknowledged;
+		private final long spooledBytes;
+		private final long elapsed;
+		
+		DrainReport(final long delivered, final int queued, final int delayed, final int held, 
+				final int unacknowledged, final long spooledBytes, final long elapsed) {
+			this.delivered = delivered;
+			this.queued = queued;
+			this.delayed = delayed;
+			this.held = held;
+			this.unacknowledged = unacknowledged;
+			this.spooledBytes = spooledBytes;
+			this.elapsed = elapsed;
+		}
+		
+		/**
+		 * 
+		 * @return numero di eventi gestiti durante lo svuotamento
+		 */
+		public long getDelivered() {
+			return this.delivered;
+		}
+		
+		/**
+		 * 
+		 * @return numero di messaggi abbandonati: eventi ancora in coda, messaggi ritardati, messaggi trattenuti
+		 * per i dispositivi in riconnessione e frame non confermati
+		 */
+		public int getAbandoned() {
+			return this.queued + this.delayed + this.held + this.unacknowledged;
+		}
+		
+		/**
+		 * 
+		 * @return byte dei messaggi rimasti nello spool, che verranno inviati al prossimo avvio
+		 */
+		public long getSpooledBytes() {
+			return this.spooledBytes;
+		}
+		
+		/**
+		 * 
+		 * @return durata dello svuotamento in millisecondi
+		 */
+		public long getElapsed() {
+			return this.elapsed;
+		}
+		
+		@Override
+		public String toString() {
+			return this.delivered + " events delivered, " + this.getAbandoned() + " messages abandoned (" 
+					+ this.queued + " queued, " + this.delayed + " delayed, " + this.held + " held, " 
+					+ this.unacknowledged + " unacknowledged frames), " + this.spooledBytes + " bytes kept in the spool, " 
+					+ this.elapsed + " ms";
+		}
+	}
+	
+	/**
+	 * 
+	 * Evento già ammesso dai limitatori di frequenza, elaborato al termine del suo ritardo.
+	 * Mantiene la traccia dell'evento originale, per cui il ritardo compare negli istogrammi del {@link Tracer}.
+	 *
+	 */
+	private static final class AdmittedEvent extends Event {
+		
+		private final Postponed postponed;
+		
+		AdmittedEvent(final Event event, final Postponed postponed) {
+			super(event.getType(), event.getData().orElse(null));
+			this.setTrace(event.getTrace());
+			this.postponed = postponed;
+		}
+	}
+	
+	/**
+	 * 
+	 * Messaggi di una direzione ritardati dai limitatori di frequenza, in ordine di arrivo.
+	 * Il contatore comprende anche i messaggi già rimessi in coda al dispatcher e non ancora elaborati.
+	 *
+	 */
+	private static final class Postponed {
+		
+		private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger pending = new AtomicInteger();
+	}
 }
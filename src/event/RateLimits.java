@@ -0,0 +1,104 @@
+package event;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import utilities.RateLimiter;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Insieme dei limitatori di frequenza di una direzione (messaggi verso il server o verso i dispositivi):
+ * un limitatore comune a tutti i messaggi e un limitatore opzionale per ogni dispositivo.
+ * Un messaggio viene ammesso solo se è ammesso da entrambi i limitatori che lo riguardano;
+ * un messaggio scartato dal limitatore comune non consuma il limite del dispositivo.
+ *
+ */
+public final class RateLimits {
+
+	/**
+	 * Chiave con cui viene indicato il limitatore comune a tutti i dispositivi.
+	 */
+	public static final String ALL = "*";
+
+	private final Map<String, RateLimiter> limiters;
+	private volatile RateLimiter all;
+
+	/**
+	 * Crea un insieme senza limiti.
+	 */
+	public RateLimits() {
+		this.limiters = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Setta un limitatore.
+	 * @param device : id del dispositivo, null o {@link #ALL} per il limitatore comune
+	 * @param limiter : oggetto {@link RateLimiter}, null per rimuovere il limite
+	 */
+	public void set(final String device, final RateLimiter limiter) {
+		if (device == null || ALL.equals(device)) {
+			this.all = limiter;
+		} else if (limiter == null) {
+			this.limiters.remove(device);
+		} else {
+			this.limiters.put(device, limiter);
+		}
+	}
+
+	/**
+	 * Prova ad ammettere un messaggio.
+	 * @param device : id del dispositivo a cui si riferisce il messaggio, null se non è noto
+	 * @return -1 se il messaggio deve essere scartato, altrimenti il ritardo in nanosecondi 
+	 * con cui il messaggio deve essere elaborato
+	 */
+	public long acquire(final String device) {
+		long wait = 0;
+		final RateLimiter limiter = device != null ? this.limiters.get(device) : null;
+		if (limiter != null) {
+			wait = limiter.acquire();
+			if (wait < 0) {
+				return wait;
+			}
+		}
+
+		final RateLimiter common = this.all;
+		if (common != null) {
+			final long commonWait = common.acquire();
+			if (commonWait < 0) {
+				// il messaggio viene scartato: il token del dispositivo non deve andare perso
+				if (limiter != null) {
+					limiter.release(wait);
+				}
+				return commonWait;
+			}
+			return Math.max(wait, commonWait);
+		}
+
+		return wait;
+	}
+
+	/**
+	 *
+	 * @return true se non è settato alcun limite
+	 */
+	public boolean isEmpty() {
+		return this.all == null && this.limiters.isEmpty();
+	}
+
+	/**
+	 *
+	 * @return limitatori settati, il limitatore comune ha chiave {@link #ALL}
+	 */
+	public Map<String, RateLimiter> getLimiters() {
+		final Map<String, RateLimiter> result = new TreeMap<>(this.limiters);
+		final RateLimiter common = this.all;
+		if (common != null) {
+			result.put(ALL, common);
+		}
+		return Collections.unmodifiableMap(result);
+	}
+}
@@ -5,15 +5,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.TooManyListenersException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import event.Event;
 import event.EventDispatcher;
 import event.EventType;
-import gnu.io.NoSuchPortException;
-import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
-import utilities.Utilities;
+import jfr.Recorders;
+import utilities.Log;
+import utilities.Scheduler;
+import utilities.Tracer;
 
 /**
  * 
@@ -21,39 +27,236 @@ import utilities.Utilities;
  * 
  * Classe che incapsula al suo interno le operazioni elementari per stabilire una connessione seriale 
  * con un dispostivo Arduino e comunicare con esso. 
+ * 
+ * Il dispositivo è considerato pronto quando invia la prima riga (banner o risposta al messaggio di probe).
+ * Se il dispositivo non risponde entro il timeout dato viene comunque considerato pronto.
+ * I messaggi inviati prima che il dispositivo sia pronto vengono accodati e spediti appena possibile.
+ * 
+ * Se la connessione si interrompe viene creato un evento {@link EventType#serial_connection_lost}.
+ * 
+ * La comunicazione può avvenire a righe di testo oppure con frame binari protetti da CRC 
+ * e ritrasmessi in caso di errore (vedi {@link SerialProtocol} e {@link FramedLink}).
+ * In modalità {@link SerialProtocol#raw} la seriale non viene letta, il dispositivo è subito pronto
+ * e gli stream della porta possono essere usati direttamente.
+ * 
+ * Ogni connessione è identificata da un id con cui vengono etichettati i messaggi ricevuti (vedi {@link SerialMessage}).
+ * 
+ * Al posto della porta seriale la connessione può usare una coppia di stream qualsiasi (ad esempio un dispositivo
+ * simulato o un convertitore seriale-TCP): in questo caso la lettura è bloccante e termina alla chiusura dello stream.
  *
  */
 public final class ArduinoCommunication {
 	
-	private static final long WAITING_TIME = 2000;
+	/**
+	 * Timeout di default dopo il quale il dispositivo viene considerato pronto anche senza handshake.
+	 */
+	public static final long WAITING_TIME = 2000;
+	private static final long PROBE_INTERVAL = 250;
+	private static final Log.Type SERIAL_IN = Log.type("serial.in");
+	private static final Log.Type SERIAL_OUT = Log.type("serial.out");
 	
 	private final SerialPort serialPort;
 	private final InputStream input;
 	private final OutputStream output;
+	private final String id;
 	private final String portName;
-	private final long started;
+	private final int baud;
+	private final long timeout;
+	private final SerialProtocol protocol;
+	private final FramedLink link;
 	private final ReadThread readThread;
-	private boolean closed;
+	private final CompletableFuture<ArduinoCommunication> ready;
+	private final Queue<String> pending;
+	private final Scheduler.Timeout readyTimeout;
+	private final String probe;
+	private final EventDispatcher dispatcher;
+	private volatile boolean closed;
+	private volatile boolean muted;
+	
+	/**
+	 * 
+	 * @param port nome della porta seriale su cui si vuole instaurare una connessione
+	 * @param baud bit rade desiderato
+	 * @throws IOException se la porta non può essere aperta (vedi {@link SerialPorts#open(String, int)})
+	 * o si verifica un errore I/O
+	 */
+	public ArduinoCommunication(final String port, final int baud) throws IOException {
+		
+		this(defaultId(port), port, baud, null, WAITING_TIME, SerialProtocol.text);
+	}
+	
+	/**
+	 * 
+	 * @param id identificativo del dispositivo
+	 * @param port nome della porta seriale su cui si vuole instaurare una connessione
+	 * @param baud bit rade desiderato
+	 * @param probe messaggio inviato periodicamente finchè il dispositivo non risponde, null se 
+	 * si attende un banner spontaneo
+	 * @param timeout tempo massimo in millisecondi dopo il quale il dispositivo viene comunque considerato pronto
+	 * @param protocol protocollo usato sulla seriale
+	 * @throws IOException se la porta non può essere aperta (vedi {@link SerialPorts#open(String, int)})
+	 * o si verifica un errore I/O
+	 */
+	public ArduinoCommunication(final String id, final String port, final int baud, final String probe, 
+			final long timeout, final SerialProtocol protocol) 
+			throws IOException {
+		
+		this(id, port, baud, probe, timeout, protocol, EventDispatcher.getDispatcher());
+	}
 	
 	/**
 	 * 
+	 * @param id identificativo del dispositivo
 	 * @param port nome della porta seriale su cui si vuole instaurare una connessione
 	 * @param baud bit rade desiderato
-	 * @throws NoSuchPortException se la porta non esiste
-	 * @throws PortInUseException se la porta è in uso
+	 * @param probe messaggio inviato periodicamente finchè il dispositivo non risponde, null se 
+	 * si attende un banner spontaneo
+	 * @param timeout tempo massimo in millisecondi dopo il quale il dispositivo viene comunque considerato pronto
+	 * @param protocol protocollo usato sulla seriale
+	 * @param dispatcher event dispatcher a cui vengono inviati i messaggi ricevuti
+	 * @throws IOException se la porta non può essere aperta (vedi {@link SerialPorts#open(String, int)})
+	 * o si verifica un errore I/O
+	 */
+	public ArduinoCommunication(final String id, final String port, final int baud, final String probe, 
+			final long timeout, final SerialProtocol protocol, final EventDispatcher dispatcher) 
+			throws IOException {
+		
+		this(id, SerialPorts.open(port, baud), port, baud, null, null, probe, timeout, protocol, dispatcher);
+	}
+	
+	/**
+	 * 
+	 * @param id identificativo del dispositivo
+	 * @param input stream da cui vengono letti i dati del dispositivo
+	 * @param output stream su cui vengono scritti i dati per il dispositivo
+	 * @param probe messaggio inviato periodicamente finchè il dispositivo non risponde, null se 
+	 * si attende un banner spontaneo
+	 * @param timeout tempo massimo in millisecondi dopo il quale il dispositivo viene comunque considerato pronto
+	 * @param protocol protocollo usato sullo stream
+	 * @param dispatcher event dispatcher a cui vengono inviati i messaggi ricevuti
 	 * @throws IOException se si verifica un errore I/O
-	 * @throws UnsupportedCommOperationException se l'operazione non è supportata dalla libreria rxtx
 	 */
-	public ArduinoCommunication(final String port, final int baud) throws NoSuchPortException, PortInUseException, 
-				IOException, UnsupportedCommOperationException {
+	public ArduinoCommunication(final String id, final InputStream input, final OutputStream output, 
+			final String probe, final long timeout, final SerialProtocol protocol, final EventDispatcher dispatcher) 
+			throws IOException {
 		
-		this.serialPort = Utilities.createSerialPort(port, baud);
-		this.input = this.serialPort.getInputStream();
-		this.output = this.serialPort.getOutputStream();
+		this(id, null, id, 0, input, output, probe, timeout, protocol, dispatcher);
+	}
+	
+	private ArduinoCommunication(final String id, final SerialPort serialPort, final String port, final int baud, 
+			final InputStream input, final OutputStream output, final String probe, final long timeout, 
+			final SerialProtocol protocol, final EventDispatcher dispatcher) throws IOException {
+		
+		this.id = id;
+		this.dispatcher = dispatcher;
+		this.serialPort = serialPort;
+		this.input = serialPort != null ? serialPort.getInputStream() : input;
+		this.output = serialPort != null ? serialPort.getOutputStream() : output;
 		this.portName = port;
+		this.baud = baud;
+		this.timeout = timeout;
+		this.protocol = protocol;
 		this.readThread = new ReadThread(this.input);
-		this.started = System.currentTimeMillis();
+		this.link = protocol == SerialProtocol.framed 
+				? new FramedLink(this.output, message -> this.readThread.lineReceived(new String(message))) 
+				: null;
+		this.ready = new CompletableFuture<>();
+		this.pending = new ConcurrentLinkedQueue<>();
+		this.probe = probe;
+		// allo scadere del timeout vengono scritti i messaggi accodati, per cui non viene eseguito sul thread della ruota
+		this.readyTimeout = Scheduler.getScheduler().scheduleBlocking(() -> {
+			if (!this.ready.isDone()) {
+				System.out.println("No handshake from " + this.portName + ", assuming device ready");
+				this.markReady();
+			}
+		}, timeout);
+		
+		if (protocol == SerialProtocol.raw) {
+			this.markReady();
+			return;
+		}
+		
+		if (this.serialPort != null) {
+			try {
+				// il thread di lettura resta fermo finchè la libreria rxtx non segnala l'arrivo di dati
+				this.serialPort.addEventListener(e -> LockSupport.unpark(this.readThread));
+				this.serialPort.notifyOnDataAvailable(true);
+			} catch (TooManyListenersException e) {
+				this.readyTimeout.cancel();
+				this.serialPort.close();
+				throw new IOException(e);
+			}
+		}
+		
 		this.readThread.start();
+		if (this.probe != null) {
+			this.sendProbe();
+		}
+	}
+	
+	/**
+	 * Ricava un identificativo di default dal nome della porta (ad esempio "ttyACM0" da "/dev/ttyACM0").
+	 * @param port nome della porta seriale
+	 * @return identificativo del dispositivo
+	 */
+	public static String defaultId(final String port) {
+		return port.substring(Math.max(port.lastIndexOf('/'), port.lastIndexOf('\\')) + 1);
+	}
+	
+	/**
+	 * 
+	 * @return identificativo del dispositivo
+	 */
+	public String getId() {
+		return this.id;
+	}
+	
+	/**
+	 * 
+	 * @return nome della porta seriale, o l'identificativo se la connessione usa degli stream
+	 */
+	public String getPortName() {
+		return this.portName;
+	}
+	
+	/**
+	 * 
+	 * @return bit rate della connessione, 0 se la connessione usa degli stream
+	 */
+	public int getBaud() {
+		return this.baud;
+	}
+	
+	/**
+	 * 
+	 * @return messaggio di probe usato per l'handshake, null se non presente
+	 */
+	public String getProbe() {
+		return this.probe;
+	}
+	
+	/**
+	 * 
+	 * @return timeout dell'handshake in millisecondi
+	 */
+	public long getReadyTimeout() {
+		return this.timeout;
+	}
+	
+	/**
+	 * 
+	 * @return protocollo usato sulla seriale
+	 */
+	public SerialProtocol getProtocol() {
+		return this.protocol;
+	}
+	
+	/**
+	 * 
+	 * @return oggetto {@link FramedLink} usato in modalità {@link SerialProtocol#framed}
+	 */
+	public Optional<FramedLink> getFramedLink() {
+		return Optional.ofNullable(this.link);
 	}
 	
 	/**
@@ -61,7 +264,16 @@ public final class ArduinoCommunication {
 	 * @return true se Arduino è pronto a comunicare, false altrimenti
 	 */
 	public boolean isReady() {
-		return (System.currentTimeMillis() - this.started) > WAITING_TIME;
+		return this.ready.isDone() && !this.ready.isCompletedExceptionally();
+	}
+	
+	/**
+	 * Il future viene completato quando il dispositivo ha risposto all'handshake o è scaduto il timeout,
+	 * oppure completato con errore se la connessione viene chiusa prima.
+	 * @return future che rappresenta la disponibilità del dispositivo
+	 */
+	public CompletableFuture<ArduinoCommunication> whenReady() {
+		return this.ready;
 	}
 	
 	/**
@@ -78,14 +290,85 @@ public final class ArduinoCommunication {
 	}
 	
 	/**
-	 * Scrive una stringa sulla seriale. Alla stringa viene aggiunto il carattere terminatore '\n'
+	 * Scrive una stringa sulla seriale. Alla stringa viene aggiunto il carattere terminatore '\n', 
+	 * oppure viene inviata come frame in modalità {@link SerialProtocol#framed}.
+	 * Se il dispositivo non è ancora pronto la stringa viene accodata e inviata al termine dell'handshake.
 	 * @param s stringa da mandare
 	 * @throws IOException se si verifica un errore I/O
 	 */
-	public void writeString(final String s) throws IOException {
-		System.out.println("Send to Arduino: " + s);
-		this.output.write((s + '\n').getBytes());
-		this.output.flush();
+	public synchronized void writeString(final String s) throws IOException {
+		if (!this.ready.isDone()) {
+			this.pending.add(s);
+		} else {
+			this.write(s);
+		}
+	}
+	
+	/**
+	 * Scrive un blocco di byte sulla seriale così come sono, senza aggiungere terminatori, 
+	 * oppure li invia come un unico messaggio in modalità {@link SerialProtocol#framed}.
+	 * A differenza di {@link #writeString(String)} i byte non vengono accodati se il dispositivo non è pronto.
+	 * @param buffer buffer che contiene i byte da mandare, può essere riutilizzato al termine della chiamata
+	 * @param offset posizione del primo byte da mandare
+	 * @param length numero di byte da mandare
+	 * @throws IOException se la connessione è chiusa o si verifica un errore I/O
+	 */
+	public synchronized void writeBytes(final byte[] buffer, final int offset, final int length) throws IOException {
+		if (this.closed) {
+			throw new IOException("Connection with " + this.id + " closed");
+		}
+		Log.debug(SERIAL_OUT, "Send to Arduino {}: {} bytes", this.id, length);
+		if (this.link != null) {
+			this.link.send(buffer, offset, length);
+		} else {
+			this.output.write(buffer, offset, length);
+			this.output.flush();
+		}
+	}
+	
+	private void write(final String s) throws IOException {
+		Log.info(SERIAL_OUT, "Send to Arduino {}: {}", this.id, s);
+		if (this.link != null) {
+			this.link.send(s.getBytes());
+		} else {
+			this.output.write((s + '\n').getBytes());
+			this.output.flush();
+		}
+	}
+	
+	private synchronized void markReady() {
+		if (this.ready.complete(this)) {
+			this.readyTimeout.cancel();
+			try {
+				while (!this.pending.isEmpty()) {
+					this.write(this.pending.poll());
+				}
+			} catch (IOException e) {
+				System.err.println("ArduinoCommunication : " + e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * In modalità framed il probe viene inviato una sola volta: è il protocollo a ritrasmetterlo
+	 * finchè il dispositivo non lo conferma. I probe successivi vengono scritti sul pool di thread dello Scheduler.
+	 */
+	private void sendProbe() {
+		if (!this.ready.isDone() && !this.closed) {
+			try {
+				if (this.link != null) {
+					this.link.send(this.probe.getBytes());
+					return;
+				}
+				
+				this.output.write((this.probe + '\n').getBytes());
+				this.output.flush();
+			} catch (IOException e) {
+				System.err.println("ArduinoCommunication : " + e.getMessage());
+			}
+			
+			Scheduler.getScheduler().scheduleBlocking(this::sendProbe, PROBE_INTERVAL);
+		}
 	}
 	
 	/**
@@ -104,15 +387,38 @@ public final class ArduinoCommunication {
 		return this.output;
 	}
 	
+	/**
+	 * Interrompe la consegna dei messaggi ricevuti dal dispositivo, che da questo momento vengono scartati.
+	 * La connessione resta aperta per l'invio e, in modalità {@link SerialProtocol#framed}, per le conferme dei frame.
+	 */
+	public void stopReceiving() {
+		this.muted = true;
+	}
+	
 	/**
 	 * Chiude la connessione con Arduino e rilascia le risorse.
 	 */
 	public void closeConnection() {
 		System.out.println("Closing connection on port " + this.portName);
+		this.closed = true;
+		this.readyTimeout.cancel();
+		this.ready.completeExceptionally(new IOException("Connection closed before the device was ready"));
+		this.pending.clear();
+		if (this.link != null) {
+			this.link.close();
+		}
 		this.readThread.stopComputing();
-		this.serialPort.close();
+		if (this.serialPort != null) {
+			this.serialPort.close();
+		} else {
+			try {
+				this.input.close();
+				this.output.close();
+			} catch (IOException e) {
+				System.err.println("ArduinoCommunication : " + e.getMessage());
+			}
+		}
 		System.out.println("Connection closed");
-		this.closed = true;
 	}
 	
 	/**
@@ -125,7 +431,8 @@ public final class ArduinoCommunication {
 	
 	/**
 	 * 
-	 * @return oggetto {@link SerialPort} che permette la comunicazione seriale con Arduino
+	 * @return oggetto {@link SerialPort} che permette la comunicazione seriale con Arduino, 
+	 * null se la connessione usa degli stream
 	 */
 	public SerialPort getSerialPort() {
 		return this.serialPort;
@@ -136,8 +443,10 @@ public final class ArduinoCommunication {
 	 * Thread che legge messaggi sulla seriale.
 	 *
 	 */
-	private static final class ReadThread extends Thread {
-		private static final int SLEEP_TIME = 20;
+	private final class ReadThread extends Thread {
+		private static final long IDLE_TIMEOUT = 1000000000L;
+		private static final int BUFFER_SIZE = 1024;
+		private static final int MAX_FRAME_SIZE = 1024;
 		
 		private final InputStream input;
 		private volatile boolean stop;
@@ -148,29 +457,34 @@ public final class ArduinoCommunication {
 		
 		@Override
 		public void run() {
+			if (link != null) {
+				this.readFrames();
+			} else {
+				this.readLines();
+			}
+		}
+		
+		private void readLines() {
 			final BufferedReader reader = new BufferedReader(new InputStreamReader(this.input));
 			while (!stop) {
 				try {
-					if (reader.ready()) {
+					while (!stop && (serialPort == null || reader.ready())) {
 						final String s = reader.readLine();
 						
 						if (s == null) {
-							EventDispatcher.getDispatcher().dispatchEvent(new Event(EventType.exit_action, ""));
+							this.connectionLost();
 						} else {
-							System.out.println("From Arduino: " + s);
-							EventDispatcher.getDispatcher().dispatchEvent(new Event(EventType.message_from_serial, s));
+							this.lineReceived(s);
 						}
 					}
 				} catch (IOException e) {
-					System.err.println(e.toString());
-					stop = true;
+					if (!stop) {
+						System.err.println(e.toString());
+					}
+					this.connectionLost();
 				}
 				
-				try {
-					Thread.sleep(SLEEP_TIME);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				this.waitForData();
 			}
 			
 			try {
@@ -180,8 +494,86 @@ public final class ArduinoCommunication {
 			}
 		}
 		
+		/*
+		 * I byte ricevuti vengono accumulati fino al delimitatore 0; i frame troppo lunghi vengono scartati.
+		 * Sugli stream la lettura è bloccante, per cui non viene controllato il numero di byte disponibili.
+		 */
+		private void readFrames() {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			final byte[] frame = new byte[MAX_FRAME_SIZE];
+			int length = 0;
+			boolean overflow = false;
+			
+			while (!stop) {
+				try {
+					int available;
+					while (!stop && (available = serialPort != null ? this.input.available() : buffer.length) > 0) {
+						final int n = this.input.read(buffer, 0, Math.min(available, buffer.length));
+						if (n < 0) {
+							this.connectionLost();
+						}
+						
+						for (int i = 0; i < n; i++) {
+							if (buffer[i] == 0) {
+								if (!overflow && length > 0) {
+									link.onFrame(frame, length);
+								}
+								length = 0;
+								overflow = false;
+							} else if (length < frame.length) {
+								frame[length++] = buffer[i];
+							} else {
+								overflow = true;
+							}
+						}
+					}
+				} catch (IOException e) {
+					if (!stop) {
+						System.err.println(e.toString());
+					}
+					this.connectionLost();
+				}
+				
+				this.waitForData();
+			}
+		}
+		
+		/*
+		 * L'attesa ha comunque una durata massima, così una disconnessione non segnalata 
+		 * da alcun evento viene rilevata dal controllo successivo sullo stream.
+		 */
+		private void waitForData() {
+			if (!stop) {
+				LockSupport.parkNanos(this, IDLE_TIMEOUT);
+			}
+		}
+		
+		void lineReceived(final String s) {
+			if (muted) {
+				return;
+			}
+			final Tracer.Trace trace = Tracer.sample();
+			final Recorders.SerialLine flight = Recorders.serialLine();
+			flight.begin();
+			Log.info(SERIAL_IN, "From Arduino {}: {}", id, s);
+			markReady();
+			final Event event = new Event(EventType.message_from_serial, new SerialMessage(id, s));
+			event.setTrace(trace);
+			dispatcher.dispatchEvent(event);
+			flight.record(id, s.length(), link != null);
+		}
+		
 		public void stopComputing() {
 			this.stop = true;
+			LockSupport.unpark(this);
+		}
+		
+		private void connectionLost() {
+			if (!stop) {
+				stop = true;
+				System.out.println("Connection with " + id + " on port " + portName + " lost");
+				dispatcher.dispatchEvent(new Event(EventType.serial_connection_lost, id));
+			}
 		}
 	}
 }
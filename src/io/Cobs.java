@@ -0,0 +1,84 @@
+package io;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Consistent Overhead Byte Stuffing: codifica un blocco di byte in modo che non contenga il valore 0,
+ * che può quindi essere usato come delimitatore di frame sulla seriale.
+ *
+ */
+public final class Cobs {
+
+	private Cobs() { }
+
+	/**
+	 *
+	 * @param length : lunghezza dei dati da codificare
+	 * @return dimensione massima del blocco codificato
+	 */
+	public static int maxEncodedLength(final int length) {
+		return length + length / 254 + 1;
+	}
+
+	/**
+	 * Codifica un blocco di byte. Il delimitatore finale non viene aggiunto.
+	 * @param src : dati da codificare
+	 * @param length : numero di byte di src da codificare
+	 * @param dst : array di destinazione, di dimensione almeno {@link #maxEncodedLength(int)}
+	 * @return numero di byte scritti in dst
+	 */
+	public static int encode(final byte[] src, final int length, final byte[] dst) {
+		int write = 1;
+		int codeIndex = 0;
+		int code = 1;
+
+		for (int read = 0; read < length; read++) {
+			if (src[read] == 0) {
+				dst[codeIndex] = (byte) code;
+				code = 1;
+				codeIndex = write++;
+			} else {
+				dst[write++] = src[read];
+				code++;
+				if (code == 0xFF) {
+					dst[codeIndex] = (byte) code;
+					code = 1;
+					codeIndex = write++;
+				}
+			}
+		}
+
+		dst[codeIndex] = (byte) code;
+		return write;
+	}
+
+	/**
+	 * Decodifica un blocco di byte privo del delimitatore.
+	 * @param src : dati codificati
+	 * @param length : numero di byte di src da decodificare
+	 * @param dst : array di destinazione, di dimensione almeno length
+	 * @return numero di byte scritti in dst, -1 se il blocco non è valido
+	 */
+	public static int decode(final byte[] src, final int length, final byte[] dst) {
+		int read = 0;
+		int write = 0;
+
+		while (read < length) {
+			final int code = src[read++] & 0xFF;
+			if (code == 0 || read + code - 1 > length) {
+				return -1;
+			}
+
+			for (int i = 1; i < code; i++) {
+				dst[write++] = src[read++];
+			}
+
+			if (code < 0xFF && read < length) {
+				dst[write++] = 0;
+			}
+		}
+
+		return write;
+	}
+}
@@ -0,0 +1,43 @@
+package io;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Calcolo del CRC-16/CCITT-FALSE (polinomio 0x1021, valore iniziale 0xFFFF) tramite tabella precalcolata.
+ *
+ */
+public final class Crc16 {
+
+	private static final int POLYNOMIAL = 0x1021;
+	private static final int INITIAL_VALUE = 0xFFFF;
+	private static final int[] TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < TABLE.length; i++) {
+			int crc = i << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+			}
+			TABLE[i] = crc & 0xFFFF;
+		}
+	}
+
+	private Crc16() { }
+
+	/**
+	 * Calcola il CRC di una porzione di array.
+	 * @param data : array di byte
+	 * @param offset : indice del primo byte
+	 * @param length : numero di byte
+	 * @return CRC a 16 bit
+	 */
+	public static int compute(final byte[] data, final int offset, final int length) {
+		int crc = INITIAL_VALUE;
+		for (int i = offset; i < offset + length; i++) {
+			crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+		}
+
+		return crc;
+	}
+}
@@ -0,0 +1,231 @@
+package io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import utilities.Scheduler;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Invio di un file ad un dispositivo, ad esempio tabelle di configurazione o file di dati.
+ *
+ * Il file viene letto con un {@link FileChannel} in un unico buffer riutilizzato per tutto il trasferimento
+ * e scritto sulla seriale con {@link ArduinoCommunication#writeBytes(byte[], int, int)}, senza copie intermedie
+ * né eventi. L'invio è cadenzato sulla velocità del collegamento (di default baud / 10 byte al secondo,
+ * 8 bit di dati più start e stop) in blocchi di circa CHUNK_TIME millisecondi, per non riempire
+ * i buffer del driver e lasciare spazio agli altri messaggi diretti al dispositivo.
+ *
+ * In modalità {@link SerialProtocol#text} ogni blocco termina con una riga completa (quando possibile),
+ * per cui gli altri messaggi non vengono mai inseriti a metà riga; in modalità {@link SerialProtocol#framed}
+ * ogni blocco è un messaggio e il blocco successivo viene inviato solo quando i frame del precedente
+ * sono entrati nella finestra; il trasferimento termina quando tutti i frame sono stati confermati.
+ *
+ * Il trasferimento viene eseguito sul pool di thread dello {@link Scheduler} e ogni PROGRESS_INTERVAL
+ * millisecondi ne viene stampato l'avanzamento.
+ *
+ */
+public final class FileTransfer {
+
+	private static final int MIN_CHUNK = 64;
+	private static final int MAX_CHUNK = 4096;
+	private static final long CHUNK_TIME = 50;
+	private static final long PROGRESS_INTERVAL = 1000;
+	private static final long POLL_TIME = TimeUnit.MILLISECONDS.toNanos(Scheduler.TICK);
+
+	private final ArduinoCommunication device;
+	private final Path file;
+	private final long rate;
+	private final CompletableFuture<FileTransfer> completion;
+	private volatile long size;
+	private volatile long sent;
+	private volatile long start;
+	private volatile long end;
+	private volatile boolean cancelled;
+
+	/**
+	 *
+	 * @param device : dispositivo a cui inviare il file
+	 * @param file : percorso del file
+	 * @param rate : byte al secondo, 0 per usare baud / 10 (o nessun limite se la connessione non è su una porta seriale)
+	 */
+	public FileTransfer(final ArduinoCommunication device, final Path file, final long rate) {
+		this.device = device;
+		this.file = file;
+		this.rate = rate > 0 ? rate : device.getBaud() / 10;
+		this.completion = new CompletableFuture<>();
+	}
+
+	/**
+	 * Avvia il trasferimento dopo che il dispositivo è pronto.
+	 * @return {@link CompletableFuture} completato al termine del trasferimento, o eccezionalmente in caso di errore
+	 */
+	public CompletableFuture<FileTransfer> start() {
+		this.device.whenReady().whenComplete((d, e) -> {
+			if (e != null) {
+				this.completion.completeExceptionally(e);
+			} else {
+				Scheduler.getScheduler().execute(this::run);
+			}
+		});
+		return this.completion;
+	}
+
+	/**
+	 * Interrompe il trasferimento dopo il blocco in corso.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	/**
+	 *
+	 * @return dispositivo di destinazione
+	 */
+	public ArduinoCommunication getDevice() {
+		return this.device;
+	}
+
+	/**
+	 *
+	 * @return percorso del file
+	 */
+	public Path getFile() {
+		return this.file;
+	}
+
+	/**
+	 *
+	 * @return byte inviati finora
+	 */
+	public long getSent() {
+		return this.sent;
+	}
+
+	/**
+	 *
+	 * @return dimensione del file in byte
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 *
+	 * @return byte al secondo inviati dall'inizio del trasferimento
+	 */
+	public long getThroughput() {
+		final long elapsed = (this.end != 0 ? this.end : System.nanoTime()) - this.start;
+		return this.start == 0 || elapsed <= 0 ? 0 : this.sent * TimeUnit.SECONDS.toNanos(1) / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return this.file.getFileName() + " -> " + this.device.getId() + ": "
+				+ (this.size > 0 ? this.sent * 100 / this.size : 100) + "% (" + this.sent + "/" + this.size + " bytes, "
+				+ this.getThroughput() + " B/s" + (this.rate > 0 ? ", limit " + this.rate + " B/s)" : ")");
+	}
+
+	private void run() {
+		final boolean text = this.device.getProtocol() == SerialProtocol.text;
+		final int chunk = this.rate > 0
+				? (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, this.rate * CHUNK_TIME / 1000)) : MAX_CHUNK;
+		final ByteBuffer buffer = ByteBuffer.allocate(chunk);
+
+		try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+			this.size = channel.size();
+			this.start = System.nanoTime();
+			long nextProgress = this.start + TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL);
+			boolean eof = false;
+			while (!eof || buffer.position() > 0) {
+				if (this.cancelled) {
+					throw new IOException("Transfer of " + this.file.getFileName() + " cancelled");
+				}
+
+				eof = eof || channel.read(buffer) < 0;
+				buffer.flip();
+				if (!buffer.hasRemaining()) {
+					break;
+				}
+
+				int count = text && !eof ? lastLineEnd(buffer) : buffer.remaining();
+				if (count == 0 && buffer.limit() < buffer.capacity()) {
+					// riga incompleta: il blocco viene completato con la lettura successiva
+					buffer.position(buffer.limit());
+					buffer.limit(buffer.capacity());
+					continue;
+				} else if (count == 0) {
+					// riga più lunga del buffer
+					count = buffer.remaining();
+				}
+
+				this.pace();
+				this.device.writeBytes(buffer.array(), buffer.position(), count);
+				this.sent += count;
+				buffer.position(buffer.position() + count);
+				buffer.compact();
+
+				if (System.nanoTime() >= nextProgress) {
+					System.out.println(this);
+					nextProgress += TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL);
+				}
+			}
+
+			this.awaitLink(true);
+			this.end = System.nanoTime();
+			this.completion.complete(this);
+		} catch (IOException | RuntimeException e) {
+			this.end = System.nanoTime();
+			this.completion.completeExceptionally(e);
+		}
+	}
+
+	/*
+	 * Attende che i frame del blocco precedente siano entrati nella finestra e l'istante in cui,
+	 * al ritmo dato, i byte già inviati sono stati trasmessi. L'istante è calcolato rispetto all'inizio
+	 * del trasferimento, per cui i ritardi di una scrittura vengono recuperati dalle successive.
+	 */
+	private void pace() {
+		this.awaitLink(false);
+		if (this.rate > 0) {
+			final long due = this.start + this.sent * TimeUnit.SECONDS.toNanos(1) / this.rate;
+			long wait = due - System.nanoTime();
+			while (wait > 0) {
+				LockSupport.parkNanos(wait);
+				wait = due - System.nanoTime();
+			}
+		}
+	}
+
+	/*
+	 * In modalità framed attende che i frame accodati siano entrati nella finestra e, se richiesto,
+	 * che siano stati confermati dal dispositivo.
+	 */
+	private void awaitLink(final boolean acknowledged) {
+		final FramedLink link = this.device.getFramedLink().orElse(null);
+		while (link != null && (link.getBacklog() > 0 || acknowledged && link.getInFlight() > 0)
+				&& !this.device.isClosed() && !this.cancelled) {
+			LockSupport.parkNanos(POLL_TIME);
+		}
+	}
+
+	/*
+	 * Lunghezza della porzione del buffer che termina con l'ultimo '\n', 0 se non ci sono righe complete.
+	 */
+	private static int lastLineEnd(final ByteBuffer buffer) {
+		final byte[] array = buffer.array();
+		for (int i = buffer.limit() - 1; i >= buffer.position(); i--) {
+			if (array[i] == '\n') {
+				return i - buffer.position() + 1;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,395 @@
+package io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+import utilities.Scheduler;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Protocollo a frame per la comunicazione seriale su cavi disturbati.
+ *
+ * Ogni frame ha il formato {@code [tipo][sequenza][payload][crc16]}, viene codificato con COBS
+ * (vedi {@link Cobs}) e terminato dal byte 0. I frame con CRC errato vengono scartati.
+ *
+ * I frame di dati vengono trasmessi con una finestra scorrevole go-back-N: al massimo WINDOW_SIZE frame
+ * possono essere in attesa di conferma, il ricevente conferma cumulativamente il prossimo numero
+ * di sequenza atteso e, se la conferma non arriva entro RETRANSMIT_TIMEOUT, tutti i frame in volo vengono ritrasmessi.
+ * I messaggi più lunghi di MAX_PAYLOAD vengono spezzati su più frame e ricomposti dal ricevente.
+ * Le ritrasmissioni vengono eseguite sul pool di thread dello {@link Scheduler}, perchè a basso bit rate
+ * la scrittura di una finestra può durare centinaia di millisecondi.
+ *
+ * Se un estremo si riavvia mentre la porta resta aperta i numeri di sequenza non corrispondono più:
+ * l'estremo che si riavvia (oppure quello che ha ritrasmesso MAX_RETRIES volte la stessa finestra senza conferme)
+ * invia un frame RESET con il proprio numero di reset, ripetuto finchè non riceve il RESET_ACK con lo stesso numero.
+ * Entrambi gli estremi ripartono dalla sequenza 0, scartano i messaggi ricevuti a metà e rinumerano i frame
+ * non confermati; durante la risincronizzazione chi l'ha richiesta non invia dati e scarta quelli ricevuti.
+ * Un RESET con lo stesso numero del precedente, ricevuto prima di qualsiasi dato, è un duplicato
+ * e viene solo confermato.
+ *
+ */
+public final class FramedLink {
+
+	/**
+	 * Dimensione massima del payload di un singolo frame.
+	 */
+	public static final int MAX_PAYLOAD = 250;
+
+	private static final int WINDOW_SIZE = 8;
+	private static final int SEQUENCE_SPACE = 256;
+	private static final long RETRANSMIT_TIMEOUT = 200;
+	private static final byte DATA = 1;
+	private static final byte DATA_MORE = 2;
+	private static final byte ACK = 3;
+	private static final byte RESET = 4;
+	private static final byte RESET_ACK = 5;
+	private static final int MAX_RETRIES = 10;
+	private static final int HEADER_SIZE = 2;
+	private static final int CRC_SIZE = 2;
+	private static final int MAX_FRAME = HEADER_SIZE + MAX_PAYLOAD + CRC_SIZE;
+	private static final byte[] EMPTY = new byte[0];
+
+	private final OutputStream output;
+	private final Consumer<byte[]> receiver;
+	private final byte[][] window;
+	private final Deque<byte[]> backlog;
+	private final ByteArrayOutputStream reassembly;
+	private final byte[] decoded;
+	private final byte[] encoded;
+	private Scheduler.Timeout retransmitTimeout;
+	private long timer;
+	private int base;
+	private int nextSequence;
+	private int expected;
+	private int retries;
+	private int epoch;
+	private int peerEpoch;
+	private boolean resetting;
+	private boolean receivedSinceReset;
+	private long retransmissions;
+	private long corrupted;
+	private long resets;
+	private boolean closed;
+
+	/**
+	 *
+	 * @param output : stream su cui vengono scritti i frame
+	 * @param receiver : funzione invocata con il contenuto di ogni messaggio ricevuto correttamente
+	 */
+	public FramedLink(final OutputStream output, final Consumer<byte[]> receiver) {
+		this.output = output;
+		this.receiver = receiver;
+		this.window = new byte[SEQUENCE_SPACE][];
+		this.backlog = new ArrayDeque<>();
+		this.reassembly = new ByteArrayOutputStream();
+		this.decoded = new byte[Cobs.maxEncodedLength(MAX_FRAME)];
+		this.encoded = new byte[Cobs.maxEncodedLength(MAX_FRAME) + 1];
+		this.peerEpoch = -1;
+	}
+
+	/**
+	 * Accoda un messaggio per la trasmissione. Il messaggio viene inviato subito se la finestra non è piena.
+	 * @param message : contenuto del messaggio
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public void send(final byte[] message) throws IOException {
+		this.send(message, 0, message.length);
+	}
+
+	/**
+	 * Accoda per la trasmissione, come un unico messaggio, una porzione di un buffer.
+	 * I byte vengono copiati nei frame, per cui il buffer può essere riutilizzato subito.
+	 * @param buffer : buffer che contiene il messaggio
+	 * @param offset : posizione del primo byte del messaggio
+	 * @param length : lunghezza del messaggio
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public synchronized void send(final byte[] buffer, final int offset, final int length) throws IOException {
+		final int end = offset + length;
+		int position = offset;
+		do {
+			final int size = Math.min(MAX_PAYLOAD, end - position);
+			final boolean last = position + size == end;
+			this.backlog.add(this.encodeFrame(last ? DATA : DATA_MORE, 0, buffer, position, size));
+			position += size;
+		} while (position < end);
+
+		this.fillWindow();
+	}
+
+	/**
+	 * Elabora un frame ricevuto, privo del delimitatore finale.
+	 * @param buffer : byte del frame codificato
+	 * @param length : numero di byte validi in buffer
+	 * @throws IOException se si verifica un errore I/O nell'invio della conferma
+	 */
+	public void onFrame(final byte[] buffer, final int length) throws IOException {
+		// il messaggio viene consegnato fuori dal lock, il ricevente può a sua volta inviare messaggi
+		final byte[] message = this.process(buffer, length);
+		if (message != null) {
+			this.receiver.accept(message);
+		}
+	}
+
+	/**
+	 * Risincronizza i numeri di sequenza con l'altro estremo, ad esempio dopo il riavvio di questo estremo.
+	 * I frame non confermati vengono rinumerati e ritrasmessi al termine della risincronizzazione.
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public synchronized void reset() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.epoch = (this.epoch + 1) % SEQUENCE_SPACE;
+		this.resetting = true;
+		this.resets++;
+		this.restartSequence();
+		this.write(this.encodeFrame(RESET, this.epoch, EMPTY, 0, 0));
+		this.scheduleRetransmit();
+	}
+
+	/**
+	 * Interrompe le ritrasmissioni e scarta i frame non ancora confermati.
+	 */
+	public synchronized void close() {
+		this.closed = true;
+		this.cancelTimeout();
+		this.backlog.clear();
+	}
+
+	/**
+	 *
+	 * @return numero di frame ritrasmessi
+	 */
+	public synchronized long getRetransmissions() {
+		return this.retransmissions;
+	}
+
+	/**
+	 *
+	 * @return numero di risincronizzazioni richieste da questo estremo
+	 */
+	public synchronized long getResets() {
+		return this.resets;
+	}
+
+	/**
+	 *
+	 * @return numero di frame ricevuti scartati perchè corrotti
+	 */
+	public synchronized long getCorruptedFrames() {
+		return this.corrupted;
+	}
+
+	/**
+	 *
+	 * @return numero di frame inviati e non ancora confermati
+	 */
+	public synchronized int getInFlight() {
+		return (this.nextSequence - this.base + SEQUENCE_SPACE) % SEQUENCE_SPACE;
+	}
+
+	/**
+	 *
+	 * @return numero di frame in attesa di entrare nella finestra di trasmissione
+	 */
+	public synchronized int getBacklog() {
+		return this.backlog.size();
+	}
+
+	private synchronized byte[] process(final byte[] buffer, final int length) throws IOException {
+		final int size = length <= this.decoded.length ? Cobs.decode(buffer, length, this.decoded) : -1;
+		if (size < HEADER_SIZE + CRC_SIZE) {
+			this.corrupted++;
+			return null;
+		}
+
+		final int crc = ((this.decoded[size - 2] & 0xFF) << 8) | (this.decoded[size - 1] & 0xFF);
+		if (crc != Crc16.compute(this.decoded, 0, size - CRC_SIZE)) {
+			this.corrupted++;
+			return null;
+		}
+
+		byte[] message = null;
+		final byte type = this.decoded[0];
+		final int sequence = this.decoded[1] & 0xFF;
+		if (type == ACK) {
+			this.acknowledge(sequence);
+		} else if (type == RESET) {
+			this.peerReset(sequence);
+		} else if (type == RESET_ACK) {
+			if (this.resetting && sequence == this.epoch) {
+				this.resetting = false;
+				this.cancelTimeout();
+				this.fillWindow();
+			}
+		} else if (this.resetting) {
+			return null;
+		} else if (type == DATA || type == DATA_MORE) {
+			if (sequence == this.expected) {
+				this.receivedSinceReset = true;
+				this.reassembly.write(this.decoded, HEADER_SIZE, size - HEADER_SIZE - CRC_SIZE);
+				this.expected = (this.expected + 1) % SEQUENCE_SPACE;
+				if (type == DATA) {
+					message = this.reassembly.toByteArray();
+					this.reassembly.reset();
+				}
+			}
+			this.write(this.encodeFrame(ACK, this.expected, EMPTY, 0, 0));
+		} else {
+			this.corrupted++;
+		}
+
+		return message;
+	}
+
+	private void acknowledge(final int ack) throws IOException {
+		final int acked = (ack - this.base + SEQUENCE_SPACE) % SEQUENCE_SPACE;
+		if (acked == 0 || acked > this.getInFlight()) {
+			return;
+		}
+		this.retries = 0;
+
+		for (int i = 0; i < acked; i++) {
+			this.window[this.base] = null;
+			this.base = (this.base + 1) % SEQUENCE_SPACE;
+		}
+
+		this.cancelTimeout();
+		this.fillWindow();
+		if (this.getInFlight() > 0) {
+			this.scheduleRetransmit();
+		}
+	}
+
+	private void fillWindow() throws IOException {
+		final boolean wasIdle = this.getInFlight() == 0;
+		while (!this.closed && !this.resetting && !this.backlog.isEmpty() && this.getInFlight() < WINDOW_SIZE) {
+			final byte[] data = this.backlog.poll();
+			data[1] = (byte) this.nextSequence;
+			this.sealFrame(data);
+			this.window[this.nextSequence] = data;
+			this.nextSequence = (this.nextSequence + 1) % SEQUENCE_SPACE;
+			this.write(data);
+		}
+
+		if (wasIdle && this.getInFlight() > 0) {
+			this.scheduleRetransmit();
+		}
+	}
+
+	/*
+	 * Il RESET viene confermato anche se è un duplicato, perchè il RESET_ACK precedente potrebbe essere andato perso.
+	 */
+	private void peerReset(final int peerEpoch) throws IOException {
+		if (peerEpoch != this.peerEpoch || this.receivedSinceReset) {
+			this.peerEpoch = peerEpoch;
+			this.resetting = false;
+			this.restartSequence();
+		}
+		this.write(this.encodeFrame(RESET_ACK, peerEpoch, EMPTY, 0, 0));
+		this.fillWindow();
+	}
+
+	/*
+	 * I frame non confermati tornano in testa alla coda, nell'ordine originale, e verranno rinumerati da 0.
+	 */
+	private void restartSequence() {
+		this.cancelTimeout();
+		for (int s = (this.nextSequence - 1 + SEQUENCE_SPACE) % SEQUENCE_SPACE; this.getInFlight() > 0;
+				s = (s - 1 + SEQUENCE_SPACE) % SEQUENCE_SPACE) {
+			this.backlog.addFirst(this.window[s]);
+			this.window[s] = null;
+			this.nextSequence = s;
+		}
+		this.base = 0;
+		this.nextSequence = 0;
+		this.expected = 0;
+		this.retries = 0;
+		this.receivedSinceReset = false;
+		this.reassembly.reset();
+	}
+
+	/*
+	 * Un task già avviato sul pool non può essere annullato: il task controlla di essere ancora il timer corrente.
+	 */
+	private synchronized void retransmit(final long generation) {
+		if (generation != this.timer || this.closed) {
+			return;
+		}
+		this.retransmitTimeout = null;
+
+		try {
+			if (this.resetting) {
+				this.write(this.encodeFrame(RESET, this.epoch, EMPTY, 0, 0));
+			} else if (this.getInFlight() == 0) {
+				return;
+			} else if (++this.retries > MAX_RETRIES) {
+				System.err.println("FramedLink : no acknowledgement after " + MAX_RETRIES + " retransmissions, resetting");
+				this.reset();
+				return;
+			} else {
+				for (int s = this.base; s != this.nextSequence; s = (s + 1) % SEQUENCE_SPACE) {
+					this.write(this.window[s]);
+					this.retransmissions++;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("FramedLink : " + e.getMessage());
+		}
+
+		this.scheduleRetransmit();
+	}
+
+	private void scheduleRetransmit() {
+		if (this.retransmitTimeout == null) {
+			final long generation = ++this.timer;
+			this.retransmitTimeout = Scheduler.getScheduler().scheduleBlocking(() -> this.retransmit(generation), 
+					RETRANSMIT_TIMEOUT);
+		}
+	}
+
+	private void cancelTimeout() {
+		if (this.retransmitTimeout != null) {
+			this.retransmitTimeout.cancel();
+			this.retransmitTimeout = null;
+			this.timer++;
+		}
+	}
+
+	/*
+	 * I frame di dati vengono costruiti in chiaro e codificati solo quando entrano nella finestra,
+	 * perchè il numero di sequenza è noto solo in quel momento.
+	 */
+	private byte[] encodeFrame(final byte type, final int sequence, final byte[] payload, final int offset,
+			final int length) {
+
+		final byte[] data = new byte[HEADER_SIZE + length + CRC_SIZE];
+		data[0] = type;
+		data[1] = (byte) sequence;
+		System.arraycopy(payload, offset, data, HEADER_SIZE, length);
+		if (type != DATA && type != DATA_MORE) {
+			this.sealFrame(data);
+		}
+		return data;
+	}
+
+	private void sealFrame(final byte[] data) {
+		final int crc = Crc16.compute(data, 0, data.length - CRC_SIZE);
+		data[data.length - 2] = (byte) (crc >>> 8);
+		data[data.length - 1] = (byte) crc;
+	}
+
+	private void write(final byte[] data) throws IOException {
+		final int length = Cobs.encode(data, data.length, this.encoded);
+		this.encoded[length] = 0;
+		this.output.write(this.encoded, 0, length + 1);
+		this.output.flush();
+	}
+}
@@ -0,0 +1,247 @@
+package io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Classe con metodi statici per individuare automaticamente su quali porte seriali è collegato
+ * un dispositivo e con quale bit rate.
+ * Tutte le porte vengono sondate in parallelo; su ogni porta i bit rate vengono provati in sequenza,
+ * dal più alto al più basso, inviando periodicamente un messaggio di probe e attendendo una risposta valida.
+ *
+ * Una risposta è valida se contiene la stringa attesa o, se questa non è data, l'eco del probe: ad un bit rate sbagliato
+ * il rumore sulla linea viene spesso decodificato come testo stampabile, per cui accettare qualsiasi riga
+ * ({@link #ANY_LINE}) va richiesto esplicitamente.
+ *
+ */
+public final class PortDiscovery {
+
+	/**
+	 * Bit rate provati di default, dal più alto al più basso.
+	 */
+	public static final int[] COMMON_BAUD_RATES = {115200, 57600, 38400, 19200, 9600};
+
+	/**
+	 * Tempo massimo di attesa di default per ogni tentativo, comprende il reset di Arduino all'apertura della porta.
+	 */
+	public static final long DEFAULT_ATTEMPT_TIMEOUT = 2500;
+
+	/**
+	 * Risposta attesa con cui viene accettata qualsiasi riga di testo stampabile.
+	 */
+	public static final String ANY_LINE = "*";
+
+	private static final long PROBE_INTERVAL = 250;
+	private static final int BUFFER_SIZE = 256;
+
+	private PortDiscovery() { }
+
+	/**
+	 * Sonda tutte le porte seriali libere con i bit rate e il timeout di default.
+	 * @param probe : messaggio inviato al dispositivo
+	 * @param expected : stringa che deve essere contenuta nella risposta, null per richiedere l'eco del probe,
+	 * {@link #ANY_LINE} per accettare qualsiasi riga di testo stampabile
+	 * @return lista delle coppie porta/bit rate che hanno risposto correttamente, ordinata dalla migliore
+	 */
+	public static List<Result> discover(final String probe, final String expected) {
+		return discover(probe, expected, COMMON_BAUD_RATES, DEFAULT_ATTEMPT_TIMEOUT);
+	}
+
+	/**
+	 * Sonda in parallelo tutte le porte seriali libere.
+	 * @param probe : messaggio inviato al dispositivo
+	 * @param expected : stringa che deve essere contenuta nella risposta, null per richiedere l'eco del probe,
+	 * {@link #ANY_LINE} per accettare qualsiasi riga di testo stampabile
+	 * @param bauds : bit rate da provare, nell'ordine dato
+	 * @param timeout : tempo massimo di attesa in millisecondi per ogni tentativo
+	 * @return lista delle coppie porta/bit rate che hanno risposto correttamente, ordinata dalla migliore
+	 */
+	public static List<Result> discover(final String probe, final String expected, final int[] bauds, final long timeout) {
+		final List<String> ports = candidatePorts();
+		final List<Result> results = new ArrayList<>();
+		if (ports.isEmpty()) {
+			return results;
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(ports.size());
+		final List<Future<Optional<Result>>> futures = new ArrayList<>();
+		for (final String port : ports) {
+			futures.add(executor.submit(() -> probePort(port, probe, expected, bauds, timeout)));
+		}
+
+		for (final Future<Optional<Result>> future : futures) {
+			try {
+				future.get().ifPresent(results::add);
+			} catch (InterruptedException | ExecutionException e) {
+				System.err.println("PortDiscovery : " + e);
+			}
+		}
+
+		executor.shutdown();
+		results.sort(Comparator.comparingInt(Result::getBaud).reversed().thenComparingLong(Result::getLatency));
+		return results;
+	}
+
+	private static List<String> candidatePorts() {
+		try {
+			return SerialPorts.freeSerialPorts();
+		} catch (IOException e) {
+			System.err.println("PortDiscovery : " + e.getMessage());
+			return new ArrayList<>();
+		}
+	}
+
+	private static Optional<Result> probePort(final String port, final String probe, final String expected,
+			final int[] bauds, final long timeout) {
+
+		for (final int baud : bauds) {
+			final Optional<Result> result = attempt(port, baud, probe, expected, timeout);
+			if (result.isPresent()) {
+				return result;
+			}
+		}
+
+		return Optional.empty();
+	}
+
+	private static Optional<Result> attempt(final String port, final int baud, final String probe,
+			final String expected, final long timeout) {
+
+		SerialPort serialPort = null;
+		try {
+			serialPort = SerialPorts.open(port, baud);
+			// la lettura si blocca al più fino al prossimo probe invece di interrogare la porta a intervalli
+			serialPort.enableReceiveTimeout((int) PROBE_INTERVAL);
+			final InputStream input = serialPort.getInputStream();
+			final OutputStream output = serialPort.getOutputStream();
+			final byte[] probeBytes = (probe + '\n').getBytes();
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			final String token = expected != null ? expected : probe.trim();
+			final StringBuilder line = new StringBuilder();
+			final long start = System.nanoTime();
+			final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+			long nextProbe = start;
+
+			while (System.nanoTime() < deadline) {
+				if (System.nanoTime() >= nextProbe) {
+					output.write(probeBytes);
+					output.flush();
+					nextProbe = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL);
+				}
+
+				final int read = input.read(buffer);
+				for (int i = 0; i < read; i++) {
+					final int c = buffer[i] & 0xFF;
+					if (c == '\n' || c == '\r') {
+						if (line.length() > 0) {
+							final String response = line.toString();
+							line.setLength(0);
+							if (matches(response, token)) {
+								final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+								return Optional.of(new Result(port, baud, response, latency));
+							}
+						}
+					} else {
+						line.append((char) c);
+					}
+				}
+			}
+		} catch (IOException | IllegalStateException | UnsupportedCommOperationException e) {
+			System.err.println("PortDiscovery : " + port + " @ " + baud + " : " + e);
+		} finally {
+			if (serialPort != null) {
+				serialPort.close();
+			}
+		}
+
+		return Optional.empty();
+	}
+
+	private static boolean matches(final String response, final String expected) {
+		if (!ANY_LINE.equals(expected)) {
+			return response.contains(expected);
+		}
+
+		for (int i = 0; i < response.length(); i++) {
+			final char c = response.charAt(i);
+			if ((c < 0x20 || c > 0x7e) && c != '\t') {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 *
+	 * Coppia porta/bit rate che ha risposto correttamente al probe.
+	 *
+	 */
+	public static final class Result {
+
+		private final String port;
+		private final int baud;
+		private final String response;
+		private final long latency;
+
+		Result(final String port, final int baud, final String response, final long latency) {
+			this.port = port;
+			this.baud = baud;
+			this.response = response;
+			this.latency = latency;
+		}
+
+		/**
+		 *
+		 * @return nome della porta seriale
+		 */
+		public String getPort() {
+			return this.port;
+		}
+
+		/**
+		 *
+		 * @return bit rate con cui il dispositivo ha risposto
+		 */
+		public int getBaud() {
+			return this.baud;
+		}
+
+		/**
+		 *
+		 * @return riga ricevuta in risposta al probe
+		 */
+		public String getResponse() {
+			return this.response;
+		}
+
+		/**
+		 *
+		 * @return tempo in millisecondi trascorso tra l'apertura della porta e la risposta
+		 */
+		public long getLatency() {
+			return this.latency;
+		}
+
+		@Override
+		public String toString() {
+			return this.port + " @ " + this.baud + " baud - \"" + this.response + "\" (" + this.latency + " ms)";
+		}
+	}
+}
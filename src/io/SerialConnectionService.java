@@ -0,0 +1,175 @@
+package io;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import event.Event;
+import event.EventDispatcher;
+import event.EventType;
+import utilities.Scheduler;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Classe usata per delegare il compito di riaprire la connessione con un dispositivo
+ * quando questa viene persa (dispositivo scollegato o resettato).
+ * L'istanza restituita da getInstance() invia gli eventi al dispatcher dell'applicazione,
+ * altre istanze possono essere create per i contesti aggiuntivi.
+ * Attraverso il metodo reconnect(...) viene eseguito un tentativo di apertura della porta sul pool di thread
+ * dello {@link Scheduler}, ripetuto con un intervallo crescente finchè il dispositivo non ricompare.
+ * Quando la porta viene riaperta viene creato un evento {@link EventType#serial_connection_established}.
+ */
+public final class SerialConnectionService {
+
+	private static SerialConnectionService singleton;
+	private final EventDispatcher dispatcher;
+	private final Map<String, ConnectionAttempt> connectionAttempts;
+
+	/**
+	 *
+	 * @param dispatcher : oggetto {@link EventDispatcher} a cui vengono inviati i dispositivi riconnessi 
+	 * e i loro messaggi
+	 */
+	public SerialConnectionService(final EventDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+		this.connectionAttempts = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 *
+	 * @return istanza di {@link SerialConnectionService} dell'applicazione
+	 */
+	public static synchronized SerialConnectionService getInstance() {
+		if (singleton == null) {
+			singleton = new SerialConnectionService(EventDispatcher.getDispatcher());
+		}
+
+		return singleton;
+	}
+
+	/**
+	 * Avvia i tentativi di riaprire la connessione con il dispositivo dato.
+	 * Se esiste già un tentativo per lo stesso id viene interrotto.
+	 * @param id : identificativo del dispositivo
+	 * @param port : nome della porta seriale
+	 * @param baud : bit rate
+	 * @param probe : messaggio di probe per l'handshake, null se non presente
+	 * @param timeout : timeout dell'handshake in millisecondi
+	 * @param protocol : protocollo usato sulla seriale
+	 */
+	public void reconnect(final String id, final String port, final int baud, final String probe, final long timeout,
+			final SerialProtocol protocol) {
+		final ConnectionAttempt attempt = new ConnectionAttempt(id, port, baud, probe, timeout, protocol);
+		final ConnectionAttempt old = this.connectionAttempts.put(id, attempt);
+		if (old != null) {
+			old.stopRunning();
+		}
+
+		attempt.schedule();
+	}
+
+	/**
+	 *
+	 * @param id : identificativo del dispositivo
+	 * @return true se è in corso un tentativo di riconnessione per il dispositivo dato
+	 */
+	public boolean isReconnecting(final String id) {
+		return this.connectionAttempts.containsKey(id);
+	}
+
+	/**
+	 * Interrompe il tentativo di riconnessione per il dispositivo dato.
+	 * @param id : identificativo del dispositivo
+	 */
+	public void stopRunning(final String id) {
+		final ConnectionAttempt attempt = this.connectionAttempts.remove(id);
+		if (attempt != null) {
+			attempt.stopRunning();
+		}
+	}
+
+	/**
+	 * Interrompe tutti i tentativi di riconnessione.
+	 */
+	public void stopAll() {
+		this.connectionAttempts.keySet().forEach(this::stopRunning);
+	}
+
+	/**
+	 *
+	 * Tentativo di riaprire la porta seriale. Ogni tentativo viene eseguito sul pool di thread condiviso
+	 * e, se fallisce, il successivo viene pianificato sullo {@link Scheduler} con un intervallo doppio.
+	 *
+	 */
+	private final class ConnectionAttempt implements Runnable {
+
+		private static final long MIN_SLEEP_TIME = 250;
+		private static final long MAX_SLEEP_TIME = 8000;
+
+		private volatile boolean stop;
+		private volatile Scheduler.Timeout retry;
+		private long sleepTime;
+		private final String id;
+		private final String port;
+		private final int baud;
+		private final String probe;
+		private final long timeout;
+		private final SerialProtocol protocol;
+
+		ConnectionAttempt(final String id, final String port, final int baud, final String probe, final long timeout,
+				final SerialProtocol protocol) {
+			this.id = id;
+			this.port = port;
+			this.baud = baud;
+			this.probe = probe;
+			this.timeout = timeout;
+			this.protocol = protocol;
+			this.sleepTime = MIN_SLEEP_TIME;
+		}
+
+		void schedule() {
+			if (!stop) {
+				this.retry = Scheduler.getScheduler().scheduleBlocking(this, this.sleepTime);
+			}
+		}
+
+		@Override
+		public void run() {
+			if (stop) {
+				return;
+			}
+
+			try {
+				final ArduinoCommunication arduino = new ArduinoCommunication(id, port, baud, probe, timeout, protocol, 
+						dispatcher);
+				if (stop) {
+					arduino.closeConnection();
+				} else {
+					System.out.println("Reconnected to " + id + " on port " + port);
+					connectionAttempts.remove(id, this);
+					dispatcher
+						.dispatchEvent(new Event(EventType.serial_connection_established, arduino));
+				}
+
+				stop = true;
+			} catch (IOException | IllegalStateException e) {
+				this.sleepTime = Math.min(this.sleepTime * 2, MAX_SLEEP_TIME);
+				this.schedule();
+			}
+		}
+
+		public void stopRunning() {
+			if (!stop) {
+				System.out.println("Attempt to reconnect to " + id + " canceled");
+				this.stop = true;
+			}
+
+			final Scheduler.Timeout timeout = this.retry;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+	}
+}
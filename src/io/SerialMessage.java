@@ -0,0 +1,52 @@
+package io;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Messaggio ricevuto sulla seriale, etichettato con l'identificativo del dispositivo che lo ha inviato.
+ * Verso il server viene inoltrato nel formato {@code <id>:<testo>}; lo stesso prefisso viene usato
+ * dai messaggi diretti ad un dispositivo specifico.
+ *
+ */
+public final class SerialMessage {
+
+	/**
+	 * Separatore tra l'identificativo del dispositivo e il testo del messaggio.
+	 */
+	public static final char SEPARATOR = ':';
+
+	private final String deviceId;
+	private final String text;
+
+	/**
+	 *
+	 * @param deviceId : identificativo del dispositivo
+	 * @param text : riga ricevuta sulla seriale
+	 */
+	public SerialMessage(final String deviceId, final String text) {
+		this.deviceId = deviceId;
+		this.text = text;
+	}
+
+	/**
+	 *
+	 * @return identificativo del dispositivo che ha inviato il messaggio
+	 */
+	public String getDeviceId() {
+		return this.deviceId;
+	}
+
+	/**
+	 *
+	 * @return testo del messaggio
+	 */
+	public String getText() {
+		return this.text;
+	}
+
+	@Override
+	public String toString() {
+		return this.deviceId + SEPARATOR + this.text;
+	}
+}
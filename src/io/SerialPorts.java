@@ -0,0 +1,111 @@
+package io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.NoSuchPortException;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
+import utilities.Utilities;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Unico punto di accesso alla libreria rxtx per l'apertura e l'elenco delle porte seriali.
+ *
+ * Le classi della libreria (e la libreria nativa, caricata all'inizializzazione di {@link CommPortIdentifier})
+ * vengono caricate solo al primo utilizzo della seriale, tramite la classe interna {@link Rxtx}: un'istanza
+ * che usa solo la rete o dispositivi simulati si avvia senza caricarle e può funzionare anche senza rxtx.
+ * Gli errori della libreria, compresa la sua assenza, vengono riportati come {@link IOException}.
+ *
+ */
+public final class SerialPorts {
+
+	private SerialPorts() { }
+
+	/**
+	 * Apre una porta seriale con il bit rate dato.
+	 * @param port : nome della porta seriale
+	 * @param baud : bit rate desiderato
+	 * @return oggetto {@link SerialPort} aperto
+	 * @throws IOException se la porta non esiste, è in uso, non supporta il bit rate o rxtx non è disponibile
+	 */
+	public static SerialPort open(final String port, final int baud) throws IOException {
+		try {
+			return Rxtx.open(port, baud);
+		} catch (LinkageError e) {
+			throw unavailable(e);
+		}
+	}
+
+	/**
+	 *
+	 * @return descrizione ("nome - tipo") di tutte le porte note alla libreria rxtx
+	 * @throws IOException se rxtx non è disponibile
+	 */
+	public static List<String> describePorts() throws IOException {
+		try {
+			return Rxtx.ports(false);
+		} catch (LinkageError e) {
+			throw unavailable(e);
+		}
+	}
+
+	/**
+	 *
+	 * @return nomi delle porte seriali non in uso
+	 * @throws IOException se rxtx non è disponibile
+	 */
+	public static List<String> freeSerialPorts() throws IOException {
+		try {
+			return Rxtx.ports(true);
+		} catch (LinkageError e) {
+			throw unavailable(e);
+		}
+	}
+
+	private static IOException unavailable(final LinkageError e) {
+		return new IOException("Serial support not available (rxtx): " + e.getMessage(), e);
+	}
+
+	/**
+	 *
+	 * Metodi che usano direttamente la libreria rxtx, caricati solo quando servono.
+	 *
+	 */
+	private static final class Rxtx {
+
+		static SerialPort open(final String port, final int baud) throws IOException {
+			try {
+				return Utilities.createSerialPort(port, baud);
+			} catch (NoSuchPortException e) {
+				throw new IOException("No such port " + port, e);
+			} catch (PortInUseException e) {
+				throw new IOException("Port " + port + " in use by " + e.currentOwner, e);
+			} catch (UnsupportedCommOperationException e) {
+				throw new IOException("Port " + port + " does not support " + baud + " baud", e);
+			}
+		}
+
+		static List<String> ports(final boolean freeSerialOnly) {
+			final List<String> ports = new ArrayList<>();
+			@SuppressWarnings("unchecked")
+			final Enumeration<CommPortIdentifier> portEnum = CommPortIdentifier.getPortIdentifiers();
+			while (portEnum.hasMoreElements()) {
+				final CommPortIdentifier identifier = portEnum.nextElement();
+				if (!freeSerialOnly) {
+					ports.add(identifier.getName() + " - " + Utilities.getPortTypeName(identifier.getPortType()));
+				} else if (identifier.getPortType() == CommPortIdentifier.PORT_SERIAL && !identifier.isCurrentlyOwned()) {
+					ports.add(identifier.getName());
+				}
+			}
+
+			return ports;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package io;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Protocolli supportati sulla connessione seriale.
+ *
+ */
+public enum SerialProtocol {
+
+	/**
+	 * Righe di testo terminate da '\n', senza alcun controllo di integrità.
+	 */
+	text,
+
+	/**
+	 * Frame binari delimitati con COBS, protetti da CRC-16 e ritrasmessi con una finestra scorrevole 
+	 * (vedi {@link FramedLink}).
+	 */
+	framed,
+
+	/**
+	 * Byte trasferiti senza alcuna interpretazione: la seriale non viene letta da {@link ArduinoCommunication}
+	 * e i suoi stream vengono usati direttamente (vedi {@link net.RawBridge}).
+	 */
+	raw
+}
@@ -0,0 +1,277 @@
+package jfr;
+
+import java.net.Socket;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Punto di accesso agli eventi JFR (Java Flight Recorder) del middleware.
+ *
+ * Le classi degli eventi estendono {@code jdk.jfr.Event}, che non fa parte dell'API di Java 8 ({@code javac --release 8}),
+ * per cui si trovano nella cartella src-jfr e vengono compilate a parte con un JDK 11 o successivo, nella stessa
+ * cartella delle altre classi:
+ * {@code javac --release 11 -cp bin -d bin src-jfr/jfr/*.java}
+ *
+ * Le classi vengono caricate per riflessione solo se la JVM contiene {@code jdk.jfr.FlightRecorder} (Java 8u262 o successivo);
+ * altrimenti, o se le classi non sono state compilate, vengono usati registratori che non fanno nulla e non allocano.
+ * Il codice del middleware usa sempre il pattern: creazione, {@code begin()}, poi {@code record(...)}.
+ *
+ */
+public final class Recorders {
+
+	private static final String JFR_CLASS = "jdk.jfr.FlightRecorder";
+	private static final String FACTORY_CLASS = "jfr.JdkRecorders";
+	private static final Factory FACTORY = load();
+
+	private Recorders() { }
+
+	/**
+	 *
+	 * @return registratore di una riga ricevuta da un dispositivo seriale
+	 */
+	public static SerialLine serialLine() {
+		return FACTORY.serialLine();
+	}
+
+	/**
+	 *
+	 * @return registratore dell'inserimento di un evento nella coda del dispatcher
+	 */
+	public static DispatchEnqueue dispatchEnqueue() {
+		return FACTORY.dispatchEnqueue();
+	}
+
+	/**
+	 *
+	 * @return registratore della gestione di un evento da parte del dispatcher
+	 */
+	public static DispatchHandle dispatchHandle() {
+		return FACTORY.dispatchHandle();
+	}
+
+	/**
+	 *
+	 * @return registratore dell'invio di un messaggio su una socket
+	 */
+	public static SocketWrite socketWrite() {
+		return FACTORY.socketWrite();
+	}
+
+	/**
+	 *
+	 * @return registratore di un tentativo di connessione al server
+	 */
+	public static Reconnect reconnect() {
+		return FACTORY.reconnect();
+	}
+
+	/**
+	 *
+	 * @return true se gli eventi vengono registrati con JFR
+	 */
+	public static boolean isAvailable() {
+		return FACTORY != NoOp.INSTANCE;
+	}
+
+	private static Factory load() {
+		try {
+			Class.forName(JFR_CLASS);
+			return (Factory) Class.forName(FACTORY_CLASS).getConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+			return NoOp.INSTANCE;
+		}
+	}
+
+	/**
+	 * Crea i registratori, una nuova istanza per ogni misura.
+	 */
+	public interface Factory {
+
+		/**
+		 * @return registratore di una riga ricevuta
+		 */
+		SerialLine serialLine();
+
+		/**
+		 * @return registratore di un inserimento in coda
+		 */
+		DispatchEnqueue dispatchEnqueue();
+
+		/**
+		 * @return registratore della gestione di un evento
+		 */
+		DispatchHandle dispatchHandle();
+
+		/**
+		 * @return registratore dell'invio di un messaggio
+		 */
+		SocketWrite socketWrite();
+
+		/**
+		 * @return registratore di un tentativo di connessione
+		 */
+		Reconnect reconnect();
+	}
+
+	/**
+	 * Riga o frame ricevuto da un dispositivo seriale.
+	 * La durata comprende la gestione della riga sul thread di lettura.
+	 */
+	public interface SerialLine {
+
+		/**
+		 * Inizia la misura della durata.
+		 */
+		void begin();
+
+		/**
+		 * Termina la misura della durata e registra l'evento, se abilitato e oltre la soglia.
+		 * @param deviceId : identificativo del dispositivo
+		 * @param bytes : lunghezza della riga
+		 * @param isFramed : true se la riga è stata ricevuta come frame
+		 */
+		void record(String deviceId, int bytes, boolean isFramed);
+	}
+
+	/**
+	 * Inserimento istantaneo di un evento nella coda dell'event dispatcher.
+	 */
+	public interface DispatchEnqueue {
+
+		/**
+		 * Registra l'evento, se abilitato.
+		 * @param type : tipo dell'evento inserito
+		 * @param size : numero di eventi in coda dopo l'inserimento
+		 */
+		void record(Object type, int size);
+	}
+
+	/**
+	 * Gestione di un evento da parte dell'event dispatcher.
+	 * La durata è il tempo impiegato dagli event handler, il tempo di attesa in coda è riportato a parte.
+	 */
+	public interface DispatchHandle {
+
+		/**
+		 *
+		 * @return true se l'evento è abilitato nella registrazione in corso
+		 */
+		boolean isEnabled();
+
+		/**
+		 * Inizia la misura della durata.
+		 */
+		void begin();
+
+		/**
+		 * Termina la misura della durata e registra l'evento, se abilitato e oltre la soglia.
+		 * @param type : tipo dell'evento gestito
+		 * @param waitNanos : tempo di attesa in coda in nanosecondi
+		 * @param size : numero di eventi rimasti in coda
+		 */
+		void record(Object type, long waitNanos, int size);
+	}
+
+	/**
+	 * Invio di un messaggio su una socket.
+	 * La durata comprende la scrittura nel buffer e l'eventuale flush o compressione del lotto.
+	 */
+	public interface SocketWrite {
+
+		/**
+		 * Inizia la misura della durata.
+		 */
+		void begin();
+
+		/**
+		 * Termina la misura della durata e registra l'evento, se abilitato e oltre la soglia.
+		 * @param socket : socket su cui è stato scritto il messaggio
+		 * @param bytes : lunghezza del messaggio
+		 * @param flushed : true se il buffer è stato svuotato
+		 * @param isCompressed : true se il messaggio è stato inserito in un lotto compresso
+		 */
+		void record(Socket socket, int bytes, boolean flushed, boolean isCompressed);
+	}
+
+	/**
+	 * Tentativo di connessione al server.
+	 * La durata è il tempo impiegato per aprire la socket, fino al successo o all'errore.
+	 */
+	public interface Reconnect {
+
+		/**
+		 * Inizia la misura della durata.
+		 */
+		void begin();
+
+		/**
+		 * Termina la misura della durata e registra l'evento, se abilitato e oltre la soglia.
+		 * @param ip : indirizzo del server
+		 * @param serverPort : porta del server
+		 * @param count : numero del tentativo, a partire da 1
+		 * @param success : true se la connessione è stata stabilita
+		 * @param message : messaggio di errore, null se il tentativo è riuscito
+		 */
+		void record(String ip, int serverPort, int count, boolean success, String message);
+	}
+
+	/**
+	 *
+	 * Registratori usati senza JFR: un'unica istanza condivisa che non fa nulla.
+	 *
+	 */
+	private static final class NoOp implements Factory, SerialLine, DispatchEnqueue, DispatchHandle, SocketWrite, Reconnect {
+
+		private static final NoOp INSTANCE = new NoOp();
+
+		@Override
+		public SerialLine serialLine() {
+			return this;
+		}
+
+		@Override
+		public DispatchEnqueue dispatchEnqueue() {
+			return this;
+		}
+
+		@Override
+		public DispatchHandle dispatchHandle() {
+			return this;
+		}
+
+		@Override
+		public SocketWrite socketWrite() {
+			return this;
+		}
+
+		@Override
+		public Reconnect reconnect() {
+			return this;
+		}
+
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+
+		@Override
+		public void begin() { }
+
+		@Override
+		public void record(final String deviceId, final int bytes, final boolean isFramed) { }
+
+		@Override
+		public void record(final Object type, final int size) { }
+
+		@Override
+		public void record(final Object type, final long waitNanos, final int size) { }
+
+		@Override
+		public void record(final Socket socket, final int bytes, final boolean flushed, final boolean isCompressed) { }
+
+		@Override
+		public void record(final String ip, final int serverPort, final int count, final boolean success,
+				final String message) { }
+	}
+}
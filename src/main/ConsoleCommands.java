@@ -25,6 +25,11 @@ public final class ConsoleCommands {
 	 */
 	public static final String exit = "exit";
 	
+	/**
+	 * Mostra o setta il tempo massimo concesso alla chiusura per inviare i messaggi già ricevuti.
+	 */
+	public static final String shutdown_timeout = "shutdown_timeout";
+	
 	/**
 	 * Stampa la lista dei comandi disponibili.
 	 */
@@ -34,13 +39,52 @@ public final class ConsoleCommands {
 	public static final String io_list = "io_list";
 	public static final String io_init = "io_init";
 	public static final String io_send = "io_send";
+	public static final String io_send_file = "io_send_file";
 	public static final String io_close = "io_close";
 	public static final String io_state = "io_state";
+	public static final String io_discover = "io_discover";
+	public static final String io_autoinit = "io_autoinit";
+	public static final String io_history = "io_history";
+	public static final String io_history_store = "io_history_store";
+	public static final String raw_init = "raw_init";
 	
 	/* ******************** NET COMMANDS ***************/
 	public static final String net_init = "net_init";
 	public static final String net_close = "net_close";
 	public static final String net_state = "net_state";
+	public static final String net_spool = "net_spool";
+	public static final String net_compress = "net_compress";
+	public static final String pub_listen = "pub_listen";
+	public static final String pub_close = "pub_close";
+	public static final String pub_state = "pub_state";
+	
+	/* ******************** PIPELINE COMMANDS ***************/
+	public static final String pipe_add = "pipe_add";
+	public static final String pipe_clear = "pipe_clear";
+	public static final String pipe_stats = "pipe_stats";
+	
+	/* ******************** CACHE COMMANDS ***************/
+	public static final String cache_ttl = "cache_ttl";
+	public static final String cache_state = "cache_state";
+	
+	/* ******************** RATE LIMIT COMMANDS ***************/
+	public static final String limit = "limit";
+	public static final String limit_stats = "limit_stats";
+	
+	/* ******************** LOG COMMANDS ***************/
+	public static final String log_level = "log_level";
+	public static final String log_limit = "log_limit";
+	public static final String log_stats = "log_stats";
+	
+	/* ******************** CONTEXT COMMANDS ***************/
+	public static final String ctx_new = "ctx_new";
+	public static final String ctx_use = "ctx_use";
+	public static final String ctx_stop = "ctx_stop";
+	public static final String ctx_list = "ctx_list";
+	
+	/* ******************** TRACE COMMANDS ***************/
+	public static final String trace = "trace";
+	public static final String trace_stats = "trace_stats";
 	
 	private ConsoleCommands() { }
 
@@ -1,23 +1,31 @@
 package main;
 
-import java.io.IOException;
-
-import gnu.io.NoSuchPortException;
-import gnu.io.PortInUseException;
-import gnu.io.UnsupportedCommOperationException;
+import java.util.Arrays;
 
 /**
  *
  * @author Gabriele Giunchi
- * 
+ *
  * Classe contenente il main dell'applicazione
  *
  */
 public final class Main {
-	
+
+	private static final String DAEMON = "--daemon";
+
 	private Main() { }
-	
-	public static void main(final String[] args) throws NoSuchPortException, PortInUseException, IOException, UnsupportedCommOperationException {
-		new MainLoop().mainLoop(args);
+
+	/**
+	 * Con {@value #DAEMON} come primo argomento l'applicazione viene avviata senza console e i restanti argomenti
+	 * sono comandi o file di configurazione (vedi {@link MainLoop#daemon(String[])}),
+	 * altrimenti vengono passati a {@link MainLoop#mainLoop(String[])}.
+	 * @param args : argomenti della linea di comando
+	 */
+	public static void main(final String[] args) {
+		if (args.length > 0 && DAEMON.equals(args[0])) {
+			new MainLoop().daemon(Arrays.copyOfRange(args, 1, args.length));
+		} else {
+			new MainLoop().mainLoop(args);
+		}
 	}
 }
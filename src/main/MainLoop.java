@@ -4,36 +4,85 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
-import java.util.Enumeration;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import event.BridgeContext;
 import event.Event;
+import event.EventDispatcher;
 import event.MyEventHandler;
-import gnu.io.CommPortIdentifier;
-import gnu.io.NoSuchPortException;
-import gnu.io.PortInUseException;
-import gnu.io.UnsupportedCommOperationException;
+import event.RateLimits;
 import io.ArduinoCommunication;
+import io.FileTransfer;
+import io.PortDiscovery;
+import io.SerialPorts;
+import io.SerialProtocol;
 import net.EndPoint;
-import net.ServerConnectionService;
-import utilities.Utilities;
+import net.PubSubServer;
+import net.RawBridge;
+import net.UplinkSpool;
+import pipeline.Pipeline;
+import pipeline.Stages;
+import telemetry.HistoryStore;
+import telemetry.LastValueCache;
+import utilities.Log;
+import utilities.RateLimiter;
+import utilities.Tracer;
 
-import static event.EventDispatcher.getDispatcher;
 import static event.EventType.close_all_connections;
 import static event.EventType.close_serial_connection;
 import static event.EventType.close_server_connection;
-import static event.EventType.exit_action;
 import static event.EventType.message_to_serial;
+import static main.ConsoleCommands.cache_state;
+import static main.ConsoleCommands.cache_ttl;
 import static main.ConsoleCommands.close_all;
 import static main.ConsoleCommands.exit;
+import static main.ConsoleCommands.shutdown_timeout;
 import static main.ConsoleCommands.help;
 import static main.ConsoleCommands.init;
+import static main.ConsoleCommands.io_autoinit;
+import static main.ConsoleCommands.io_discover;
 import static main.ConsoleCommands.io_close;
+import static main.ConsoleCommands.io_history;
+import static main.ConsoleCommands.io_history_store;
+import static main.ConsoleCommands.limit;
+import static main.ConsoleCommands.limit_stats;
+import static main.ConsoleCommands.log_level;
+import static main.ConsoleCommands.log_limit;
+import static main.ConsoleCommands.log_stats;
+import static main.ConsoleCommands.trace;
+import static main.ConsoleCommands.trace_stats;
+import static main.ConsoleCommands.ctx_list;
+import static main.ConsoleCommands.ctx_new;
+import static main.ConsoleCommands.ctx_stop;
+import static main.ConsoleCommands.ctx_use;
 import static main.ConsoleCommands.io_list;
 import static main.ConsoleCommands.io_init;
 import static main.ConsoleCommands.io_send;
+import static main.ConsoleCommands.io_send_file;
 import static main.ConsoleCommands.io_state;
 import static main.ConsoleCommands.net_close;
+import static main.ConsoleCommands.net_compress;
 import static main.ConsoleCommands.net_init;
+import static main.ConsoleCommands.net_spool;
+import static main.ConsoleCommands.pipe_add;
+import static main.ConsoleCommands.pipe_clear;
+import static main.ConsoleCommands.pipe_stats;
+import static main.ConsoleCommands.pub_close;
+import static main.ConsoleCommands.pub_listen;
+import static main.ConsoleCommands.pub_state;
+import static main.ConsoleCommands.raw_init;
 import static main.ConsoleCommands.net_state;
 
 /**
@@ -41,13 +90,22 @@ import static main.ConsoleCommands.net_state;
  * @author Gabriele Giunchi
  * 
  * Main loop dell'applicazione in cui si gestiscono gli input dell'utente sulla console
+ * o, in modalità daemon, i comandi letti dagli argomenti e dai file di configurazione
  *
  */
 public final class MainLoop {
 	
 	private static final String ERROR_PARSING_ARGUMENT_LOG = "Error parsing arguments";
+	private static final String UPLINK = "up";
+	private static final String DOWNLINK = "down";
+	private static final String AGGREGATE = "aggregate";
+	private static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
 	private static final BufferedReader CONSOLE = new BufferedReader(new InputStreamReader(System.in));
 	
+	private final Map<String, BridgeContext> contexts = new LinkedHashMap<>();
+	private final List<FileTransfer> transfers = new CopyOnWriteArrayList<>();
+	private BridgeContext context;
+	private volatile long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
 	private MyEventHandler eventHandler;
 	private volatile boolean stop;
 	
@@ -59,13 +117,14 @@ public final class MainLoop {
 	 * - Bit rate per la comunicazione seriale
 	 * - Indirizzo ip del server
 	 * - Porta del server
+	 * - (opzionale) Messaggio di probe per l'handshake con Arduino
 	 * 
 	 * Questi parametri devono essere tutti presenti altrimenti non verrà effettuata l'operazione di inizializzazione
 	 * 
 	 * @param args : array di {@link String} che può contenere i dati necessari all'inizializzazione dell'applicazione
 	 */
 	public void mainLoop(final String[] args) {
-		eventHandler = new MyEventHandler();
+		this.use(BridgeContext.getDefault());
 		
 		if (args.length >= 4) {
 			try {
@@ -73,17 +132,17 @@ public final class MainLoop {
 				final int baud = Integer.parseInt(args[1]);
 				final String serverIp = args[2];
 				final int serverPort = Integer.parseInt(args[3]);
-				initArduinoConnection(serialPort, baud);
-				ServerConnectionService.getInstance().connect(serverIp, serverPort);
+				initArduinoConnection(ArduinoCommunication.defaultId(serialPort), serialPort, baud, 
+						args.length >= 5 ? args[4] : null, SerialProtocol.text);
+				context.getServerConnection().connect(serverIp, serverPort);
 			} catch (NumberFormatException e) {
 				System.err.println(ERROR_PARSING_ARGUMENT_LOG);
-			} catch (IOException | NoSuchPortException | PortInUseException | UnsupportedCommOperationException e) {
+			} catch (IOException e) {
 				System.err.println(e);
 			}
 		} 
 		
-		getDispatcher().addEventHandler(eventHandler);
-		new Thread(() -> getDispatcher().mainLoop()).start();
+		context.start();
 		System.out.println("Ready");
 		
 		while (!stop) {
@@ -98,6 +157,46 @@ public final class MainLoop {
 				System.err.println(e);
 			}
 		}
+		
+		// se la console viene chiusa i contesti restano attivi finchè non vengono fermati
+		this.awaitContexts();
+	}
+	
+	/**
+	 * Avvia l'applicazione senza console, ad esempio come servizio o in un container.
+	 * Gli argomenti sono comandi eseguiti in ordine come se fossero digitati sulla console;
+	 * un argomento nella forma @file indica un file di configurazione con un comando per riga,
+	 * in cui le righe vuote e quelle che iniziano con # vengono ignorate.
+	 * 
+	 * Il metodo termina quando tutti i contesti sono stati fermati, con il comando exit oppure
+	 * alla chiusura della JVM (ad esempio con SIGTERM); in entrambi i casi i messaggi già ricevuti vengono inviati
+	 * prima della chiusura, entro il tempo massimo settato con shutdown_timeout.
+	 * 
+	 * @param args : comandi o file di configurazione
+	 */
+	public void daemon(final String[] args) {
+		this.use(BridgeContext.getDefault());
+		context.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Shutdown"));
+		
+		for (final String arg : args) {
+			if (arg.startsWith("@")) {
+				try {
+					for (final String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+						if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+							this.handleCommand(line.trim());
+						}
+					}
+				} catch (IOException e) {
+					System.err.println("Error reading configuration " + arg.substring(1) + " : " + e);
+				}
+			} else {
+				this.handleCommand(arg);
+			}
+		}
+		
+		System.out.println("Ready");
+		this.awaitContexts();
 	}
 	
 	private void handleCommand(final String line) {
@@ -116,56 +215,176 @@ public final class MainLoop {
 						final int baud = Integer.parseInt(values[2]);
 						final String serverIp = values[3].toLowerCase();
 						final int serverPort = Integer.parseInt(values[4]);
-						initArduinoConnection(serialPort, baud);
-						ServerConnectionService.getInstance().connect(serverIp, serverPort);
+						initArduinoConnection(ArduinoCommunication.defaultId(serialPort), serialPort, baud, 
+								values.length >= 6 ? values[5] : null, SerialProtocol.text);
+						context.getServerConnection().connect(serverIp, serverPort);
 					} catch (NumberFormatException e) {
 						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
-					} catch (IOException | NoSuchPortException | PortInUseException | UnsupportedCommOperationException e) {
+					} catch (IOException e) {
 						System.err.println(e);
 					}
 				}
 				break;
 			
 			case exit : 
-				getDispatcher().dispatchEvent(new Event(exit_action)); 
+				this.shutdownContexts();
 				stop = true;
 				break;
 				
+			case shutdown_timeout :
+				if (values.length >= 2) {
+					try {
+						shutdownTimeout = Long.parseLong(values[1]);
+					} catch (NumberFormatException e) {
+						System.out.println(ERROR_PARSING_ARGUMENT_LOG);
+					}
+				}
+				System.out.println("Shutdown timeout: " + shutdownTimeout + " ms");
+				break;
+				
+			case ctx_new :
+				if (values.length < 2) {
+					System.out.println("Usage: " + ctx_new + " <name>");
+				} else if (contexts.containsKey(values[1])) {
+					System.out.println("Context " + values[1] + " already exists");
+				} else {
+					final BridgeContext newContext = new BridgeContext(values[1]);
+					newContext.start();
+					this.use(newContext);
+					System.out.println("Using context " + context.getName());
+				}
+				break;
+				
+			case ctx_use :
+				if (values.length < 2 || !contexts.containsKey(values[1])) {
+					System.out.println("Unknown context, available: " + contexts.keySet());
+				} else {
+					this.use(contexts.get(values[1]));
+					System.out.println("Using context " + context.getName());
+				}
+				break;
+				
+			case ctx_stop :
+				if (values.length < 2 || !contexts.containsKey(values[1])) {
+					System.out.println("Unknown context, available: " + contexts.keySet());
+				} else if (BridgeContext.DEFAULT_NAME.equals(values[1])) {
+					System.out.println("The context " + BridgeContext.DEFAULT_NAME + " is stopped by " + exit);
+				} else {
+					contexts.remove(values[1]).shutdown(shutdownTimeout);
+					if (context.getName().equals(values[1])) {
+						this.use(contexts.get(BridgeContext.DEFAULT_NAME));
+					}
+					System.out.println("Context " + values[1] + " stopping, using context " + context.getName());
+				}
+				break;
+				
+			case ctx_list :
+				contexts.values().forEach(c -> System.out.println((c == context ? "* " : "  ") + c));
+				break;
+				
 			case close_all :
 				getDispatcher().dispatchEvent(new Event(close_all_connections));
 				break;
 				
 			case io_list :
-				@SuppressWarnings("unchecked")
-				Enumeration<CommPortIdentifier> portEnum = CommPortIdentifier.getPortIdentifiers();
-				if (!portEnum.hasMoreElements()) {
-					System.out.println("No available ports");
+				try {
+					final List<String> ports = SerialPorts.describePorts();
+					if (ports.isEmpty()) {
+						System.out.println("No available ports");
+					}
+					ports.forEach(System.out::println);
+				} catch (IOException e) {
+					System.err.println(e.getMessage());
 				}
-		        while (portEnum.hasMoreElements()) {
-		            CommPortIdentifier portIdentifier = portEnum.nextElement();
-		            System.out.println(portIdentifier.getName() + " - " 
-		            		+ Utilities.getPortTypeName(portIdentifier.getPortType()));
-		        }
-		 
-		        break;
+				break;
 			
 			case io_init :
 				if (values.length < 3) {
 					System.out.println("Arguments missing");
-				} else if (isArduinoConnected()) {
-					System.out.println("Connection with arduino already established");
 				} else {
 					final String port = values[1].toUpperCase();
+					final Map<String, String> options = parseOptions(values, 3);
+					final String id = options.getOrDefault("id", ArduinoCommunication.defaultId(port));
 					try {
 						final int baud = Integer.parseInt(values[2]);
-						initArduinoConnection(port, baud);
+						final SerialProtocol protocol = SerialProtocol.valueOf(options.getOrDefault("protocol", "text"));
+						if (isArduinoConnected(id)) {
+							System.out.println("Connection with device " + id + " already established");
+						} else if (protocol == SerialProtocol.raw) {
+							System.out.println("Use " + raw_init + " to open a raw connection");
+						} else {
+							initArduinoConnection(id, port, baud, options.get("probe"), protocol);
+						}
+					} catch (IllegalArgumentException e) {
+						System.out.println(ERROR_PARSING_ARGUMENT_LOG);
+					}  catch (IOException e) {
+						System.err.println(e);
+					}
+				}
+				
+				break;
+			
+			case raw_init :
+				if (values.length < 5) {
+					System.out.println("Usage: " + raw_init + " <port> <baud> <ip> <port> [id=<id>]");
+				} else {
+					final String port = values[1].toUpperCase();
+					final String id = parseOptions(values, 5).getOrDefault("id", ArduinoCommunication.defaultId(port));
+					ArduinoCommunication arduino = null;
+					try {
+						final int baud = Integer.parseInt(values[2]);
+						final int serverPort = Integer.parseInt(values[4]);
+						if (isArduinoConnected(id)) {
+							System.out.println("Connection with device " + id + " already established");
+						} else {
+							arduino = new ArduinoCommunication(id, port, baud, null, 0, SerialProtocol.raw, getDispatcher());
+							final RawBridge bridge = new RawBridge(arduino, new Socket(values[3], serverPort));
+							eventHandler.addBridge(bridge);
+							System.out.println("Raw bridge " + id + " connected to " + bridge.getSocket().getRemoteSocketAddress());
+						}
 					} catch (NumberFormatException e) {
 						System.out.println(ERROR_PARSING_ARGUMENT_LOG);
-					}  catch (IOException | NoSuchPortException | PortInUseException | UnsupportedCommOperationException e) {
+					} catch (IOException e) {
 						System.err.println(e);
+						if (arduino != null) {
+							arduino.closeConnection();
+						}
+					}
+				}
+				break;
+			
+			case io_discover :
+				if (values.length < 2) {
+					System.out.println("Argument <probe> missing");
+				} else {
+					final List<PortDiscovery.Result> results = 
+							PortDiscovery.discover(values[1], values.length >= 3 ? values[2] : null);
+					if (results.isEmpty()) {
+						System.out.println("No device answered");
 					}
+					results.forEach(System.out::println);
 				}
+				break;
 				
+			case io_autoinit :
+				if (values.length < 2) {
+					System.out.println("Argument <probe> missing");
+				} else {
+					final List<PortDiscovery.Result> results = 
+							PortDiscovery.discover(values[1], values.length >= 3 ? values[2] : null);
+					if (results.isEmpty()) {
+						System.out.println("No device answered");
+					} else {
+						final PortDiscovery.Result best = results.get(0);
+						System.out.println("Using " + best);
+						try {
+							initArduinoConnection(ArduinoCommunication.defaultId(best.getPort()), best.getPort(), 
+									best.getBaud(), values[1], SerialProtocol.text);
+						} catch (IOException e) {
+							System.err.println(e);
+						}
+					}
+				}
 				break;
 			
 			case io_send : 
@@ -173,24 +392,95 @@ public final class MainLoop {
 					System.err.println("Argument <message> missing");
 				} else if (!isArduinoConnected()) {
 					System.err.println("No serial connection");
-				} else if (!eventHandler.getArduinoCommunication().get().isReady()) {
-					System.out.println("Arduino isn't ready yet");
 				} else {
 					getDispatcher().dispatchEvent(new Event(message_to_serial, values[1])); 
 				}
 				break;
 				
+			case io_send_file :
+				if (values.length < 2) {
+					System.out.println("Usage: " + io_send_file + " <file> [id=<id>] [rate=<bytes/s>] | cancel");
+				} else if ("cancel".equals(values[1])) {
+					transfers.forEach(FileTransfer::cancel);
+				} else {
+					final Path file = Paths.get(values[1]);
+					final Map<String, String> options = parseOptions(values, 2);
+					final Collection<ArduinoCommunication> targets = options.containsKey("id")
+							? eventHandler.getDevice(options.get("id")).map(Collections::singletonList)
+									.orElse(Collections.emptyList())
+							: eventHandler.getDevices();
+					try {
+						final long rate = Long.parseLong(options.getOrDefault("rate", "0"));
+						if (!Files.isReadable(file)) {
+							System.err.println("Cannot read " + file);
+						} else if (targets.stream().noneMatch(d -> !d.isClosed())) {
+							System.err.println("No serial connection");
+						} else {
+							targets.stream().filter(d -> !d.isClosed()).forEach(d -> sendFile(d, file, rate));
+						}
+					} catch (NumberFormatException e) {
+						System.out.println(ERROR_PARSING_ARGUMENT_LOG);
+					}
+				}
+				break;
+				
 			case io_close : 
-				getDispatcher().dispatchEvent(new Event(close_serial_connection)); 
+				getDispatcher().dispatchEvent(new Event(close_serial_connection, values.length >= 2 ? values[1] : null)); 
 				break;
 				
 			case io_state :
 				if (isArduinoConnected()) {
-					final ArduinoCommunication arduino = eventHandler.getArduinoCommunication().get();
-					System.out.println("Connected to serial port " + arduino.getSerialPort().getName());
+					eventHandler.getDevices().stream().filter(d -> !d.isClosed()).forEach(d -> {
+						System.out.println(d.getId() + " - connected to serial port " + d.getPortName()
+								+ " (" + d.getProtocol() + ")");
+						d.getFramedLink().ifPresent(l -> System.out.println("    in flight: " + l.getInFlight() 
+								+ ", retransmissions: " + l.getRetransmissions() + ", corrupted: " + l.getCorruptedFrames()
+								+ ", resets: " + l.getResets()));
+					});
 				} else {
 					System.out.println("There isn't any serial connection");
 				}
+				eventHandler.getBridges().forEach(b -> System.out.println(b.getId() + " - raw bridge to " 
+						+ b.getSocket().getRemoteSocketAddress() + ", " + b.getUplinkBytes() + " bytes up, " 
+						+ b.getDownlinkBytes() + " bytes down"));
+				break;
+			
+			case io_history_store :
+				if (values.length < 3) {
+					System.out.println("Usage: " + io_history_store + " <file> <maxMB>");
+				} else {
+					try {
+						final long maxBytes = Long.parseLong(values[2]) * 1024 * 1024;
+						// l'archivio precedente viene chiuso prima, perchè può usare lo stesso file
+						final Optional<HistoryStore> old = eventHandler.getHistory();
+						eventHandler.setHistory(null);
+						old.ifPresent(HistoryStore::close);
+						final HistoryStore history = new HistoryStore(Paths.get(values[1]), maxBytes);
+						eventHandler.setHistory(history);
+						System.out.println("Storing history to " + values[1] + " (" + history.getSeriesCount() + " series recovered)");
+					} catch (NumberFormatException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					} catch (IOException e) {
+						System.err.println(e);
+					}
+				}
+				break;
+				
+			case io_history :
+				if (values.length < 4) {
+					System.out.println("Usage: " + io_history + " <id>/<key> <from> <to>");
+				} else if (!eventHandler.getHistory().isPresent()) {
+					System.out.println("History disabled, use " + io_history_store);
+				} else {
+					try {
+						final long now = System.currentTimeMillis();
+						final int count = eventHandler.getHistory().get().query(values[1], parseTime(values[2], now), 
+								parseTime(values[3], now), (t, v) -> System.out.println(Instant.ofEpochMilli(t) + " " + v));
+						System.out.println(count + " values");
+					} catch (NumberFormatException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					}
+				}
 				break;
 			
 			case net_init : 
@@ -202,7 +492,7 @@ public final class MainLoop {
 					final String ip = values[1].toLowerCase();
 					try {
 						final int port = Integer.parseInt(values[2]);
-						ServerConnectionService.getInstance().connect(ip, port);
+						context.getServerConnection().connect(ip, port);
 					} catch (NumberFormatException e) {
 						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
 					}
@@ -221,6 +511,235 @@ public final class MainLoop {
 				} else {
 					System.out.println("There isn't any connection to the server");
 				}
+				eventHandler.getSpool().ifPresent(s -> System.out.println("Spool: " + s.getPendingBytes() 
+						+ " bytes pending, " + s.getEvicted() + " messages evicted"));
+				eventHandler.getServerConnection().flatMap(EndPoint::getCompression).ifPresent(c -> 
+						System.out.println("Compression: " + c.getRawBytes() + " bytes in " + c.getFrames() + " frames sent as " 
+						+ c.getCompressedBytes() + " bytes, " + c.getPendingBytes() + " bytes pending"));
+				break;
+				
+			case net_compress :
+				if (values.length < 2) {
+					System.out.println("Usage: " + net_compress + " <maxBytes> <maxDelayMs> | off");
+				} else {
+					try {
+						if ("off".equals(values[1])) {
+							eventHandler.setCompression(0, 0);
+						} else if (values.length >= 3) {
+							eventHandler.setCompression(Integer.parseInt(values[1]), Long.parseLong(values[2]));
+						} else {
+							System.err.println("Arguments missing");
+						}
+					} catch (NumberFormatException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					} catch (IOException e) {
+						System.err.println(e);
+					}
+				}
+				break;
+				
+			case net_spool :
+				if (values.length < 3) {
+					System.err.println("Arguments missing");
+				} else {
+					try {
+						final long maxBytes = Long.parseLong(values[2]) * 1024 * 1024;
+						// la coda precedente viene chiusa prima, perchè può usare gli stessi file di segmento
+						final Optional<UplinkSpool> old = eventHandler.getSpool();
+						eventHandler.setSpool(null);
+						old.ifPresent(UplinkSpool::close);
+						eventHandler.setSpool(new UplinkSpool(Paths.get(values[1]), maxBytes));
+						System.out.println("Spooling messages to " + values[1]);
+					} catch (NumberFormatException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					} catch (IOException e) {
+						System.err.println(e);
+					}
+				}
+				break;
+			
+			case pub_listen :
+				if (values.length < 2) {
+					System.out.println("Usage: " + pub_listen + " <port>");
+				} else {
+					try {
+						final PubSubServer pubSub = new PubSubServer(Integer.parseInt(values[1]));
+						final Optional<PubSubServer> old = eventHandler.getPubSubServer();
+						eventHandler.setPubSubServer(pubSub);
+						old.ifPresent(PubSubServer::close);
+						System.out.println("Accepting subscribers on port " + pubSub.getPort());
+					} catch (NumberFormatException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					} catch (IOException e) {
+						System.err.println(e);
+					}
+				}
+				break;
+				
+			case pub_close :
+				eventHandler.getPubSubServer().ifPresent(PubSubServer::close);
+				eventHandler.setPubSubServer(null);
+				break;
+				
+			case pub_state :
+				if (eventHandler.getPubSubServer().isPresent()) {
+					final PubSubServer pubSub = eventHandler.getPubSubServer().get();
+					System.out.println("Port " + pubSub.getPort() + ", " + pubSub.getClients() + " subscribers, " 
+							+ pubSub.getPublished() + " topics published, " + pubSub.getDelivered() + " lines delivered, " 
+							+ pubSub.getOverflows() + " slow subscribers disconnected");
+				} else {
+					System.out.println("Publish/subscribe server not running");
+				}
+				break;
+			
+			case pipe_add :
+				if (values.length < 3 || !isDirection(values[1])) {
+					System.out.println("Usage: " + pipe_add + " <up|down> <stage> [arguments]");
+				} else if (DOWNLINK.equals(values[1]) && AGGREGATE.equals(values[2])) {
+					System.out.println("The stage " + AGGREGATE + " sends its summaries to the server, it can be used only on the " 
+							+ UPLINK + " pipeline");
+				} else {
+					try {
+						final String spec = line.substring(line.indexOf(values[2], values[0].length() + values[1].length()));
+						if (UPLINK.equals(values[1])) {
+							eventHandler.setUplinkPipeline(
+									new Pipeline.Builder(eventHandler.getUplinkPipeline())
+										.add(spec, Stages.create(spec, getDispatcher())).build());
+						} else {
+							eventHandler.setDownlinkPipeline(
+									new Pipeline.Builder(eventHandler.getDownlinkPipeline())
+										.add(spec, Stages.create(spec, getDispatcher())).build());
+						}
+					} catch (IllegalArgumentException e) {
+						System.err.println(e.getMessage());
+					}
+				}
+				break;
+				
+			case pipe_clear :
+				if (values.length < 2 || !isDirection(values[1])) {
+					System.out.println("Usage: " + pipe_clear + " <up|down>");
+				} else if (UPLINK.equals(values[1])) {
+					final Pipeline old = eventHandler.getUplinkPipeline();
+					eventHandler.setUplinkPipeline(Pipeline.EMPTY);
+					old.close();
+				} else {
+					final Pipeline old = eventHandler.getDownlinkPipeline();
+					eventHandler.setDownlinkPipeline(Pipeline.EMPTY);
+					old.close();
+				}
+				break;
+				
+			case pipe_stats :
+				System.out.println("Uplink:");
+				eventHandler.getUplinkPipeline().getStatistics().forEach(System.out::println);
+				System.out.println("Downlink:");
+				eventHandler.getDownlinkPipeline().getStatistics().forEach(System.out::println);
+				break;
+			
+			case cache_ttl :
+				if (values.length < 2) {
+					System.out.println("Usage: " + cache_ttl + " <ms> [key]");
+				} else {
+					try {
+						final long ttl = Long.parseLong(values[1]);
+						final LastValueCache cache = eventHandler.getCache().orElseGet(() -> new LastValueCache(0));
+						if (values.length >= 3) {
+							cache.setTtl(values[2], ttl);
+						} else {
+							cache.setDefaultTtl(ttl);
+						}
+						eventHandler.setCache(cache);
+					} catch (NumberFormatException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					}
+				}
+				break;
+				
+			case cache_state :
+				if (eventHandler.getCache().isPresent()) {
+					final LastValueCache cache = eventHandler.getCache().get();
+					System.out.println(cache.size() + " keys, " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+				} else {
+					System.out.println("Cache disabled");
+				}
+				break;
+			
+			case limit :
+				if (values.length >= 3 && isDirection(values[1]) && "off".equals(values[2])) {
+					limitsOf(values[1]).set(values.length >= 4 ? values[3] : null, null);
+				} else if (values.length < 5 || !isDirection(values[1]) 
+						|| !("drop".equals(values[4]) || "delay".equals(values[4]))) {
+					System.out.println("Usage: " + limit + " <up|down> <rate> <burst> <drop|delay> [id] | " 
+							+ limit + " <up|down> off [id]");
+				} else {
+					try {
+						final RateLimiter limiter = new RateLimiter(Double.parseDouble(values[2]), 
+								Integer.parseInt(values[3]), "delay".equals(values[4]));
+						limitsOf(values[1]).set(values.length >= 6 ? values[5] : null, limiter);
+					} catch (IllegalArgumentException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					}
+				}
+				break;
+				
+			case limit_stats :
+				eventHandler.getUplinkLimits().getLimiters()
+					.forEach((id, l) -> System.out.println(UPLINK + " " + id + " - " + l));
+				eventHandler.getDownlinkLimits().getLimiters()
+					.forEach((id, l) -> System.out.println(DOWNLINK + " " + id + " - " + l));
+				break;
+			
+			case log_level :
+				if (values.length < 2) {
+					System.out.println("Usage: " + log_level + " <debug|info|warn|error|off> [type]");
+				} else {
+					try {
+						final Log.Level level = Log.Level.valueOf(values[1]);
+						if (values.length >= 3) {
+							Log.type(values[2]).setLevel(level);
+						} else {
+							Log.setLevel(level);
+						}
+					} catch (IllegalArgumentException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					}
+				}
+				break;
+				
+			case log_limit :
+				if (values.length >= 3 && "off".equals(values[2])) {
+					Log.type(values[1]).setRateLimit(null);
+				} else if (values.length < 4) {
+					System.out.println("Usage: " + log_limit + " <type> <rate> <burst> | " + log_limit + " <type> off");
+				} else {
+					try {
+						Log.type(values[1]).setRateLimit(
+								new RateLimiter(Double.parseDouble(values[2]), Integer.parseInt(values[3]), false));
+					} catch (IllegalArgumentException e) {
+						System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+					}
+				}
+				break;
+				
+			case log_stats :
+				System.out.println("Level " + Log.getLevel() + ", " + Log.getOverflow() + " messages lost for buffer overflow");
+				Log.getTypes().forEach(System.out::println);
+				break;
+			
+			case trace :
+				try {
+					Tracer.setSampling(values.length >= 2 ? Integer.parseInt(values[1]) : 100);
+					System.out.println(Tracer.getSampling() == 0 
+							? "Tracing disabled" 
+							: "Tracing 1 message every " + Tracer.getSampling());
+				} catch (IllegalArgumentException e) {
+					System.err.println(ERROR_PARSING_ARGUMENT_LOG);
+				}
+				break;
+				
+			case trace_stats :
+				Tracer.printStats();
 				break;
 			
 			case help : 
@@ -235,24 +754,60 @@ public final class MainLoop {
 	
 	private void showCommandsList() {
 		System.out.println("\n\nAvailable commands: \n");
-		System.out.println(init + " <serialPort> <baud> <serverIp> <serverPort> - Initialize both Arduino connection and server connection");
+		System.out.println(init + " <serialPort> <baud> <serverIp> <serverPort> [probe] - Initialize both Arduino connection and server connection");
 		System.out.println(close_all + " - Close all the connection established");
-		System.out.println(exit + " - Close all the connection and terminate the application");
+		System.out.println(exit + " - Deliver the messages already received, close all the connection and terminate the application");
+		System.out.println(shutdown_timeout + " [ms] - Show or set the maximum time given to " + exit + " to deliver the pending messages (default " + DEFAULT_SHUTDOWN_TIMEOUT + ")");
 		System.out.println(help + " - Show the available commands");
 		System.out.println(io_list + " - Show the available serial ports");
-		System.out.println(io_init + " <port> <baud> - Initialize a connection with Arduino on the given port with the given bit rate");
-		System.out.println(io_send + " <message> - Send a message to Arduino");
-		System.out.println(io_state + " - Show the state of the connection with Arduino");
-		System.out.println(io_close + " - Close the connection with Arduino");
+		System.out.println(io_init + " <port> <baud> [id=<id>] [probe=<probe>] [protocol=text|framed] - Initialize a connection with an Arduino on the given port with the given bit rate");
+		System.out.println(io_discover + " <probe> [response] - Probe all the serial ports at the common bit rates and show which ones "
+				+ "answer with the response (default: the echo of the probe, " + PortDiscovery.ANY_LINE + ": any printable line)");
+		System.out.println(io_autoinit + " <probe> [response] - Probe all the serial ports and connect to the best match (response as in " 
+				+ io_discover + ")");
+		System.out.println(io_send + " [id:]<message> - Send a message to the given Arduino or to all of them");
+		System.out.println(io_send_file + " <file> [id=<id>] [rate=<bytes/s>] | cancel - Stream a file to the given Arduino or to all of them, paced to the bit rate by default");
+		System.out.println(io_state + " - Show the state of the connections with the Arduinos");
+		System.out.println(io_close + " [id] - Close the connection with the given Arduino or with all of them");
+		System.out.println(raw_init + " <port> <baud> <ip> <port> [id=<id>] - Tunnel the bytes of a serial port to a socket without any decoding");
+		System.out.println(io_history_store + " <file> <maxMB> - Store the numeric values received from the Arduinos in the given file");
+		System.out.println(io_history + " <id>/<key> <from> <to> - Show the stored values of a key (times as epoch ms, 'now' or offsets like -90s, -15m, -1h, -2d)");
 		System.out.println(net_init + " <ip> <port> - Connect to a server ");
 		System.out.println(net_state + " - Show the state of the connection with the server");
 		System.out.println(net_close + " - Close the connection with the server");
+		System.out.println(net_spool + " <directory> <maxMB> - Store the messages for the server on disk while it is unreachable");
+		System.out.println(net_compress + " <maxBytes> <maxDelayMs> | off - Send the messages to the server in deflate compressed batches");
+		System.out.println(pub_listen + " <port> - Accept subscribers that receive the values of the topics <id>/[sensor/]<key> matching their filters (sub <filter>, unsub <filter>, wildcards + and #)");
+		System.out.println(pub_close + " - Close the publish/subscribe server");
+		System.out.println(pub_state + " - Show the statistics of the publish/subscribe server");
+		System.out.println(pipe_add + " <up|down> <stage> [arguments] - Append a stage (filter, drop, replace, timestamp, device, scale, route, aggregate, dedup) to a pipeline");
+		System.out.println(pipe_clear + " <up|down> - Remove all the stages of a pipeline");
+		System.out.println(pipe_stats + " - Show the statistics of the pipeline stages");
+		System.out.println(limit + " <up|down> <rate> <burst> <drop|delay> [id] - Limit the messages per second from (up) or to (down) all the Arduinos or the given one");
+		System.out.println(limit + " <up|down> off [id] - Remove a rate limit");
+		System.out.println(limit_stats + " - Show the statistics of the rate limits");
+		System.out.println(log_level + " <debug|info|warn|error|off> [type] - Set the minimum level of the log messages, for all the types or the given one (serial.in, serial.out, net.in)");
+		System.out.println(log_limit + " <type> <rate> <burst> | <type> off - Limit the log messages per second of the given type");
+		System.out.println(log_stats + " - Show the statistics of the log");
+		System.out.println(ctx_new + " <name> - Create and start a new bridge context and use it for the next commands");
+		System.out.println(ctx_use + " <name> - Use the given bridge context for the next commands");
+		System.out.println(ctx_stop + " <name> - Deliver the pending messages, close the connections of the given bridge context and stop it");
+		System.out.println(ctx_list + " - Show the bridge contexts, the current one is marked with *");
+		System.out.println(trace + " [n] - Trace the latency of 1 message every n (default 100, 0 to disable) and reset the statistics");
+		System.out.println(trace_stats + " - Show the latency of each stage of the traced messages");
+		System.out.println(cache_ttl + " <ms> [key] - Answer 'get <key>' requests from the cache when the value is younger than ms");
+		System.out.println(cache_state + " - Show the statistics of the cache");
 		System.out.println();
 	}
 	
 	private boolean isArduinoConnected() {
-		final Optional<ArduinoCommunication> arduinoConnection = eventHandler.getArduinoCommunication();
-		return arduinoConnection.isPresent() && !arduinoConnection.get().isClosed();
+		return eventHandler.getDevices().stream().anyMatch(d -> !d.isClosed());
+	}
+	
+	private boolean isArduinoConnected(final String id) {
+		final Optional<ArduinoCommunication> arduinoConnection = eventHandler.getDevice(id);
+		return arduinoConnection.isPresent() && !arduinoConnection.get().isClosed()
+				|| eventHandler.getBridges().stream().anyMatch(b -> b.getId().equals(id));
 	}
 	
 	private boolean isServerConnected() {
@@ -260,24 +815,118 @@ public final class MainLoop {
 		return serverConnection.isPresent() && !serverConnection.get().isClosed();
 	}
 	
-	private void initArduinoConnection(final String serialPort, final int baud) throws NoSuchPortException, 
-			PortInUseException, IOException, UnsupportedCommOperationException {
+	private RateLimits limitsOf(final String direction) {
+		return UPLINK.equals(direction) ? eventHandler.getUplinkLimits() : eventHandler.getDownlinkLimits();
+	}
+	
+	private static boolean isDirection(final String value) {
+		return UPLINK.equals(value) || DOWNLINK.equals(value);
+	}
+	
+	/*
+	 * Converte un istante espresso in millisecondi, come "now" o come scostamento dall'istante attuale (ad esempio -1h).
+	 */
+	private static long parseTime(final String value, final long now) {
+		if ("now".equals(value)) {
+			return now;
+		}
 		
-		eventHandler.setArduino(new ArduinoCommunication(serialPort, baud));
+		if (value.startsWith("-") && value.length() > 2) {
+			final long amount = Long.parseLong(value.substring(1, value.length() - 1));
+			switch (value.charAt(value.length() - 1)) {
+				case 's': return now - amount * 1000;
+				case 'm': return now - amount * 60 * 1000;
+				case 'h': return now - amount * 60 * 60 * 1000;
+				case 'd': return now - amount * 24 * 60 * 60 * 1000;
+				default: break;
+			}
+		}
 		
-		new Thread(() -> {
-			// Controllo periodicamente se arduino è pronto per comunicare
-			while (eventHandler.getArduinoCommunication().isPresent()
-					&& !eventHandler.getArduinoCommunication().get().isReady()) {
-				
-				try {
-					Thread.sleep(200);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+		return Long.parseLong(value);
+	}
+	
+	/*
+	 * Legge gli argomenti opzionali nella forma chiave=valore a partire dall'indice dato.
+	 */
+	private static Map<String, String> parseOptions(final String[] values, final int from) {
+		final Map<String, String> options = new HashMap<>();
+		for (int i = from; i < values.length; i++) {
+			final int separator = values[i].indexOf('=');
+			if (separator > 0) {
+				options.put(values[i].substring(0, separator), values[i].substring(separator + 1));
 			}
-			
-			System.out.println("Arduino ready to communicate");
-		}).start();
+		}
+		
+		return options;
+	}
+	
+	/*
+	 * I comandi successivi vengono eseguiti sul contesto dato.
+	 */
+	private void use(final BridgeContext newContext) {
+		this.contexts.putIfAbsent(newContext.getName(), newContext);
+		this.context = newContext;
+		this.eventHandler = newContext.getHandler();
+	}
+	
+	private EventDispatcher getDispatcher() {
+		return this.context.getDispatcher();
+	}
+	
+	private void awaitContexts() {
+		for (final BridgeContext c : contexts.values()) {
+			try {
+				c.awaitTermination(0);
+			} catch (InterruptedException e) {
+				System.err.println(e);
+			}
+		}
+	}
+	
+	/*
+	 * Eseguito alla chiusura della JVM in modalità daemon: chiude i contesti ancora attivi.
+	 */
+	private void shutdown() {
+		if (!stop) {
+			stop = true;
+			System.out.println("Shutting down");
+			this.shutdownContexts();
+		}
+	}
+	
+	/*
+	 * I contesti vengono svuotati e chiusi in parallelo, per cui la chiusura ha la stessa durata massima
+	 * (vedi BridgeContext.shutdown) indipendentemente dal numero di contesti.
+	 */
+	private void shutdownContexts() {
+		final List<CompletableFuture<MyEventHandler.DrainReport>> reports = new ArrayList<>();
+		contexts.values().forEach(c -> reports.add(c.shutdown(shutdownTimeout)));
+		reports.forEach(CompletableFuture::join);
+	}
+	
+	/*
+	 * Il trasferimento viene eseguito in background, al termine ne vengono stampati il risultato e la velocità media.
+	 */
+	private void sendFile(final ArduinoCommunication device, final Path file, final long rate) {
+		final FileTransfer transfer = new FileTransfer(device, file, rate);
+		transfers.add(transfer);
+		System.out.println("Sending " + file.getFileName() + " to " + device.getId());
+		transfer.start().whenComplete((t, e) -> {
+			transfers.remove(transfer);
+			if (e != null) {
+				System.err.println(transfer + " - " + e.getMessage());
+			} else {
+				System.out.println(transfer + " - completed");
+			}
+		});
+	}
+	
+	private void initArduinoConnection(final String id, final String serialPort, final int baud, final String probe, 
+			final SerialProtocol protocol) throws IOException {
+		
+		final ArduinoCommunication arduino = new ArduinoCommunication(id, serialPort, baud, probe, 
+				ArduinoCommunication.WAITING_TIME, protocol, getDispatcher());
+		eventHandler.addDevice(arduino);
+		arduino.whenReady().thenRun(() -> System.out.println("Arduino " + id + " ready to communicate"));
 	}
 }
@@ -0,0 +1,218 @@
+package net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+import utilities.Scheduler;
+import utilities.Tracer;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Codifica compressa dei messaggi diretti al server, pensata per i collegamenti a consumo.
+ *
+ * I messaggi vengono accumulati in un lotto che viene compresso e inviato come frame
+ * {@code [lunghezza (int big endian)][dati deflate]} quando raggiunge la dimensione massima
+ * o quando il primo messaggio del lotto ha atteso il ritardo massimo. Il lotto scaduto viene inviato
+ * sul pool di thread dello {@link Scheduler}, per cui una socket lenta non blocca gli altri timer.
+ *
+ * Per tutta la durata della connessione viene usato un solo {@link Deflater} terminato con SYNC_FLUSH
+ * ad ogni frame: il dizionario viene mantenuto tra un frame e l'altro, per cui le righe ripetitive
+ * della telemetria occupano pochi byte. Il ricevente deve decomprimere i frame in ordine con un solo
+ * {@link java.util.zip.Inflater}, ottenendo le righe separate da '\n'.
+ *
+ * Le tracce dei messaggi tracciati vengono marcate con la fase {@link Tracer.Stage#write} solo quando
+ * il frame che li contiene è stato scritto sulla socket.
+ *
+ * I messaggi del lotto non ancora inviato alla chiusura vengono restituiti da {@link #close()}, per non perderli.
+ *
+ */
+public final class DeflateBatcher {
+
+	private final OutputStream output;
+	private final int maxBytes;
+	private final long maxDelay;
+	private final Consumer<IOException> errorHandler;
+	private final Deflater deflater;
+	private final List<Tracer.Trace> traces;
+	private byte[] batch;
+	private byte[] compressed;
+	private int length;
+	private Scheduler.Timeout timeout;
+	private long rawBytes;
+	private long compressedBytes;
+	private long frames;
+	private boolean closed;
+
+	/**
+	 *
+	 * @param output : stream su cui vengono scritti i frame
+	 * @param maxBytes : dimensione oltre la quale il lotto viene inviato
+	 * @param maxDelay : tempo massimo in millisecondi per cui un messaggio può restare nel lotto
+	 * @param errorHandler : funzione invocata se l'invio temporizzato di un frame fallisce
+	 */
+	public DeflateBatcher(final OutputStream output, final int maxBytes, final long maxDelay,
+			final Consumer<IOException> errorHandler) {
+		this.output = output;
+		this.maxBytes = maxBytes;
+		this.maxDelay = maxDelay;
+		this.errorHandler = errorHandler;
+		this.deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		this.traces = new ArrayList<>();
+		this.batch = new byte[maxBytes + 256];
+		this.compressed = new byte[maxBytes + maxBytes / 8 + 64];
+	}
+
+	/**
+	 * Aggiunge un messaggio al lotto. Al messaggio viene aggiunto un carattere '\n'.
+	 * @param message : byte del messaggio
+	 * @throws IOException se il lotto viene inviato e si verifica un errore I/O
+	 */
+	public synchronized void write(final byte[] message) throws IOException {
+		this.write(message, null);
+	}
+
+	/**
+	 * Aggiunge un messaggio al lotto. Al messaggio viene aggiunto un carattere '\n'.
+	 * @param message : byte del messaggio
+	 * @param trace : traccia del messaggio, marcata quando il lotto viene inviato; null se il messaggio non è tracciato
+	 * @throws IOException se il lotto viene inviato e si verifica un errore I/O
+	 */
+	public synchronized void write(final byte[] message, final Tracer.Trace trace) throws IOException {
+		if (this.closed) {
+			throw new IOException("Connection closed");
+		}
+
+		if (this.length + message.length + 1 > this.batch.length) {
+			this.batch = Arrays.copyOf(this.batch, Math.max(this.batch.length * 2, this.length + message.length + 1));
+		}
+		System.arraycopy(message, 0, this.batch, this.length, message.length);
+		this.length += message.length;
+		this.batch[this.length++] = '\n';
+		if (trace != null) {
+			this.traces.add(trace);
+		}
+
+		if (this.length >= this.maxBytes) {
+			this.flush();
+		} else if (this.timeout == null) {
+			this.timeout = Scheduler.getScheduler().scheduleBlocking(this::expire, this.maxDelay);
+		}
+	}
+
+	/**
+	 * Comprime e invia il lotto corrente, se non è vuoto.
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public synchronized void flush() throws IOException {
+		if (this.timeout != null) {
+			this.timeout.cancel();
+			this.timeout = null;
+		}
+		if (this.length == 0 || this.closed) {
+			return;
+		}
+
+		this.deflater.setInput(this.batch, 0, this.length);
+		int size = 0;
+		while (true) {
+			size += this.deflater.deflate(this.compressed, size, this.compressed.length - size, Deflater.SYNC_FLUSH);
+			if (size < this.compressed.length) {
+				break;
+			}
+			this.compressed = Arrays.copyOf(this.compressed, this.compressed.length * 2);
+		}
+
+		this.output.write(size >>> 24);
+		this.output.write(size >>> 16);
+		this.output.write(size >>> 8);
+		this.output.write(size);
+		this.output.write(this.compressed, 0, size);
+		this.output.flush();
+
+		this.rawBytes += this.length;
+		this.compressedBytes += size;
+		this.frames++;
+		this.length = 0;
+		if (!this.traces.isEmpty()) {
+			this.traces.forEach(t -> t.stamp(Tracer.Stage.write));
+			this.traces.clear();
+		}
+	}
+
+	/**
+	 * Rilascia il compressore e restituisce i messaggi del lotto corrente, che non vengono più inviati.
+	 * @return messaggi non inviati, nell'ordine in cui sono stati aggiunti
+	 */
+	public synchronized List<String> close() {
+		if (this.timeout != null) {
+			this.timeout.cancel();
+			this.timeout = null;
+		}
+		if (this.closed) {
+			return Collections.emptyList();
+		}
+
+		final List<String> unsent = new ArrayList<>();
+		int start = 0;
+		for (int i = 0; i < this.length; i++) {
+			if (this.batch[i] == '\n') {
+				unsent.add(new String(this.batch, start, i - start));
+				start = i + 1;
+			}
+		}
+		this.closed = true;
+		this.length = 0;
+		this.traces.clear();
+		this.deflater.end();
+		return unsent;
+	}
+
+	/**
+	 *
+	 * @return numero di byte dei messaggi inviati
+	 */
+	public synchronized long getRawBytes() {
+		return this.rawBytes;
+	}
+
+	/**
+	 *
+	 * @return numero di byte compressi inviati, escluse le intestazioni dei frame
+	 */
+	public synchronized long getCompressedBytes() {
+		return this.compressedBytes;
+	}
+
+	/**
+	 *
+	 * @return numero di frame inviati
+	 */
+	public synchronized long getFrames() {
+		return this.frames;
+	}
+
+	/**
+	 *
+	 * @return numero di byte nel lotto in attesa di essere inviato
+	 */
+	public synchronized int getPendingBytes() {
+		return this.length;
+	}
+
+	private synchronized void expire() {
+		this.timeout = null;
+		try {
+			this.flush();
+		} catch (IOException e) {
+			this.errorHandler.accept(e);
+		}
+	}
+}
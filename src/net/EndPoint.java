@@ -1,10 +1,18 @@
 package net;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import jfr.Recorders;
+import utilities.Tracer;
 
 /**
  * 
@@ -15,14 +23,20 @@ import java.net.Socket;
  * 
  * Adotta il pattern decorator sull'oggetto Socket e il pattern strategy per
  * definire il comportamento relativo alla gestione degli eventi.
+ * 
+ * Se viene abilitata la compressione i messaggi inviati vengono accumulati e compressi
+ * da un {@link DeflateBatcher} invece di essere scritti come righe di testo.
  *
  */
 public final class EndPoint {
 	
 	private final Socket socket;
+	private final OutputStream output;
 	private final ReadThread readThread;
 	private NetEventHandler handler;
+	private DeflateBatcher batcher;
 	private boolean closed;
+	private volatile boolean muted;
 	
 	/**
 	 * @param socket : oggetto {@link Socket} per la comunicazione
@@ -31,9 +45,31 @@ public final class EndPoint {
 	 * della socket
 	 */
 	public EndPoint(final Socket socket, final NetEventHandler handler) throws IOException {
+		this(socket, handler, true);
+	}
+	
+	/**
+	 * @param socket : oggetto {@link Socket} per la comunicazione
+	 * @param handler : oggetto {@link NetEventHandler} per la gestione degli eventi
+	 * @param start : false per avviare la lettura dei messaggi solo con {@link #startReceiving()}, 
+	 * quando l'handler è pronto a riceverli
+	 * @throws IOException se si verifica un errore nel recuperare l'oggetto {@link InputStream} 
+	 * della socket
+	 */
+	EndPoint(final Socket socket, final NetEventHandler handler, final boolean start) throws IOException {
 		this.socket = socket;
 		this.handler = handler;
+		this.output = new BufferedOutputStream(this.socket.getOutputStream());
 		this.readThread = new ReadThread(this.socket.getInputStream());
+		if (start) {
+			this.readThread.start();
+		}
+	}
+	
+	/**
+	 * Avvia la lettura dei messaggi, se l'EndPoint è stato creato senza avviarla.
+	 */
+	void startReceiving() {
 		this.readThread.start();
 	}
 	
@@ -44,23 +80,119 @@ public final class EndPoint {
 	 * @throws IOException se si verifica un errore I/O
 	 */
 	public void sendMessage(final String message) throws IOException {
-		this.socket.getOutputStream().write((message + '\n').getBytes());
-		this.socket.getOutputStream().flush();
+		this.sendMessage(message, true);
+	}
+	
+	/**
+	 * Invia un messaggio sulla socket. 
+	 * Al messaggio viene aggiunto un carattere '\n'.
+	 * @param message : messaggio da inviare
+	 * @param flush : se false il messaggio può rimanere nel buffer fino al prossimo invio con flush.
+	 * Con la compressione abilitata il parametro viene ignorato e il messaggio viene inviato con il suo lotto.
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public void sendMessage(final String message, final boolean flush) throws IOException {
+		this.sendMessage(message, flush, null);
+	}
+	
+	/**
+	 * Invia un messaggio sulla socket e, al termine della scrittura, marca la traccia del messaggio
+	 * con la fase {@link Tracer.Stage#write}. Con la compressione abilitata la traccia viene marcata
+	 * quando viene inviato il lotto che contiene il messaggio.
+	 * @param message : messaggio da inviare
+	 * @param flush : se false il messaggio può rimanere nel buffer fino al prossimo invio con flush
+	 * @param trace : traccia del messaggio, null se il messaggio non è tracciato
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public synchronized void sendMessage(final String message, final boolean flush, final Tracer.Trace trace) 
+			throws IOException {
+		final Recorders.SocketWrite event = Recorders.socketWrite();
+		event.begin();
+		if (this.batcher != null) {
+			this.batcher.write(message.getBytes(), trace);
+		} else {
+			this.output.write((message + '\n').getBytes());
+			if (flush) {
+				this.output.flush();
+			}
+			if (trace != null) {
+				trace.stamp(Tracer.Stage.write);
+			}
+		}
+		event.record(this.socket, message.length(), flush, this.batcher != null);
+	}
+	
+	/**
+	 * Invia sulla socket i messaggi rimasti nel buffer.
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public synchronized void flush() throws IOException {
+		if (this.batcher != null) {
+			this.batcher.flush();
+		}
+		this.output.flush();
+	}
+	
+	/**
+	 * Abilita o disabilita la compressione dei messaggi inviati. I messaggi rimasti nel lotto precedente vengono inviati.
+	 * @param maxBytes : dimensione oltre la quale un lotto viene inviato, 0 per disabilitare la compressione
+	 * @param maxDelay : tempo massimo in millisecondi per cui un messaggio può restare nel lotto
+	 * @throws IOException se si verifica un errore I/O nell'invio del lotto precedente
+	 */
+	public synchronized void setCompression(final int maxBytes, final long maxDelay) throws IOException {
+		if (this.batcher != null) {
+			this.batcher.flush();
+			this.batcher.close();
+			this.batcher = null;
+		}
+		
+		if (maxBytes > 0) {
+			this.batcher = new DeflateBatcher(this.output, maxBytes, maxDelay, e -> this.handler.handleError(this, e));
+		}
+	}
+	
+	/**
+	 * 
+	 * @return oggetto {@link DeflateBatcher} se la compressione è abilitata
+	 */
+	public synchronized Optional<DeflateBatcher> getCompression() {
+		return Optional.ofNullable(this.batcher);
+	}
+	
+	/**
+	 * Interrompe la consegna dei messaggi ricevuti dal server, che da questo momento vengono scartati.
+	 * La connessione resta aperta per l'invio; la sua chiusura viene comunque notificata all'handler.
+	 */
+	public void stopReceiving() {
+		this.muted = true;
 	}
 	
 	/**
 	 * Chiude la connessione e rilascia le risorse.
+	 * @return messaggi accettati ma non ancora inviati perchè in attesa nel lotto compresso, 
+	 * vuota se la compressione non è abilitata
 	 */
-	public void closeConnection() {
+	public List<String> closeConnection() {
 		this.closed = true;
 		this.readThread.stopComputing();
+		// la socket viene chiusa prima di attendere il lock, così una scrittura bloccata termina con un errore
 		try {
 			this.socket.close();
 		} catch (IOException e) {
 			System.err.println("EndPoint: " + e.getMessage());
 		}
+		List<String> unsent = Collections.emptyList();
+		synchronized (this) {
+			if (this.batcher != null) {
+				unsent = this.batcher.close();
+			}
+		}
 		
 		System.out.println("Socket closed");
+		if (!unsent.isEmpty()) {
+			System.err.println("EndPoint : " + unsent.size() + " batched messages not sent");
+		}
+		return unsent;
 	}
 	
 	/**
@@ -93,7 +225,6 @@ public final class EndPoint {
 	 *
 	 */
 	private final class ReadThread extends Thread {
-		private static final int SLEEP_TIME = 20;
 		
 		private final InputStream input;
 		private volatile boolean stop;
@@ -105,22 +236,23 @@ public final class EndPoint {
 		@Override
 		public void run() {
 			final BufferedReader reader = new BufferedReader(new InputStreamReader(this.input));
+			// readLine è bloccante: alla fine dello stream o in caso di errore il thread termina
 			while (!stop) {
 				try {
 					final String s = reader.readLine();
-					handler.handleMessage(EndPoint.this, s);
+					if (s == null || !muted) {
+						handler.handleMessage(EndPoint.this, s);
+					}
+					if (s == null) {
+						stop = true;
+					}
 				} catch (IOException e) {
 					System.err.println("EndPoint.ReadThread : " + e.getMessage());
 					if (!stop) {
+						stop = true;
 						handler.handleError(EndPoint.this, e);
 					}
 				}
-				
-				try {
-					Thread.sleep(SLEEP_TIME);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
 			}
 			
 			try {
@@ -3,6 +3,7 @@ package net;
 import event.Event;
 import event.EventDispatcher;
 import event.EventType;
+import utilities.Log;
 
 /**
  * 
@@ -17,26 +18,40 @@ import event.EventType;
  *
  */
 public final class MyNetEventHandler implements NetEventHandler {
+	
+	private static final Log.Type NET_IN = Log.type("net.in");
+	
+	private final EventDispatcher dispatcher;
+	
+	/**
+	 * Crea un handler che invia gli eventi al dispatcher dell'applicazione.
+	 */
+	public MyNetEventHandler() {
+		this(EventDispatcher.getDispatcher());
+	}
+	
+	/**
+	 * 
+	 * @param dispatcher : oggetto {@link EventDispatcher} a cui vengono inviati gli eventi
+	 */
+	public MyNetEventHandler(final EventDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
 
 	@Override
 	public void handleMessage(final EndPoint endPoint, final String message) {
 		if (message == null) {
-			EventDispatcher.getDispatcher().dispatchEvent(new Event(EventType.server_connection_lost));
+			this.dispatcher.dispatchEvent(new Event(EventType.server_connection_lost));
 		} else {
-			System.out.println(
-				new StringBuilder()
-				 	.append(endPoint.getSocket().getRemoteSocketAddress().toString())
-				 	.append(" : ")
-				 	.append(message).toString()
-			);
-			EventDispatcher.getDispatcher().dispatchEvent(new Event(EventType.message_from_server, message));
+			Log.info(NET_IN, "{} : {}", endPoint.getSocket().getRemoteSocketAddress(), message);
+			this.dispatcher.dispatchEvent(new Event(EventType.message_from_server, message));
 		}
 		
 	}
 
 	@Override
 	public void handleError(final EndPoint endPoint, final Exception e) {
-		EventDispatcher.getDispatcher().dispatchEvent(new Event(EventType.server_connection_lost));
+		this.dispatcher.dispatchEvent(new Event(EventType.server_connection_lost));
 	}
 
 }
@@ -0,0 +1,320 @@
+package net;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import io.SerialMessage;
+import utilities.KeyValues;
+import utilities.Scheduler;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Server publish/subscribe con cui più client possono ricevere solo i dati dei dispositivi a cui sono interessati.
+ *
+ * Ogni messaggio ricevuto da un dispositivo viene suddiviso in topic gerarchici:
+ * la coppia {@code chiave=valore} della riga {@code "bme280 t=21.5 h=40"} ricevuta dal dispositivo {@code arduino1}
+ * viene pubblicata sul topic {@code arduino1/bme280/t} (il primo token è usato come livello intermedio solo se
+ * non contiene '='), mentre le righe senza coppie vengono pubblicate per intero sul topic {@code arduino1}.
+ *
+ * I client si connettono sulla porta del server e inviano righe di testo nella forma {@code sub <filtro>}
+ * e {@code unsub <filtro>}, dove il filtro può contenere i caratteri jolly {@code +} e {@code #} (vedi {@link TopicTrie}).
+ * Per ogni topic corrispondente ricevono una riga {@code <topic> <valore>}, anche se più filtri corrispondono.
+ *
+ * La pubblicazione non scrive sulle socket: le righe vengono inserite nella coda di ogni client, di al più QUEUE_SIZE
+ * righe, che viene svuotata da un task sul pool di thread dello {@link Scheduler}, per cui un client lento
+ * non rallenta la pubblicazione né gli altri client. Un client la cui coda è piena viene disconnesso.
+ *
+ */
+public final class PubSubServer {
+
+	private static final String SUBSCRIBE = "sub ";
+	private static final String UNSUBSCRIBE = "unsub ";
+	private static final int QUEUE_SIZE = 4096;
+
+	private final ServerSocket serverSocket;
+	private final TopicTrie<Client> trie;
+	private final Set<Client> clients;
+	private final AcceptThread acceptThread;
+	private final KeyValues.Visitor visitor;
+	private final Consumer<Client> delivery;
+	private final StringBuilder builder;
+	private final LongAdder delivered;
+	private final LongAdder overflows;
+	private String deviceId;
+	private String prefix;
+	private String topic;
+	private String payload;
+	private String line;
+	private long topicSequence;
+	private volatile long published;
+	private volatile boolean closed;
+
+	/**
+	 * Apre il server sulla porta data.
+	 * @param port : porta su cui accettare i client
+	 * @throws IOException se non è possibile aprire la porta
+	 */
+	public PubSubServer(final int port) throws IOException {
+		this.serverSocket = new ServerSocket(port);
+		this.trie = new TopicTrie<>();
+		this.clients = ConcurrentHashMap.newKeySet();
+		this.visitor = this::publishPair;
+		this.delivery = this::deliver;
+		this.builder = new StringBuilder();
+		this.delivered = new LongAdder();
+		this.overflows = new LongAdder();
+		this.acceptThread = new AcceptThread();
+		this.acceptThread.start();
+	}
+
+	/**
+	 * Pubblica i dati di un messaggio ricevuto da un dispositivo.
+	 * Deve essere invocato da un solo thread.
+	 * @param message : messaggio ricevuto
+	 */
+	public void publish(final SerialMessage message) {
+		final String text = message.getText();
+		int end = 0;
+		while (end < text.length() && !KeyValues.isSeparator(text.charAt(end)) && text.charAt(end) != '=') {
+			end++;
+		}
+
+		this.deviceId = message.getDeviceId();
+		this.prefix = end > 0 && end < text.length() && text.charAt(end) != '=' ? text.substring(0, end) : null;
+		if (KeyValues.parse(text, this.visitor) == 0) {
+			this.publish(this.deviceId, text);
+		}
+	}
+
+	/**
+	 *
+	 * @return numero di client connessi
+	 */
+	public int getClients() {
+		return this.clients.size();
+	}
+
+	/**
+	 *
+	 * @return numero di topic pubblicati
+	 */
+	public long getPublished() {
+		return this.published;
+	}
+
+	/**
+	 *
+	 * @return numero di righe inviate ai client
+	 */
+	public long getDelivered() {
+		return this.delivered.sum();
+	}
+
+	/**
+	 *
+	 * @return numero di client disconnessi perchè la loro coda era piena
+	 */
+	public long getOverflows() {
+		return this.overflows.sum();
+	}
+
+	/**
+	 *
+	 * @return porta del server
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Chiude il server e le connessioni con i client.
+	 */
+	public void close() {
+		this.closed = true;
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			System.err.println("PubSubServer : " + e.getMessage());
+		}
+		this.clients.forEach(this::remove);
+	}
+
+	private void publishPair(final String text, final int keyStart, final int keyEnd, final int valueStart,
+			final int valueEnd) {
+
+		this.builder.setLength(0);
+		this.builder.append(this.deviceId).append(TopicTrie.LEVEL_SEPARATOR);
+		if (this.prefix != null) {
+			this.builder.append(this.prefix).append(TopicTrie.LEVEL_SEPARATOR);
+		}
+		this.builder.append(text, keyStart, keyEnd);
+		this.publish(this.builder.toString(), text.substring(valueStart, valueEnd));
+	}
+
+	private void publish(final String topic, final String payload) {
+		this.topicSequence++;
+		this.published = this.published + 1;
+		this.topic = topic;
+		this.payload = payload;
+		this.line = null;
+		this.trie.match(topic.split(String.valueOf(TopicTrie.LEVEL_SEPARATOR)), this.delivery);
+	}
+
+	/*
+	 * Il numero di sequenza del topic evita di inviare più volte la stessa riga ad un client
+	 * con più filtri corrispondenti; la riga viene costruita solo se c'è almeno un destinatario.
+	 */
+	private void deliver(final Client client) {
+		if (client.topicStamp == this.topicSequence) {
+			return;
+		}
+		client.topicStamp = this.topicSequence;
+
+		if (this.line == null) {
+			this.line = this.topic + ' ' + this.payload;
+		}
+		client.offer(this.line);
+	}
+
+	private void remove(final Client client) {
+		if (this.clients.remove(client)) {
+			client.filters.forEach(f -> this.trie.unsubscribe(f, client));
+			client.queue.clear();
+			client.endPoint.closeConnection();
+		}
+	}
+
+	/**
+	 *
+	 * Client connesso al server, con i filtri a cui è iscritto.
+	 *
+	 */
+	private final class Client implements NetEventHandler {
+
+		private final EndPoint endPoint;
+		private final Set<String> filters;
+		private final Queue<String> queue;
+		private final AtomicBoolean scheduled;
+		private final Runnable drain;
+		private long topicStamp;
+
+		/*
+		 * Il client viene registrato e la lettura delle sue richieste avviata solo quando tutti i campi sono assegnati:
+		 * se la creazione dell'EndPoint fallisce il client non resta nell'insieme dei client connessi.
+		 */
+		Client(final Socket socket) throws IOException {
+			this.filters = ConcurrentHashMap.newKeySet();
+			this.queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+			this.scheduled = new AtomicBoolean();
+			this.drain = this::drain;
+			this.endPoint = new EndPoint(socket, this, false);
+			clients.add(this);
+			this.endPoint.startReceiving();
+		}
+
+		void offer(final String line) {
+			if (!this.queue.offer(line)) {
+				System.err.println("PubSubServer : subscriber " + this.endPoint.getSocket().getRemoteSocketAddress() 
+						+ " too slow, disconnected");
+				overflows.increment();
+				remove(this);
+			} else if (this.scheduled.compareAndSet(false, true)) {
+				Scheduler.getScheduler().execute(this.drain);
+			}
+		}
+
+		/*
+		 * Come per l'EventDispatcher, al più un task di svuotamento per client è attivo: il flag viene rilasciato
+		 * dopo aver svuotato la coda e ricontrollato subito dopo. Le righe vengono inviate insieme con un solo flush.
+		 */
+		private void drain() {
+			try {
+				String next = this.queue.poll();
+				while (next != null) {
+					this.endPoint.sendMessage(next, false);
+					delivered.increment();
+					next = this.queue.poll();
+				}
+				this.endPoint.flush();
+			} catch (IOException e) {
+				remove(this);
+				return;
+			}
+
+			this.scheduled.set(false);
+			if (!this.queue.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+				Scheduler.getScheduler().execute(this.drain);
+			}
+		}
+
+		@Override
+		public void handleMessage(final EndPoint endPoint, final String message) {
+			if (message == null) {
+				remove(this);
+			} else if (message.startsWith(SUBSCRIBE)) {
+				final String filter = message.substring(SUBSCRIBE.length()).trim();
+				if (!TopicTrie.isValidFilter(filter)) {
+					System.err.println("PubSubServer : invalid filter " + filter);
+				} else if (this.filters.add(filter)) {
+					trie.subscribe(filter, this);
+				}
+			} else if (message.startsWith(UNSUBSCRIBE)) {
+				final String filter = message.substring(UNSUBSCRIBE.length()).trim();
+				if (this.filters.remove(filter)) {
+					trie.unsubscribe(filter, this);
+				}
+			}
+		}
+
+		@Override
+		public void handleError(final EndPoint endPoint, final Exception e) {
+			remove(this);
+		}
+	}
+
+	/**
+	 *
+	 * Thread che accetta le connessioni dei client.
+	 *
+	 */
+	private final class AcceptThread extends Thread {
+
+		AcceptThread() {
+			super("PubSubServer");
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				Socket socket = null;
+				try {
+					socket = serverSocket.accept();
+					new Client(socket);
+					System.out.println("Subscriber connected from " + socket.getRemoteSocketAddress());
+				} catch (IOException e) {
+					if (!closed) {
+						System.err.println("PubSubServer : " + e.getMessage());
+					}
+					if (socket != null) {
+						try {
+							socket.close();
+						} catch (IOException e1) {
+							System.err.println("PubSubServer : " + e1.getMessage());
+						}
+					}
+				}
+			}
+		}
+	}
+}
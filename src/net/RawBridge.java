@@ -0,0 +1,152 @@
+package net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.ArduinoCommunication;
+import io.SerialProtocol;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Tunnel trasparente tra una porta seriale aperta in modalità {@link SerialProtocol#raw} e una socket.
+ *
+ * I byte vengono trasferiti in entrambe le direzioni così come vengono letti, senza decodifica,
+ * delimitazione o creazione di eventi: ogni direzione ha un thread dedicato che legge in un buffer
+ * riutilizzato e scrive subito quanto letto sullo stream opposto.
+ * Quando uno dei due lati si chiude il tunnel viene chiuso interamente.
+ *
+ */
+public final class RawBridge {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private final ArduinoCommunication arduino;
+	private final Socket socket;
+	private final Pump uplink;
+	private final Pump downlink;
+	private final AtomicBoolean closed;
+
+	/**
+	 * Avvia il tunnel.
+	 * @param arduino : connessione seriale aperta in modalità {@link SerialProtocol#raw}
+	 * @param socket : socket connessa
+	 * @throws IOException se non è possibile ottenere gli stream della socket
+	 */
+	public RawBridge(final ArduinoCommunication arduino, final Socket socket) throws IOException {
+		if (arduino.getProtocol() != SerialProtocol.raw) {
+			throw new IllegalArgumentException("Serial connection " + arduino.getId() + " is not in raw mode");
+		}
+
+		this.arduino = arduino;
+		this.socket = socket;
+		this.closed = new AtomicBoolean();
+		this.socket.setTcpNoDelay(true);
+		this.uplink = new Pump(arduino.getId() + " -> " + socket.getRemoteSocketAddress(),
+				arduino.getInputStream(), socket.getOutputStream());
+		this.downlink = new Pump(socket.getRemoteSocketAddress() + " -> " + arduino.getId(),
+				socket.getInputStream(), arduino.getOutputStream());
+		this.uplink.start();
+		this.downlink.start();
+	}
+
+	/**
+	 *
+	 * @return identificativo del dispositivo
+	 */
+	public String getId() {
+		return this.arduino.getId();
+	}
+
+	/**
+	 *
+	 * @return socket del tunnel
+	 */
+	public Socket getSocket() {
+		return this.socket;
+	}
+
+	/**
+	 *
+	 * @return numero di byte trasferiti dalla seriale alla socket
+	 */
+	public long getUplinkBytes() {
+		return this.uplink.bytes;
+	}
+
+	/**
+	 *
+	 * @return numero di byte trasferiti dalla socket alla seriale
+	 */
+	public long getDownlinkBytes() {
+		return this.downlink.bytes;
+	}
+
+	/**
+	 *
+	 * @return true se il tunnel è chiuso
+	 */
+	public boolean isClosed() {
+		return this.closed.get();
+	}
+
+	/**
+	 * Chiude la socket e la connessione seriale. I thread di trasferimento terminano appena i loro stream vengono chiusi.
+	 */
+	public void close() {
+		if (this.closed.compareAndSet(false, true)) {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				System.err.println("RawBridge : " + e.getMessage());
+			}
+			this.arduino.closeConnection();
+			System.out.println("Raw bridge " + this.getId() + " closed");
+		}
+	}
+
+	/**
+	 *
+	 * Thread che copia i byte da uno stream all'altro.
+	 *
+	 */
+	private final class Pump extends Thread {
+
+		private final InputStream input;
+		private final OutputStream output;
+		private volatile long bytes;
+
+		Pump(final String name, final InputStream input, final OutputStream output) {
+			super(name);
+			this.setDaemon(true);
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			try {
+				int n = this.input.read(buffer);
+				while (n >= 0 && !closed.get()) {
+					if (n > 0) {
+						this.output.write(buffer, 0, n);
+						this.output.flush();
+						this.bytes += n;
+					}
+					n = this.input.read(buffer);
+				}
+			} catch (IOException e) {
+				if (!closed.get()) {
+					System.err.println("RawBridge " + this.getName() + " : " + e.getMessage());
+				}
+			}
+
+			close();
+		}
+	}
+}
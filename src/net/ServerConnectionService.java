@@ -7,106 +7,135 @@ import java.net.UnknownHostException;
 import event.Event;
 import event.EventDispatcher;
 import event.EventType;
+import jfr.Recorders;
+import utilities.Scheduler;
 
 /**
  * 
  * @author Gabriele Giunchi
  * 
- * Classe singleton usata per delegare il compito di connettersi ad un server.
+ * Classe usata per delegare il compito di connettersi ad un server.
+ * L'istanza restituita da getInstance() invia gli eventi al dispatcher dell'applicazione,
+ * altre istanze possono essere create per i contesti aggiuntivi.
  * Attraverso il metodo connect(String ip, int port) viene eseguito
- * periodicamente un tentativo di connessione su un thread separato
+ * periodicamente un tentativo di connessione sul pool di thread dello {@link Scheduler}
  * L'utilità di questa classe è il fatto che da diverse parti del codice
  * è possibile interrompere il tentativo di connessione ed instaurarne di nuovi
  * senza avere thread in conflitto tra di loro.
+ * Ogni tentativo genera un evento JFR {@link Recorders.Reconnect}.
  */
 public final class ServerConnectionService {
 	
 	private static ServerConnectionService singleton;
-	private ConnectionThread connectionThread;
+	private final EventDispatcher dispatcher;
+	private ConnectionAttempt connectionAttempt;
 	
-	private ServerConnectionService() { }
+	/**
+	 * 
+	 * @param dispatcher : oggetto {@link EventDispatcher} a cui vengono inviate le connessioni stabilite
+	 */
+	public ServerConnectionService(final EventDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
 	
 	/**
 	 * 
-	 * @return unica istanza di {@link ServerConnectionService}
+	 * @return istanza di {@link ServerConnectionService} dell'applicazione
 	 */
 	public static synchronized ServerConnectionService getInstance() {
 		if (singleton == null) {
-			singleton = new ServerConnectionService();
+			singleton = new ServerConnectionService(EventDispatcher.getDispatcher());
 		}
 		
 		return singleton;
 	}
 	
 	/**
-	 * Questo metodo fa partire un thread separato che tenta di connetersi
-	 * all'indirizzo ip dato finchè non viene stabilita una connessione o 
-	 * non viene interrotto invocando il metodo stopRunning().
+	 * Questo metodo avvia i tentativi di connessione all'indirizzo ip dato, ripetuti
+	 * finchè non viene stabilita una connessione o non vengono interrotti invocando il metodo stopRunning().
 	 * Quando la connesione viene stabilita viene creato un evento {@link EventType.server_connection_established}
 	 * @param ip : indirizzo ip al quale ci si vuole connettere
 	 * @param port : porta del server
 	 */
-	public void connect(final String ip, final int port) {
-		if (this.connectionThread != null) {
-			this.connectionThread.stopRunning();
+	public synchronized void connect(final String ip, final int port) {
+		if (this.connectionAttempt != null) {
+			this.connectionAttempt.stopRunning();
 		}
 		
-		this.connectionThread = new ConnectionThread(ip, port);
-		this.connectionThread.start();
+		this.connectionAttempt = new ConnectionAttempt(this.dispatcher, ip, port);
+		this.connectionAttempt.start();
 	}
 	
 	/**
 	 * Interrompe il tentativo di connessione precedentemente creato attraverso
 	 * il metodo connect(String ip, int port).
 	 */
-	public void stopRunning() {
-		this.connectionThread.stopRunning();
+	public synchronized void stopRunning() {
+		if (this.connectionAttempt != null) {
+			this.connectionAttempt.stopRunning();
+		}
 	}
 
 	/**
 	 * 
-	 * Thread che legge messaggi sulla socket.
+	 * Tentativo di connessione al server. Ogni tentativo viene eseguito sul pool di thread condiviso
+	 * e, se fallisce, il successivo viene pianificato sullo {@link Scheduler}.
 	 *
 	 */
-	private static class ConnectionThread extends Thread {
+	private static final class ConnectionAttempt implements Runnable {
 		
-		private static final int SLEEP_TIME = 5000;
+		private static final long RETRY_TIME = 5000;
 		
 		private volatile boolean stop;
+		private volatile Scheduler.Timeout retry;
+		private final EventDispatcher dispatcher;
 		private final String ip;
 		private final int port;
+		private int attempts;
 		
-		ConnectionThread(final String ip, final int port) {
+		ConnectionAttempt(final EventDispatcher dispatcher, final String ip, final int port) {
+			this.dispatcher = dispatcher;
 			this.ip = ip;
 			this.port = port;
 			this.stop = false;
 		}
 		
+		void start() {
+			Scheduler.getScheduler().execute(this);
+		}
+		
 		@Override
 		public void run() {
-			while (!stop) {
-				try {
-					System.out.println("Trying to connect to " + ip + " on port " + port);
-					final Socket socket = new Socket(ip, port);
-					if (!stop) {
-						System.out.println("Connected to " + socket.getRemoteSocketAddress().toString());
-						EventDispatcher.getDispatcher()
-							.dispatchEvent(new Event(EventType.server_connection_established, socket));
-					}
-					
-					stop = true;
-				} catch (UnknownHostException e) { 
-					System.err.println(e.getMessage());
-					this.stopRunning();
-				} catch (IOException e) { }
-					
+			if (stop) {
+				return;
+			}
+			
+			final Recorders.Reconnect trace = Recorders.reconnect();
+			trace.begin();
+			this.attempts++;
+			try {
+				System.out.println("Trying to connect to " + ip + " on port " + port);
+				final Socket socket = new Socket(ip, port);
+				trace.record(ip, port, this.attempts, true, null);
 				if (!stop) {
-					try {
-						Thread.sleep(SLEEP_TIME);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}	
-				}	
+					System.out.println("Connected to " + socket.getRemoteSocketAddress().toString());
+					this.dispatcher
+						.dispatchEvent(new Event(EventType.server_connection_established, socket));
+				} else {
+					socket.close();
+				}
+				
+				stop = true;
+			} catch (UnknownHostException e) { 
+				trace.record(ip, port, this.attempts, false, e.toString());
+				System.err.println(e.getMessage());
+				this.stopRunning();
+			} catch (IOException e) {
+				trace.record(ip, port, this.attempts, false, e.toString());
+			}
+				
+			if (!stop) {
+				this.retry = Scheduler.getScheduler().scheduleBlocking(this, RETRY_TIME);
 			}
 		}
 		
@@ -116,6 +145,10 @@ public final class ServerConnectionService {
 				this.stop = true;
 			}
 			
+			final Scheduler.Timeout timeout = this.retry;
+			if (timeout != null) {
+				timeout.cancel();
+			}
 		}
 	}
 }
@@ -0,0 +1,128 @@
+package net;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Albero delle sottoscrizioni indicizzato per livelli del topic (ad esempio {@code arduino1/bme280/t}).
+ *
+ * I filtri possono contenere i caratteri jolly {@code +}, che corrisponde ad un singolo livello,
+ * e {@code #}, che come ultimo livello corrisponde a tutti i livelli rimanenti (anche nessuno).
+ * La ricerca visita solo i nodi compatibili con il topic, per cui il costo dipende dalla profondità
+ * del topic e non dal numero di sottoscrizioni.
+ *
+ * La ricerca non acquisisce lock e può essere eseguita in parallelo alle modifiche.
+ *
+ * @param <T> tipo dei sottoscrittori
+ */
+final class TopicTrie<T> {
+
+	static final char LEVEL_SEPARATOR = '/';
+	private static final String SINGLE_LEVEL = "+";
+	private static final String MULTI_LEVEL = "#";
+
+	private final Node<T> root = new Node<>();
+
+	/**
+	 *
+	 * @param filter : filtro da verificare
+	 * @return true se il filtro è valido, cioè non vuoto e con {@code #} solo come ultimo livello
+	 */
+	static boolean isValidFilter(final String filter) {
+		final int multi = filter.indexOf(MULTI_LEVEL);
+		return !filter.isEmpty() && (multi < 0 || (multi == filter.length() - 1 
+				&& (multi == 0 || filter.charAt(multi - 1) == LEVEL_SEPARATOR)));
+	}
+
+	/**
+	 * Aggiunge una sottoscrizione.
+	 * @param filter : filtro dei topic
+	 * @param subscriber : sottoscrittore
+	 */
+	synchronized void subscribe(final String filter, final T subscriber) {
+		Node<T> node = this.root;
+		for (final String level : filter.split(String.valueOf(LEVEL_SEPARATOR), -1)) {
+			node = node.children.computeIfAbsent(level, l -> new Node<>());
+		}
+		node.subscribers.add(subscriber);
+	}
+
+	/**
+	 * Rimuove una sottoscrizione, eliminando i nodi rimasti vuoti.
+	 * @param filter : filtro dei topic
+	 * @param subscriber : sottoscrittore
+	 * @return true se la sottoscrizione era presente
+	 */
+	synchronized boolean unsubscribe(final String filter, final T subscriber) {
+		return this.remove(this.root, filter.split(String.valueOf(LEVEL_SEPARATOR), -1), 0, subscriber);
+	}
+
+	/**
+	 * Invoca la funzione data per ogni sottoscrizione il cui filtro corrisponde al topic.
+	 * Un sottoscrittore con più filtri corrispondenti viene passato una volta per ogni filtro.
+	 * @param levels : livelli del topic
+	 * @param action : funzione da invocare
+	 */
+	void match(final String[] levels, final Consumer<T> action) {
+		this.match(this.root, levels, 0, action);
+	}
+
+	private void match(final Node<T> node, final String[] levels, final int depth, final Consumer<T> action) {
+		final Node<T> multi = node.children.get(MULTI_LEVEL);
+		if (multi != null) {
+			multi.subscribers.forEach(action);
+		}
+
+		if (depth == levels.length) {
+			node.subscribers.forEach(action);
+			return;
+		}
+
+		final Node<T> exact = node.children.get(levels[depth]);
+		if (exact != null) {
+			this.match(exact, levels, depth + 1, action);
+		}
+
+		final Node<T> single = node.children.get(SINGLE_LEVEL);
+		if (single != null) {
+			this.match(single, levels, depth + 1, action);
+		}
+	}
+
+	private boolean remove(final Node<T> node, final String[] levels, final int depth, final T subscriber) {
+		if (depth == levels.length) {
+			return node.subscribers.remove(subscriber);
+		}
+
+		final Node<T> child = node.children.get(levels[depth]);
+		if (child == null || !this.remove(child, levels, depth + 1, subscriber)) {
+			return false;
+		}
+
+		if (child.isEmpty()) {
+			node.children.remove(levels[depth]);
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * Nodo dell'albero: un livello del filtro con i relativi sottoscrittori.
+	 *
+	 */
+	private static final class Node<T> {
+
+		private final Map<String, Node<T>> children = new ConcurrentHashMap<>();
+		private final Set<T> subscribers = new CopyOnWriteArraySet<>();
+
+		boolean isEmpty() {
+			return this.children.isEmpty() && this.subscribers.isEmpty();
+		}
+	}
+}
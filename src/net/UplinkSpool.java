@@ -0,0 +1,304 @@
+package net;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import utilities.Utilities;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Coda persistente su disco dei messaggi destinati al server, usata mentre la connessione non è disponibile.
+ *
+ * I messaggi vengono scritti in coda a file di segmento di dimensione fissa mappati in memoria.
+ * Ogni segmento ha il formato {@code [posizione di lettura][riservato][lunghezza][messaggio]...}
+ * e la posizione di lettura viene aggiornata dopo ogni messaggio consegnato, per cui al riavvio
+ * dell'applicazione vengono riletti solo i messaggi non ancora inviati.
+ *
+ * Lo spazio occupato è limitato: quando il numero massimo di segmenti viene superato
+ * il segmento più vecchio viene eliminato insieme ai messaggi che contiene.
+ *
+ */
+public final class UplinkSpool {
+
+	private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final int HEADER_SIZE = 8;
+	private static final int LENGTH_SIZE = 4;
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".spool";
+
+	private final Path directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final Deque<Segment> segments;
+	private long nextSegmentId;
+	private long evicted;
+	private boolean closed;
+
+	/**
+	 * Apre la coda nella directory data, recuperando i messaggi rimasti da un'esecuzione precedente.
+	 * @param directory : directory in cui vengono creati i segmenti
+	 * @param maxBytes : spazio massimo occupato su disco
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public UplinkSpool(final Path directory, final long maxBytes) throws IOException {
+		this.directory = directory;
+		this.segmentSize = (int) Math.min(SEGMENT_SIZE, Math.max(maxBytes / 2, HEADER_SIZE + LENGTH_SIZE + 1024));
+		this.maxSegments = (int) Math.max(2, maxBytes / this.segmentSize);
+		this.segments = new ArrayDeque<>();
+		Files.createDirectories(directory);
+
+		final List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			stream.forEach(files::add);
+		}
+		Collections.sort(files);
+
+		for (final Path file : files) {
+			final String name = file.getFileName().toString();
+			this.nextSegmentId = Math.max(this.nextSegmentId,
+					Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())) + 1);
+			final Segment segment = new Segment(file, (int) Files.size(file));
+			if (segment.isDrained()) {
+				segment.delete();
+			} else {
+				this.segments.addLast(segment);
+			}
+		}
+	}
+
+	/**
+	 * Aggiunge un messaggio in coda. I messaggi più grandi di un segmento vengono scartati.
+	 * @param message : messaggio da memorizzare
+	 * @throws IOException se si verifica un errore I/O o la coda è chiusa
+	 */
+	public synchronized void append(final String message) throws IOException {
+		// dopo la chiusura non vengono creati nuovi segmenti, che resterebbero mappati e in conflitto con una nuova coda
+		if (this.closed) {
+			throw new IOException("Spool closed, message discarded");
+		}
+		final byte[] data = message.getBytes(StandardCharsets.UTF_8);
+		if (data.length + LENGTH_SIZE > this.segmentSize - HEADER_SIZE) {
+			System.err.println("UplinkSpool : message of " + data.length + " bytes discarded");
+			return;
+		}
+
+		if (this.segments.isEmpty() || !this.segments.peekLast().append(data)) {
+			this.roll();
+			this.segments.peekLast().append(data);
+		}
+	}
+
+	/**
+	 * Invia i messaggi memorizzati, dal più vecchio al più recente.
+	 * Se l'invio di un messaggio fallisce l'operazione si interrompe e il messaggio rimane in coda.
+	 * @param sink : destinazione dei messaggi
+	 * @return numero di messaggi inviati
+	 * @throws IOException se si verifica un errore nell'invio
+	 */
+	public synchronized long drain(final Sink sink) throws IOException {
+		long sent = 0;
+		if (this.closed) {
+			return sent;
+		}
+		while (!this.segments.isEmpty()) {
+			final Segment segment = this.segments.peekFirst();
+			String message = segment.peek();
+			while (message != null) {
+				sink.send(message);
+				segment.advance();
+				sent++;
+				message = segment.peek();
+			}
+
+			if (this.segments.size() > 1) {
+				this.segments.pollFirst().delete();
+			} else {
+				segment.rewind();
+				break;
+			}
+		}
+
+		return sent;
+	}
+
+	/**
+	 *
+	 * @return true se non ci sono messaggi in attesa di essere inviati
+	 */
+	public synchronized boolean isEmpty() {
+		return this.segments.stream().allMatch(Segment::isDrained);
+	}
+
+	/**
+	 *
+	 * @return numero di byte in attesa di essere inviati
+	 */
+	public synchronized long getPendingBytes() {
+		return this.segments.stream().mapToLong(Segment::getPendingBytes).sum();
+	}
+
+	/**
+	 *
+	 * @return numero di messaggi eliminati per mancanza di spazio
+	 */
+	public synchronized long getEvicted() {
+		return this.evicted;
+	}
+
+	/**
+	 * Chiude i file dei segmenti. I messaggi aggiunti successivamente vengono rifiutati.
+	 */
+	public synchronized void close() {
+		this.closed = true;
+		this.segments.forEach(Segment::close);
+		this.segments.clear();
+	}
+
+	private void roll() throws IOException {
+		final Path file = this.directory.resolve(String.format("%s%020d%s", PREFIX, this.nextSegmentId++, SUFFIX));
+		this.segments.addLast(new Segment(file, this.segmentSize));
+
+		while (this.segments.size() > this.maxSegments) {
+			final Segment oldest = this.segments.pollFirst();
+			this.evicted += oldest.countPending();
+			oldest.delete();
+		}
+	}
+
+	/**
+	 *
+	 * Destinazione dei messaggi estratti dalla coda.
+	 *
+	 */
+	@FunctionalInterface
+	public interface Sink {
+
+		/**
+		 * Invia un messaggio.
+		 * @param message : messaggio da inviare
+		 * @throws IOException se l'invio fallisce
+		 */
+		void send(String message) throws IOException;
+	}
+
+	/**
+	 *
+	 * File di segmento mappato in memoria.
+	 *
+	 */
+	private static final class Segment {
+
+		private final Path file;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+
+		Segment(final Path file, final int size) throws IOException {
+			this.file = file;
+			try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+				raf.setLength(size);
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+
+			if (this.buffer.getInt(0) < HEADER_SIZE) {
+				this.buffer.putInt(0, HEADER_SIZE);
+			}
+
+			int position = HEADER_SIZE;
+			while (position + LENGTH_SIZE <= size) {
+				final int length = this.buffer.getInt(position);
+				if (length <= 0 || position + LENGTH_SIZE + length > size) {
+					break;
+				}
+				position += LENGTH_SIZE + length;
+			}
+			this.writePosition = position;
+		}
+
+		boolean append(final byte[] data) {
+			if (this.writePosition + LENGTH_SIZE + data.length > this.buffer.capacity()) {
+				return false;
+			}
+
+			this.buffer.position(this.writePosition + LENGTH_SIZE);
+			this.buffer.put(data);
+			if (this.writePosition + LENGTH_SIZE + data.length + LENGTH_SIZE <= this.buffer.capacity()) {
+				this.buffer.putInt(this.writePosition + LENGTH_SIZE + data.length, 0);
+			}
+			// la lunghezza viene scritta per ultima, così un record incompleto non viene mai letto
+			this.buffer.putInt(this.writePosition, data.length);
+			this.writePosition += LENGTH_SIZE + data.length;
+			return true;
+		}
+
+		String peek() {
+			final int readPosition = this.buffer.getInt(0);
+			if (readPosition >= this.writePosition) {
+				return null;
+			}
+
+			final int length = this.buffer.getInt(readPosition);
+			final byte[] data = new byte[length];
+			this.buffer.position(readPosition + LENGTH_SIZE);
+			this.buffer.get(data);
+			return new String(data, StandardCharsets.UTF_8);
+		}
+
+		void advance() {
+			final int readPosition = this.buffer.getInt(0);
+			this.buffer.putInt(0, readPosition + LENGTH_SIZE + this.buffer.getInt(readPosition));
+		}
+
+		void rewind() {
+			this.buffer.putInt(HEADER_SIZE, 0);
+			this.buffer.putInt(0, HEADER_SIZE);
+			this.writePosition = HEADER_SIZE;
+		}
+
+		boolean isDrained() {
+			return this.buffer.getInt(0) >= this.writePosition;
+		}
+
+		long getPendingBytes() {
+			return Math.max(0, this.writePosition - this.buffer.getInt(0));
+		}
+
+		long countPending() {
+			long count = 0;
+			for (int p = this.buffer.getInt(0); p < this.writePosition; p += LENGTH_SIZE + this.buffer.getInt(p)) {
+				count++;
+			}
+			return count;
+		}
+
+		/*
+		 * La mappatura viene rilasciata subito, altrimenti su Windows il file non può essere cancellato
+		 * finchè il buffer non viene raccolto dal garbage collector. Il segmento non deve più essere usato.
+		 */
+		void close() {
+			this.buffer.force();
+			Utilities.unmap(this.buffer);
+		}
+
+		void delete() {
+			this.close();
+			try {
+				Files.deleteIfExists(this.file);
+			} catch (IOException e) {
+				System.err.println("UplinkSpool : " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package pipeline;
+
+import java.util.Arrays;
+
+import event.Event;
+import event.EventDispatcher;
+import event.EventType;
+import io.SerialMessage;
+import utilities.KeyValues;
+import utilities.Scheduler;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Fase che sostituisce le letture grezze con un riepilogo periodico per ogni sensore.
+ *
+ * Le righe che contengono coppie {@code chiave=valore} numeriche vengono consumate: i valori vengono 
+ * accumulati (minimo, massimo, somma, conteggio) in array di primitivi indicizzati tramite {@link KeyTable}.
+ * Ogni slide millisecondi viene inviato al server, per ogni chiave, un riepilogo degli ultimi window millisecondi
+ * nel formato {@code <id>:<chiave> min=<> max=<> avg=<> count=<>}. Se slide è uguale a window le finestre 
+ * sono consecutive (tumbling), altrimenti si sovrappongono (sliding).
+ * Le righe senza valori numerici passano inalterate. Poichè i riepiloghi sono diretti al server,
+ * la fase va usata solo sul pipeline dei messaggi ricevuti dai dispositivi.
+ *
+ */
+final class AggregationStage implements Stage, KeyValues.Visitor {
+
+	private final int panes;
+	private final KeyTable table;
+	private final Scheduler.Timeout timer;
+	private final StringBuilder builder;
+	private final EventDispatcher dispatcher;
+	private double[] min;
+	private double[] max;
+	private double[] sum;
+	private long[] count;
+	private int pane;
+	private String deviceId;
+	private boolean consumed;
+
+	/**
+	 *
+	 * @param window : durata della finestra in millisecondi
+	 * @param slide : intervallo tra due riepiloghi in millisecondi, deve dividere window
+	 * @param dispatcher : event dispatcher a cui vengono inviati i riepiloghi
+	 */
+	AggregationStage(final long window, final long slide, final EventDispatcher dispatcher) {
+		if (slide <= 0 || window < slide || window % slide != 0) {
+			throw new IllegalArgumentException("The window must be a multiple of the slide");
+		}
+
+		this.panes = (int) (window / slide);
+		this.table = new KeyTable();
+		this.builder = new StringBuilder();
+		this.dispatcher = dispatcher;
+		this.allocate(this.table.capacity());
+		this.timer = Scheduler.getScheduler().scheduleAtFixedRate(this::emit, slide);
+	}
+
+	@Override
+	public synchronized String process(final String deviceId, final String message) {
+		this.deviceId = deviceId;
+		this.consumed = false;
+		KeyValues.parse(message, this);
+		return this.consumed ? null : message;
+	}
+
+	@Override
+	public void visit(final String line, final int keyStart, final int keyEnd, final int valueStart, final int valueEnd) {
+		final double value = KeyValues.parseDouble(line, valueStart, valueEnd);
+		if (Double.isNaN(value)) {
+			return;
+		}
+
+		final int id = this.table.intern(this.deviceId, line, keyStart, keyEnd);
+		if (this.table.capacity() * this.panes > this.count.length) {
+			this.allocate(this.table.capacity());
+		}
+
+		final int i = id * this.panes + this.pane;
+		this.min[i] = Math.min(this.min[i], value);
+		this.max[i] = Math.max(this.max[i], value);
+		this.sum[i] += value;
+		this.count[i]++;
+		this.consumed = true;
+	}
+
+	@Override
+	public void close() {
+		this.timer.cancel();
+	}
+
+	private synchronized void emit() {
+		for (int id = 0; id < this.table.size(); id++) {
+			double windowMin = Double.POSITIVE_INFINITY;
+			double windowMax = Double.NEGATIVE_INFINITY;
+			double windowSum = 0;
+			long windowCount = 0;
+			for (int p = id * this.panes; p < (id + 1) * this.panes; p++) {
+				windowMin = Math.min(windowMin, this.min[p]);
+				windowMax = Math.max(windowMax, this.max[p]);
+				windowSum += this.sum[p];
+				windowCount += this.count[p];
+			}
+
+			if (windowCount > 0) {
+				this.builder.setLength(0);
+				this.builder.append(this.table.device(id)).append(SerialMessage.SEPARATOR)
+					.append(this.table.key(id)).append(" min=");
+				KeyValues.appendNumber(this.builder, windowMin).append(" max=");
+				KeyValues.appendNumber(this.builder, windowMax).append(" avg=");
+				KeyValues.appendNumber(this.builder, windowSum / windowCount).append(" count=").append(windowCount);
+				this.dispatcher.dispatchEvent(new Event(EventType.message_to_server, this.builder.toString()));
+			}
+		}
+
+		this.pane = (this.pane + 1) % this.panes;
+		for (int id = 0; id < this.table.size(); id++) {
+			this.reset(id * this.panes + this.pane);
+		}
+	}
+
+	private void allocate(final int capacity) {
+		final int size = capacity * this.panes;
+		final int old = this.count == null ? 0 : this.count.length;
+		this.min = this.min == null ? new double[size] : Arrays.copyOf(this.min, size);
+		this.max = this.max == null ? new double[size] : Arrays.copyOf(this.max, size);
+		this.sum = this.sum == null ? new double[size] : Arrays.copyOf(this.sum, size);
+		this.count = this.count == null ? new long[size] : Arrays.copyOf(this.count, size);
+		for (int i = old; i < size; i++) {
+			this.reset(i);
+		}
+	}
+
+	private void reset(final int i) {
+		this.min[i] = Double.POSITIVE_INFINITY;
+		this.max[i] = Double.NEGATIVE_INFINITY;
+		this.sum[i] = 0;
+		this.count[i] = 0;
+	}
+}
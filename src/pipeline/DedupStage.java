@@ -0,0 +1,187 @@
+package pipeline;
+
+import java.util.Arrays;
+
+import utilities.KeyValues;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Fase che elimina i valori ripetuti dai messaggi diretti al server.
+ *
+ * Per ogni coppia {@code chiave=valore} viene ricordato l'ultimo valore inviato: le coppie invariate vengono
+ * rimosse e se nessuna coppia è cambiata il messaggio viene scartato. Ogni keyframe millisecondi una chiave
+ * viene comunque inviata, così il server può ricostruire lo stato anche dopo aver perso dei messaggi.
+ * Le righe senza coppie chiave/valore vengono scartate se identiche all'ultima inviata dallo stesso dispositivo.
+ * Il testo che precede le coppie (ad esempio il nome del sensore o una parola di stato) fa parte del confronto:
+ * se è diverso da quello dell'ultimo valore inviato per la stessa chiave la coppia viene inviata per intero.
+ *
+ * In modalità delta i valori numerici cambiati (esclusi i keyframe) vengono inviati come differenza 
+ * rispetto all'ultimo valore inviato, nel formato {@code chiave+=delta}, quando la differenza
+ * è più corta del valore assoluto. La differenza è calcolata in modo esatto sulle cifre decimali dei valori
+ * (ad esempio da t=21.53 a t=21.54 viene inviato t+=0.01), per cui il ricevente ottiene esattamente il valore letto.
+ *
+ * Sul pipeline dei messaggi diretti ai dispositivi le chiavi sono comuni a tutti i dispositivi (id null).
+ *
+ * Il confronto avviene sulla riga originale e la tabella degli ultimi valori è formata da array di primitivi:
+ * un messaggio scartato non alloca alcun oggetto.
+ *
+ */
+final class DedupStage implements Stage, KeyValues.Visitor {
+
+	private final long keyframe;
+	private final boolean delta;
+	private final KeyTable table;
+	private final StringBuilder builder;
+	private double[] lastValues;
+	private long[] lastMantissas;
+	private int[] lastDecimals;
+	private String[] lastTexts;
+	private String[] lastPrefixes;
+	private long[] lastSent;
+	private String deviceId;
+	private String prefix;
+	private int prefixEnd;
+	private long now;
+	private int pairs;
+	private int changed;
+
+	/**
+	 *
+	 * @param keyframe : intervallo in millisecondi dopo il quale una chiave viene inviata anche se invariata
+	 * @param delta : true per inviare i valori numerici come differenza dall'ultimo valore inviato
+	 */
+	DedupStage(final long keyframe, final boolean delta) {
+		this.keyframe = keyframe;
+		this.delta = delta;
+		this.table = new KeyTable();
+		this.builder = new StringBuilder();
+		this.allocate(this.table.capacity());
+	}
+
+	@Override
+	public String process(final String deviceId, final String message) {
+		this.deviceId = deviceId;
+		this.prefix = null;
+		this.now = System.currentTimeMillis();
+		this.pairs = 0;
+		this.changed = 0;
+		this.builder.setLength(0);
+		KeyValues.parse(message, this);
+
+		if (this.pairs == 0) {
+			// le righe senza coppie vengono confrontate per intero, usando la chiave vuota del dispositivo
+			final int id = this.intern(deviceId, "", 0, 0);
+			if (message.equals(this.lastTexts[id]) && this.now - this.lastSent[id] < this.keyframe) {
+				return null;
+			}
+			this.lastTexts[id] = message;
+			this.lastSent[id] = this.now;
+			return message;
+		}
+
+		return this.changed == 0 ? null : this.builder.toString();
+	}
+
+	@Override
+	public void visit(final String line, final int keyStart, final int keyEnd, final int valueStart, final int valueEnd) {
+		if (this.pairs++ == 0) {
+			// il testo che precede la prima coppia (ad esempio il nome del sensore) viene mantenuto
+			this.builder.append(line, 0, keyStart);
+			this.prefixEnd = keyStart;
+		}
+
+		final int id = this.intern(this.deviceId, line, keyStart, keyEnd);
+
+		// un prefisso diverso (altro sensore o altro stato) viene trattato come un keyframe
+		final String lastPrefix = this.lastPrefixes[id];
+		final boolean samePrefix = lastPrefix != null && lastPrefix.length() == this.prefixEnd
+				&& lastPrefix.regionMatches(0, line, 0, this.prefixEnd);
+		final boolean isKeyframe = this.now - this.lastSent[id] >= this.keyframe || !samePrefix;
+		final double value = KeyValues.parseDouble(line, valueStart, valueEnd);
+		final boolean numeric = !Double.isNaN(value);
+		final String lastText = this.lastTexts[id];
+
+		if (!isKeyframe && this.lastSent[id] != 0) {
+			if (numeric && lastText == null && value == this.lastValues[id]) {
+				return;
+			}
+			if (!numeric && lastText != null && lastText.length() == valueEnd - valueStart
+					&& lastText.regionMatches(0, line, valueStart, valueEnd - valueStart)) {
+				return;
+			}
+		}
+
+		if (this.changed++ > 0) {
+			this.builder.append(' ');
+		}
+		this.builder.append(line, keyStart, keyEnd);
+
+		final int mark = this.builder.length();
+		final long mantissa = numeric ? KeyValues.parseMantissa(line, valueStart, valueEnd) : KeyValues.NOT_DECIMAL;
+		final int decimals = KeyValues.decimals(line, valueStart, valueEnd);
+		if (mantissa != KeyValues.NOT_DECIMAL && this.lastMantissas[id] != KeyValues.NOT_DECIMAL
+				&& this.delta && !isKeyframe && this.lastSent[id] != 0 && lastText == null) {
+			this.appendDifference(mantissa, decimals, this.lastMantissas[id], this.lastDecimals[id]);
+		}
+
+		// la differenza viene inviata solo se è più corta del valore assoluto
+		if (this.builder.length() == mark || this.builder.length() - mark >= valueEnd - keyEnd) {
+			this.builder.setLength(mark);
+			this.builder.append(line, keyEnd, valueEnd);
+		}
+
+		// la differenza è esatta, per cui in entrambi i casi il ricevente ha il valore letto
+		this.lastValues[id] = value;
+		this.lastMantissas[id] = mantissa;
+		this.lastDecimals[id] = decimals;
+		this.lastTexts[id] = numeric ? null : line.substring(valueStart, valueEnd);
+		this.lastSent[id] = this.now;
+		if (!samePrefix) {
+			if (this.prefix == null) {
+				this.prefix = line.substring(0, this.prefixEnd);
+			}
+			this.lastPrefixes[id] = this.prefix;
+		}
+	}
+
+	/*
+	 * I due valori vengono portati allo stesso numero di cifre decimali; se le cifre non stanno in un long
+	 * la differenza non viene scritta e il valore viene inviato per intero.
+	 */
+	private void appendDifference(final long mantissa, final int decimals, final long last, final int lastDecimals) {
+		final int scale = Math.max(decimals, lastDecimals);
+		try {
+			final long difference = Math.subtractExact(scale(mantissa, scale - decimals), scale(last, scale - lastDecimals));
+			KeyValues.appendDecimal(this.builder.append("+="), difference, scale);
+		} catch (ArithmeticException e) {
+			// il valore viene inviato per intero
+		}
+	}
+
+	private static long scale(final long mantissa, final int digits) {
+		long result = mantissa;
+		for (int i = 0; i < digits; i++) {
+			result = Math.multiplyExact(result, 10);
+		}
+		return result;
+	}
+
+	private int intern(final String device, final String line, final int start, final int end) {
+		final int id = this.table.intern(device, line, start, end);
+		if (this.table.capacity() > this.lastSent.length) {
+			this.allocate(this.table.capacity());
+		}
+		return id;
+	}
+
+	private void allocate(final int capacity) {
+		this.lastValues = this.lastValues == null ? new double[capacity] : Arrays.copyOf(this.lastValues, capacity);
+		this.lastMantissas = this.lastMantissas == null ? new long[capacity] : Arrays.copyOf(this.lastMantissas, capacity);
+		this.lastDecimals = this.lastDecimals == null ? new int[capacity] : Arrays.copyOf(this.lastDecimals, capacity);
+		this.lastTexts = this.lastTexts == null ? new String[capacity] : Arrays.copyOf(this.lastTexts, capacity);
+		this.lastPrefixes = this.lastPrefixes == null ? new String[capacity] : Arrays.copyOf(this.lastPrefixes, capacity);
+		this.lastSent = this.lastSent == null ? new long[capacity] : Arrays.copyOf(this.lastSent, capacity);
+	}
+}
@@ -0,0 +1,120 @@
+package pipeline;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Tabella hash ad indirizzamento aperto che associa ad ogni coppia (dispositivo, chiave)
+ * un indice intero progressivo, usato dalle fasi per indicizzare array di primitivi.
+ *
+ * La chiave viene confrontata direttamente sulla porzione della riga che la contiene:
+ * una stringa viene creata (e internata) solo la prima volta che una chiave viene incontrata.
+ * I messaggi diretti ai dispositivi non hanno un dispositivo di origine: le loro chiavi sono associate all'id null.
+ *
+ */
+final class KeyTable {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int[] slots;
+	private String[] devices;
+	private String[] keys;
+	private int[] hashes;
+	private int size;
+
+	KeyTable() {
+		this.slots = new int[INITIAL_CAPACITY * 2];
+		Arrays.fill(this.slots, -1);
+		this.devices = new String[INITIAL_CAPACITY];
+		this.keys = new String[INITIAL_CAPACITY];
+		this.hashes = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Restituisce l'indice associato alla chiave, inserendola se non presente.
+	 * @param deviceId : id del dispositivo, null per i messaggi diretti ai dispositivi
+	 * @param line : riga che contiene la chiave
+	 * @param start : indice del primo carattere della chiave
+	 * @param end : indice successivo all'ultimo carattere della chiave
+	 * @return indice della chiave, compreso tra 0 e {@link #size()} - 1
+	 */
+	int intern(final String deviceId, final String line, final int start, final int end) {
+		int hash = Objects.hashCode(deviceId);
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + line.charAt(i);
+		}
+
+		final int mask = this.slots.length - 1;
+		int slot = mix(hash) & mask;
+		while (this.slots[slot] >= 0) {
+			final int id = this.slots[slot];
+			if (this.hashes[id] == hash && this.keys[id].length() == end - start
+					&& this.keys[id].regionMatches(0, line, start, end - start) && Objects.equals(this.devices[id], deviceId)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (this.size == this.keys.length) {
+			this.grow();
+			return this.intern(deviceId, line, start, end);
+		}
+
+		final int id = this.size++;
+		this.devices[id] = deviceId;
+		this.keys[id] = line.substring(start, end).intern();
+		this.hashes[id] = hash;
+		this.slots[slot] = id;
+		return id;
+	}
+
+	/**
+	 *
+	 * @return numero di chiavi presenti
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 *
+	 * @return numero di chiavi che la tabella può contenere senza essere ingrandita
+	 */
+	int capacity() {
+		return this.keys.length;
+	}
+
+	String device(final int id) {
+		return this.devices[id];
+	}
+
+	String key(final int id) {
+		return this.keys[id];
+	}
+
+	private void grow() {
+		final int capacity = this.keys.length * 2;
+		this.devices = Arrays.copyOf(this.devices, capacity);
+		this.keys = Arrays.copyOf(this.keys, capacity);
+		this.hashes = Arrays.copyOf(this.hashes, capacity);
+		this.slots = new int[capacity * 2];
+		Arrays.fill(this.slots, -1);
+
+		final int mask = this.slots.length - 1;
+		for (int id = 0; id < this.size; id++) {
+			int slot = mix(this.hashes[id]) & mask;
+			while (this.slots[slot] >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			this.slots[slot] = id;
+		}
+	}
+
+	private static int mix(final int hash) {
+		final int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
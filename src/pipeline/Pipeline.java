@@ -0,0 +1,162 @@
+package pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Catena immutabile di {@link Stage} applicata ai messaggi tra i dispositivi e il server.
+ * La catena viene composta una sola volta tramite {@link Builder}; l'elaborazione di un messaggio
+ * è un semplice ciclo sulle fasi, senza ricerche o reflection.
+ *
+ * Per ogni fase vengono misurati il tempo totale di elaborazione, il numero di messaggi elaborati
+ * e quello dei messaggi scartati. Un pipeline deve essere usato da un solo thread (il thread 
+ * dell'event dispatcher); le statistiche lette da altri thread sono indicative.
+ *
+ */
+public final class Pipeline {
+
+	/**
+	 * Pipeline vuoto, lascia passare i messaggi inalterati.
+	 */
+	public static final Pipeline EMPTY = new Builder().build();
+
+	private final List<String> specs;
+	private final Stage[] stages;
+	private final long[] nanos;
+	private final long[] processed;
+	private final long[] dropped;
+
+	private Pipeline(final List<String> specs, final Stage[] stages) {
+		this.specs = Collections.unmodifiableList(specs);
+		this.stages = stages;
+		this.nanos = new long[stages.length];
+		this.processed = new long[stages.length];
+		this.dropped = new long[stages.length];
+	}
+
+	/**
+	 * Applica in sequenza tutte le fasi al messaggio.
+	 * @param deviceId : id del dispositivo che ha inviato il messaggio, null per i messaggi diretti ai dispositivi
+	 * @param message : messaggio da elaborare
+	 * @return messaggio elaborato, null se una delle fasi lo ha scartato
+	 */
+	public String process(final String deviceId, final String message) {
+		String result = message;
+		for (int i = 0; i < this.stages.length; i++) {
+			final long start = System.nanoTime();
+			result = this.stages[i].process(deviceId, result);
+			this.nanos[i] += System.nanoTime() - start;
+			this.processed[i]++;
+			if (result == null) {
+				this.dropped[i]++;
+				return null;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Chiude tutte le fasi del pipeline, da invocare quando il pipeline viene rimosso.
+	 */
+	public void close() {
+		for (final Stage stage : this.stages) {
+			stage.close();
+		}
+	}
+
+	/**
+	 *
+	 * @return true se il pipeline non contiene fasi
+	 */
+	public boolean isEmpty() {
+		return this.stages.length == 0;
+	}
+
+	/**
+	 *
+	 * @return specifiche delle fasi, nell'ordine in cui vengono applicate
+	 */
+	public List<String> getSpecs() {
+		return this.specs;
+	}
+
+	/**
+	 *
+	 * @return una riga per fase con messaggi elaborati, scartati e tempo medio di elaborazione
+	 */
+	public List<String> getStatistics() {
+		final List<String> lines = new ArrayList<>();
+		for (int i = 0; i < this.stages.length; i++) {
+			final long count = this.processed[i];
+			lines.add(String.format("%d. %s - processed: %d, dropped: %d, avg: %d ns", i + 1, this.specs.get(i),
+					count, this.dropped[i], count == 0 ? 0 : this.nanos[i] / count));
+		}
+
+		return lines;
+	}
+
+	/**
+	 *
+	 * Builder con cui comporre un {@link Pipeline}.
+	 *
+	 */
+	public static final class Builder {
+
+		private final List<String> specs;
+		private final List<Stage> stages;
+
+		/**
+		 * Crea un builder vuoto.
+		 */
+		public Builder() {
+			this.specs = new ArrayList<>();
+			this.stages = new ArrayList<>();
+		}
+
+		/**
+		 * Crea un builder che contiene le fasi di un pipeline esistente.
+		 * @param base : pipeline di partenza
+		 */
+		public Builder(final Pipeline base) {
+			this();
+			for (int i = 0; i < base.stages.length; i++) {
+				this.add(base.specs.get(i), base.stages[i]);
+			}
+		}
+
+		/**
+		 * Aggiunge una fase predefinita (vedi {@link Stages}).
+		 * @param spec : specifica della fase
+		 * @return questo builder
+		 * @throws IllegalArgumentException se la specifica non è valida
+		 */
+		public Builder add(final String spec) {
+			return this.add(spec, Stages.create(spec));
+		}
+
+		/**
+		 * Aggiunge una fase.
+		 * @param name : nome della fase usato nelle statistiche
+		 * @param stage : fase da aggiungere
+		 * @return questo builder
+		 */
+		public Builder add(final String name, final Stage stage) {
+			this.specs.add(name);
+			this.stages.add(stage);
+			return this;
+		}
+
+		/**
+		 *
+		 * @return nuovo {@link Pipeline} con le fasi aggiunte
+		 */
+		public Pipeline build() {
+			return new Pipeline(new ArrayList<>(this.specs), this.stages.toArray(new Stage[this.stages.size()]));
+		}
+	}
+}
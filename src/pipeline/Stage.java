@@ -0,0 +1,26 @@
+package pipeline;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Fase di elaborazione di un {@link Pipeline}: filtra, trasforma o arricchisce un messaggio
+ * che transita tra un dispositivo e il server.
+ *
+ */
+@FunctionalInterface
+public interface Stage {
+
+	/**
+	 * Elabora un messaggio.
+	 * @param deviceId : id del dispositivo che ha inviato il messaggio, null per i messaggi diretti ai dispositivi
+	 * @param message : messaggio da elaborare
+	 * @return messaggio elaborato, null se il messaggio deve essere scartato
+	 */
+	String process(String deviceId, String message);
+
+	/**
+	 * Rilascia le risorse della fase (ad esempio i timer) quando viene rimossa dal pipeline.
+	 */
+	default void close() { }
+}
@@ -0,0 +1,156 @@
+package pipeline;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import event.EventDispatcher;
+import utilities.KeyValues;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Fasi predefinite utilizzabili in un {@link Pipeline}. Ogni fase viene creata a partire
+ * da una specifica testuale nella forma {@code <nome> [argomenti...]}:
+ *
+ * - filter <regex> : mantiene solo i messaggi che contengono la regex
+ * - drop <regex> : scarta i messaggi che contengono la regex
+ * - replace <regex> <sostituzione> : sostituisce tutte le occorrenze della regex
+ * - timestamp : antepone al messaggio il timestamp in millisecondi
+ * - device : antepone al messaggio l'id del dispositivo
+ * - scale <chiave> <fattore> [offset] : converte il valore numerico della chiave data (valore * fattore + offset)
+ * - route <regex> <id> : indirizza al dispositivo dato i messaggi che contengono la regex
+ * - aggregate <window> [slide] : sostituisce le letture numeriche con un riepilogo periodico 
+ *   (vedi {@link AggregationStage})
+ * - dedup <keyframe> [delta] : rimuove i valori invariati e opzionalmente invia le differenze (vedi {@link DedupStage})
+ *
+ */
+public final class Stages {
+
+	private Stages() { }
+
+	/**
+	 * Crea una fase a partire dalla sua specifica.
+	 * @param spec : specifica della fase
+	 * @return oggetto {@link Stage}
+	 * @throws IllegalArgumentException se la specifica non è valida
+	 */
+	public static Stage create(final String spec) {
+		return create(spec, EventDispatcher.getDispatcher());
+	}
+
+	/**
+	 * Crea una fase a partire dalla sua specifica.
+	 * @param spec : specifica della fase
+	 * @param dispatcher : event dispatcher a cui le fasi periodiche inviano i messaggi generati
+	 * @return oggetto {@link Stage}
+	 * @throws IllegalArgumentException se la specifica non è valida
+	 */
+	public static Stage create(final String spec, final EventDispatcher dispatcher) {
+		final String[] args = spec.trim().split("\\s+");
+		switch (args[0]) {
+			case "filter" :
+				requireArgs(args, 2);
+				return filter(Pattern.compile(args[1]), true);
+
+			case "drop" :
+				requireArgs(args, 2);
+				return filter(Pattern.compile(args[1]), false);
+
+			case "replace" :
+				requireArgs(args, 3);
+				return replace(Pattern.compile(args[1]), args[2]);
+
+			case "timestamp" :
+				return (deviceId, message) -> System.currentTimeMillis() + " " + message;
+
+			case "device" :
+				return (deviceId, message) -> deviceId == null ? message : deviceId + " " + message;
+
+			case "scale" :
+				requireArgs(args, 3);
+				return new Scale(args[1], Double.parseDouble(args[2]), args.length > 3 ? Double.parseDouble(args[3]) : 0);
+
+			case "route" :
+				requireArgs(args, 3);
+				return route(Pattern.compile(args[1]), args[2]);
+
+			case "aggregate" :
+				requireArgs(args, 2);
+				return new AggregationStage(Long.parseLong(args[1]), args.length > 2 ? Long.parseLong(args[2]) 
+						: Long.parseLong(args[1]), dispatcher);
+
+			case "dedup" :
+				requireArgs(args, 2);
+				return new DedupStage(Long.parseLong(args[1]), args.length > 2 && "delta".equals(args[2]));
+
+			default :
+				throw new IllegalArgumentException("Unknown stage " + args[0]);
+		}
+	}
+
+	private static void requireArgs(final String[] args, final int count) {
+		if (args.length < count) {
+			throw new IllegalArgumentException("Arguments missing for stage " + Arrays.toString(args));
+		}
+	}
+
+	private static Stage filter(final Pattern pattern, final boolean keep) {
+		final Matcher matcher = pattern.matcher("");
+		return (deviceId, message) -> matcher.reset(message).find() == keep ? message : null;
+	}
+
+	private static Stage replace(final Pattern pattern, final String replacement) {
+		final Matcher matcher = pattern.matcher("");
+		return (deviceId, message) -> matcher.reset(message).replaceAll(replacement);
+	}
+
+	private static Stage route(final Pattern pattern, final String target) {
+		final Matcher matcher = pattern.matcher("");
+		return (deviceId, message) -> matcher.reset(message).find() ? target + ':' + message : message;
+	}
+
+	/**
+	 * 
+	 * Fase che converte il valore numerico di una chiave, lasciando inalterato il resto del messaggio.
+	 *
+	 */
+	private static final class Scale implements Stage, KeyValues.Visitor {
+		
+		private final String key;
+		private final double factor;
+		private final double offset;
+		private final StringBuilder builder;
+		private int copied;
+		
+		Scale(final String key, final double factor, final double offset) {
+			this.key = key;
+			this.factor = factor;
+			this.offset = offset;
+			this.builder = new StringBuilder();
+		}
+		
+		@Override
+		public String process(final String deviceId, final String message) {
+			this.builder.setLength(0);
+			this.copied = 0;
+			KeyValues.parse(message, this);
+			return this.copied == 0 ? message : this.builder.append(message, this.copied, message.length()).toString();
+		}
+		
+		@Override
+		public void visit(final String line, final int keyStart, final int keyEnd, final int valueStart, 
+				final int valueEnd) {
+			
+			if (keyEnd - keyStart == this.key.length() && line.regionMatches(keyStart, this.key, 0, this.key.length())) {
+				final double value = KeyValues.parseDouble(line, valueStart, valueEnd);
+				if (!Double.isNaN(value)) {
+					this.builder.append(line, this.copied, valueStart);
+					KeyValues.appendNumber(this.builder, value * this.factor + this.offset);
+					this.copied = valueEnd;
+				}
+			}
+		}
+	}
+}
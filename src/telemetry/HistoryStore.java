@@ -0,0 +1,422 @@
+package telemetry;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.SerialMessage;
+import utilities.KeyValues;
+import utilities.Utilities;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Archivio locale delle serie temporali ricevute dai dispositivi.
+ *
+ * Le misure vengono memorizzate in un file mappato in memoria diviso in blocchi di dimensione fissa,
+ * usati in modo circolare: quando il file è pieno il blocco più vecchio viene riutilizzato.
+ * Ogni blocco contiene una sola serie (identificata da {@code <id>/<chiave>}) e ha il formato
+ * {@code [intestazione][timestamp ->] ... [<- valori]}:
+ * - i timestamp sono codificati come differenza delle differenze (varint zigzag) e crescono dall'inizio del blocco
+ * - i valori sono codificati come XOR con il valore precedente, omettendo i byte nulli, e crescono dalla fine
+ *
+ * Per ogni serie viene mantenuto in memoria un indice sparso con l'intervallo di tempo coperto da ogni blocco,
+ * per cui una ricerca decodifica solo i blocchi che intersecano l'intervallo richiesto.
+ *
+ */
+public final class HistoryStore implements KeyValues.Visitor {
+
+	private static final int BLOCK_SIZE = 4096;
+	private static final int MAX_KEY_SIZE = 64;
+	private static final int KEY_OFFSET = 2;
+	private static final int COUNT_OFFSET = KEY_OFFSET + MAX_KEY_SIZE;
+	private static final int FIRST_OFFSET = COUNT_OFFSET + 4;
+	private static final int LAST_OFFSET = FIRST_OFFSET + 8;
+	private static final int TIME_END_OFFSET = LAST_OFFSET + 8;
+	private static final int VALUE_END_OFFSET = TIME_END_OFFSET + 4;
+	private static final int HEADER_SIZE = VALUE_END_OFFSET + 4;
+	private static final int MAX_TIME_SIZE = 10;
+	private static final int MAX_VALUE_SIZE = 9;
+	private static final char QUALIFIER = '/';
+
+	private final MappedByteBuffer buffer;
+	private final int blocks;
+	private final Series[] owners;
+	private final Map<String, Series> series;
+	private int nextBlock;
+	private long points;
+	private String deviceId;
+	private long now;
+	private boolean closed;
+
+	/**
+	 * Apre l'archivio nel file dato, recuperando le misure memorizzate da un'esecuzione precedente.
+	 * @param file : file dell'archivio
+	 * @param maxBytes : dimensione massima del file
+	 * @throws IOException se si verifica un errore I/O
+	 */
+	public HistoryStore(final Path file, final long maxBytes) throws IOException {
+		this.blocks = (int) Math.max(2, Math.min(Integer.MAX_VALUE / BLOCK_SIZE, maxBytes / BLOCK_SIZE));
+		this.owners = new Series[this.blocks];
+		this.series = new HashMap<>();
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength((long) this.blocks * BLOCK_SIZE);
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) this.blocks * BLOCK_SIZE);
+		}
+
+		this.recover();
+	}
+
+	/**
+	 * Memorizza i valori numerici contenuti in un messaggio ricevuto da un dispositivo.
+	 * @param message : messaggio ricevuto
+	 */
+	public synchronized void append(final SerialMessage message) {
+		this.deviceId = message.getDeviceId();
+		this.now = System.currentTimeMillis();
+		KeyValues.parse(message.getText(), this);
+	}
+
+	@Override
+	public void visit(final String line, final int keyStart, final int keyEnd, final int valueStart, final int valueEnd) {
+		final double value = KeyValues.parseDouble(line, valueStart, valueEnd);
+		if (!Double.isNaN(value)) {
+			this.append(this.deviceId + QUALIFIER + line.substring(keyStart, keyEnd), this.now, value);
+		}
+	}
+
+	/**
+	 * Memorizza una misura.
+	 * @param key : nome della serie, nel formato {@code <id>/<chiave>}
+	 * @param time : istante della misura in millisecondi
+	 * @param value : valore della misura
+	 */
+	public synchronized void append(final String key, final long time, final double value) {
+		if (this.closed) {
+			return;
+		}
+		
+		Series s = this.series.get(key);
+		if (s == null) {
+			final byte[] name = key.getBytes(StandardCharsets.UTF_8);
+			if (name.length > MAX_KEY_SIZE) {
+				return;
+			}
+			s = new Series(name);
+			this.series.put(key, s);
+		}
+
+		if (s.current < 0 || !this.write(s, time, value)) {
+			this.open(s, time, value);
+		}
+		this.points++;
+	}
+
+	/**
+	 * Legge le misure di una serie comprese nell'intervallo dato, in ordine cronologico.
+	 * @param key : nome della serie, nel formato {@code <id>/<chiave>}
+	 * @param from : inizio dell'intervallo in millisecondi (incluso)
+	 * @param to : fine dell'intervallo in millisecondi (incluso)
+	 * @param reader : oggetto {@link Reader} che riceve le misure
+	 * @return numero di misure lette
+	 */
+	public synchronized int query(final String key, final long from, final long to, final Reader reader) {
+		final Series s = this.series.get(key);
+		if (s == null || this.closed) {
+			return 0;
+		}
+
+		int count = 0;
+		for (final BlockRange range : s.index) {
+			if (range.first <= to && this.buffer.getLong(range.block * BLOCK_SIZE + LAST_OFFSET) >= from) {
+				count += this.scan(range.block, from, to, reader);
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 *
+	 * @return numero di serie memorizzate
+	 */
+	public synchronized int getSeriesCount() {
+		return this.series.size();
+	}
+
+	/**
+	 *
+	 * @return numero di misure memorizzate da quando l'archivio è stato aperto
+	 */
+	public synchronized long getPoints() {
+		return this.points;
+	}
+
+	/**
+	 *
+	 * @return numero di blocchi del file
+	 */
+	public int getBlocks() {
+		return this.blocks;
+	}
+
+	/**
+	 * Scrive su disco le modifiche e rilascia la mappatura del file, per cui il file può essere riaperto
+	 * o cancellato anche su Windows. Le misure successive vengono ignorate.
+	 */
+	public synchronized void close() {
+		if (!this.closed) {
+			this.closed = true;
+			this.buffer.force();
+			Utilities.unmap(this.buffer);
+		}
+	}
+
+	/**
+	 *
+	 * Oggetto che riceve le misure lette dall'archivio.
+	 *
+	 */
+	@FunctionalInterface
+	public interface Reader {
+
+		/**
+		 * Invocato per ogni misura letta.
+		 * @param time : istante della misura in millisecondi
+		 * @param value : valore della misura
+		 */
+		void read(long time, double value);
+	}
+
+	private void open(final Series s, final long time, final double value) {
+		final int block = this.nextBlock;
+		this.nextBlock = (this.nextBlock + 1) % this.blocks;
+		this.evict(block);
+
+		final int base = block * BLOCK_SIZE;
+		this.buffer.putShort(base, (short) s.name.length);
+		for (int i = 0; i < s.name.length; i++) {
+			this.buffer.put(base + KEY_OFFSET + i, s.name[i]);
+		}
+		this.buffer.putInt(base + COUNT_OFFSET, 1);
+		this.buffer.putLong(base + FIRST_OFFSET, time);
+		this.buffer.putLong(base + LAST_OFFSET, time);
+		this.buffer.putInt(base + TIME_END_OFFSET, HEADER_SIZE);
+		this.buffer.putInt(base + VALUE_END_OFFSET, BLOCK_SIZE - 8);
+		this.buffer.putLong(base + BLOCK_SIZE - 8, Double.doubleToRawLongBits(value));
+
+		this.owners[block] = s;
+		s.index.addLast(new BlockRange(block, time));
+		s.current = block;
+		s.lastTime = time;
+		s.lastDelta = 0;
+		s.lastBits = Double.doubleToRawLongBits(value);
+	}
+
+	/*
+	 * La misura viene scritta solo se entrambe le regioni hanno spazio sufficiente;
+	 * il conteggio viene aggiornato per ultimo, così una misura incompleta non viene mai letta.
+	 */
+	private boolean write(final Series s, final long time, final double value) {
+		final int base = s.current * BLOCK_SIZE;
+		final int timeEnd = this.buffer.getInt(base + TIME_END_OFFSET);
+		final int valueEnd = this.buffer.getInt(base + VALUE_END_OFFSET);
+		if (timeEnd + MAX_TIME_SIZE > valueEnd - MAX_VALUE_SIZE || time < s.lastTime) {
+			return false;
+		}
+
+		final long delta = time - s.lastTime;
+		final long bits = Double.doubleToRawLongBits(value);
+		final int newTimeEnd = this.putVarLong(base + timeEnd, zigzag(delta - s.lastDelta)) - base;
+		final int newValueEnd = this.putXor(base + valueEnd, bits ^ s.lastBits) - base;
+
+		this.buffer.putInt(base + TIME_END_OFFSET, newTimeEnd);
+		this.buffer.putInt(base + VALUE_END_OFFSET, newValueEnd);
+		this.buffer.putLong(base + LAST_OFFSET, time);
+		this.buffer.putInt(base + COUNT_OFFSET, this.buffer.getInt(base + COUNT_OFFSET) + 1);
+
+		s.lastTime = time;
+		s.lastDelta = delta;
+		s.lastBits = bits;
+		return true;
+	}
+
+	private int scan(final int block, final long from, final long to, final Reader reader) {
+		final int base = block * BLOCK_SIZE;
+		final int count = this.buffer.getInt(base + COUNT_OFFSET);
+		long time = this.buffer.getLong(base + FIRST_OFFSET);
+		long bits = this.buffer.getLong(base + BLOCK_SIZE - 8);
+		long delta = 0;
+		int timePosition = base + HEADER_SIZE;
+		int valuePosition = base + BLOCK_SIZE - 8;
+		int read = 0;
+
+		for (int i = 0; i < count && time <= to; i++) {
+			if (i > 0) {
+				long raw = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = this.buffer.get(timePosition++);
+					raw |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				delta += unzigzag(raw);
+				time += delta;
+
+				final int control = this.buffer.get(--valuePosition) & 0xFF;
+				if (control != 0) {
+					long xor = 0;
+					for (int j = 0; j < (control & 0x0F); j++) {
+						xor |= (long) (this.buffer.get(--valuePosition) & 0xFF) << (8 * j);
+					}
+					bits ^= xor << (8 * (control >>> 4));
+				}
+			}
+
+			if (time >= from && time <= to) {
+				reader.read(time, Double.longBitsToDouble(bits));
+				read++;
+			}
+		}
+
+		return read;
+	}
+
+	private int putVarLong(final int position, final long value) {
+		int p = position;
+		long v = value;
+		while ((v & ~0x7FL) != 0) {
+			this.buffer.put(p++, (byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		this.buffer.put(p++, (byte) v);
+		return p;
+	}
+
+	/*
+	 * Un byte di controllo {@code [byte nulli finali][byte significativi]} seguito dai byte significativi,
+	 * scritti all'indietro. Se il valore non cambia viene scritto solo il byte di controllo nullo.
+	 */
+	private int putXor(final int position, final long xor) {
+		int p = position;
+		if (xor == 0) {
+			this.buffer.put(--p, (byte) 0);
+			return p;
+		}
+
+		final int trailing = Long.numberOfTrailingZeros(xor) / 8;
+		final int significant = 8 - Long.numberOfLeadingZeros(xor) / 8 - trailing;
+		this.buffer.put(--p, (byte) ((trailing << 4) | significant));
+		final long shifted = xor >>> (8 * trailing);
+		for (int j = 0; j < significant; j++) {
+			this.buffer.put(--p, (byte) (shifted >>> (8 * j)));
+		}
+		return p;
+	}
+
+	private void evict(final int block) {
+		final Series owner = this.owners[block];
+		if (owner != null) {
+			// i blocchi vengono riutilizzati nell'ordine in cui sono stati assegnati, quindi è il più vecchio della serie
+			owner.index.pollFirst();
+			if (owner.current == block) {
+				owner.current = -1;
+			}
+			this.owners[block] = null;
+		}
+		this.buffer.putInt(block * BLOCK_SIZE + COUNT_OFFSET, 0);
+	}
+
+	/*
+	 * Ricostruisce gli indici dalle intestazioni dei blocchi. I blocchi recuperati non vengono più estesi:
+	 * le nuove misure vengono scritte a partire dal blocco successivo a quello aggiornato più di recente.
+	 */
+	private void recover() {
+		final boolean[] used = new boolean[this.blocks];
+		long latest = Long.MIN_VALUE;
+		for (int block = 0; block < this.blocks; block++) {
+			final int base = block * BLOCK_SIZE;
+			final int length = this.buffer.getShort(base);
+			if (this.buffer.getInt(base + COUNT_OFFSET) > 0 && length > 0 && length <= MAX_KEY_SIZE) {
+				used[block] = true;
+				final long last = this.buffer.getLong(base + LAST_OFFSET);
+				if (last >= latest) {
+					latest = last;
+					this.nextBlock = (block + 1) % this.blocks;
+				}
+			}
+		}
+
+		// i blocchi vengono indicizzati nell'ordine in cui verranno riutilizzati
+		for (int i = 0; i < this.blocks; i++) {
+			final int block = (this.nextBlock + i) % this.blocks;
+			if (!used[block]) {
+				continue;
+			}
+
+			final int base = block * BLOCK_SIZE;
+			final byte[] name = new byte[this.buffer.getShort(base)];
+			for (int j = 0; j < name.length; j++) {
+				name[j] = this.buffer.get(base + KEY_OFFSET + j);
+			}
+			final String key = new String(name, StandardCharsets.UTF_8);
+			final Series s = this.series.computeIfAbsent(key, k -> new Series(name));
+			s.index.addLast(new BlockRange(block, this.buffer.getLong(base + FIRST_OFFSET)));
+			this.owners[block] = s;
+		}
+	}
+
+	private static long zigzag(final long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(final long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 *
+	 * Stato di una serie: indice sparso dei blocchi e ultimi valori scritti nel blocco corrente.
+	 *
+	 */
+	private static final class Series {
+
+		private final byte[] name;
+		private final Deque<BlockRange> index;
+		private int current;
+		private long lastTime;
+		private long lastDelta;
+		private long lastBits;
+
+		Series(final byte[] name) {
+			this.name = name;
+			this.index = new ArrayDeque<>();
+			this.current = -1;
+		}
+	}
+
+	/**
+	 *
+	 * Elemento dell'indice sparso: blocco e istante della prima misura che contiene.
+	 *
+	 */
+	private static final class BlockRange {
+
+		private final int block;
+		private final long first;
+
+		BlockRange(final int block, final long first) {
+			this.block = block;
+			this.first = first;
+		}
+	}
+}
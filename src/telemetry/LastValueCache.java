@@ -0,0 +1,166 @@
+package telemetry;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.SerialMessage;
+import utilities.KeyValues;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Cache concorrente dell'ultimo valore ricevuto per ogni chiave di telemetria.
+ *
+ * La cache viene alimentata dalle righe {@code chiave=valore} ricevute dai dispositivi; ogni valore è 
+ * memorizzato sia con la chiave semplice sia con la chiave qualificata {@code <id>/<chiave>}.
+ * Le richieste del server nella forma {@code get <chiave>} (eventualmente precedute da {@code <id>:})
+ * possono essere soddisfatte direttamente dalla cache se il valore è più recente del suo TTL,
+ * evitando un giro sulla seriale.
+ *
+ */
+public final class LastValueCache implements KeyValues.Visitor {
+
+	private static final String GET = "get ";
+	private static final char QUALIFIER = '/';
+
+	private final Map<String, Entry> entries;
+	private final Map<String, Long> ttls;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private volatile long defaultTtl;
+	private String deviceId;
+	private long now;
+
+	/**
+	 *
+	 * @param defaultTtl : tempo in millisecondi per cui un valore è considerato valido
+	 */
+	public LastValueCache(final long defaultTtl) {
+		this.entries = new ConcurrentHashMap<>();
+		this.ttls = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.defaultTtl = defaultTtl;
+	}
+
+	/**
+	 * Aggiorna la cache con i valori contenuti in un messaggio ricevuto da un dispositivo.
+	 * Deve essere invocato da un solo thread.
+	 * @param message : messaggio ricevuto
+	 */
+	public void update(final SerialMessage message) {
+		this.deviceId = message.getDeviceId();
+		this.now = System.currentTimeMillis();
+		KeyValues.parse(message.getText(), this);
+	}
+
+	@Override
+	public void visit(final String line, final int keyStart, final int keyEnd, final int valueStart, final int valueEnd) {
+		final String key = line.substring(keyStart, keyEnd);
+		final String value = line.substring(valueStart, valueEnd);
+		this.entries.computeIfAbsent(key, k -> new Entry()).set(this.deviceId, value, this.now);
+		this.entries.computeIfAbsent(this.deviceId + QUALIFIER + key, k -> new Entry()).set(this.deviceId, value, this.now);
+	}
+
+	/**
+	 * Prova a rispondere ad una richiesta del server.
+	 * @param request : messaggio ricevuto dal server
+	 * @return risposta nel formato {@code <id>:<chiave>=<valore>} se la richiesta è nella forma
+	 * {@code [<id>:]get <chiave>} e il valore è valido, altrimenti un Optional vuoto
+	 */
+	public Optional<String> answer(final String request) {
+		final int separator = request.indexOf(SerialMessage.SEPARATOR);
+		final boolean qualified = separator > 0 && request.startsWith(GET, separator + 1);
+		if (!qualified && !request.startsWith(GET)) {
+			return Optional.empty();
+		}
+
+		final String key = request.substring(qualified ? separator + 1 + GET.length() : GET.length()).trim();
+		final String lookup = qualified ? request.substring(0, separator) + QUALIFIER + key : key;
+		final Entry entry = this.entries.get(lookup);
+		final String answer = entry == null ? null : entry.getIfFresh(key, System.currentTimeMillis(), this.getTtl(key));
+
+		if (answer == null) {
+			this.misses.increment();
+			return Optional.empty();
+		}
+
+		this.hits.increment();
+		return Optional.of(answer);
+	}
+
+	/**
+	 * Setta il TTL di default.
+	 * @param ttl : tempo in millisecondi per cui un valore è considerato valido
+	 */
+	public void setDefaultTtl(final long ttl) {
+		this.defaultTtl = ttl;
+	}
+
+	/**
+	 * Setta il TTL di una chiave specifica.
+	 * @param key : chiave semplice
+	 * @param ttl : tempo in millisecondi per cui un valore è considerato valido
+	 */
+	public void setTtl(final String key, final long ttl) {
+		this.ttls.put(key, ttl);
+	}
+
+	/**
+	 *
+	 * @param key : chiave semplice
+	 * @return TTL in millisecondi della chiave
+	 */
+	public long getTtl(final String key) {
+		return this.ttls.getOrDefault(key, this.defaultTtl);
+	}
+
+	/**
+	 *
+	 * @return numero di chiavi memorizzate
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 *
+	 * @return numero di richieste soddisfatte dalla cache
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 *
+	 * @return numero di richieste inoltrate ai dispositivi
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 *
+	 * Ultimo valore ricevuto per una chiave. L'oggetto viene aggiornato sul posto.
+	 *
+	 */
+	private static final class Entry {
+
+		private String deviceId;
+		private String value;
+		private long time;
+
+		synchronized void set(final String deviceId, final String value, final long time) {
+			this.deviceId = deviceId;
+			this.value = value;
+			this.time = time;
+		}
+
+		synchronized String getIfFresh(final String key, final long now, final long ttl) {
+			return now - this.time <= ttl ? this.deviceId + SerialMessage.SEPARATOR + key + '=' + this.value : null;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package utilities;
+
+/**
+ * @author Gabriele Giunchi
+ *
+ * Metodi statici per analizzare righe di telemetria nel formato {@code chiave=valore},
+ * con più coppie separate da spazi, virgole o punti e virgola (ad esempio "t=21.5 h=40").
+ * L'analisi lavora sugli indici della riga e non crea oggetti intermedi.
+ *
+ */
+public final class KeyValues {
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final int MAX_DECIMAL_DIGITS = 18;
+
+	/**
+	 * Valore restituito da {@link #parseMantissa(CharSequence, int, int)} se la porzione non è un numero decimale.
+	 */
+	public static final long NOT_DECIMAL = Long.MIN_VALUE;
+
+	private KeyValues() { }
+
+	/**
+	 * Oggetto che riceve le coppie chiave/valore trovate in una riga.
+	 */
+	@FunctionalInterface
+	public interface Visitor {
+
+		/**
+		 * Invocato per ogni coppia trovata.
+		 * @param line : riga analizzata
+		 * @param keyStart : indice del primo carattere della chiave
+		 * @param keyEnd : indice successivo all'ultimo carattere della chiave
+		 * @param valueStart : indice del primo carattere del valore
+		 * @param valueEnd : indice successivo all'ultimo carattere del valore
+		 */
+		void visit(String line, int keyStart, int keyEnd, int valueStart, int valueEnd);
+	}
+
+	/**
+	 * Analizza una riga e invoca il visitor per ogni coppia {@code chiave=valore}.
+	 * I token che non contengono '=' vengono ignorati.
+	 * @param line : riga da analizzare
+	 * @param visitor : oggetto {@link Visitor} che riceve le coppie
+	 * @return numero di coppie trovate
+	 */
+	public static int parse(final String line, final Visitor visitor) {
+		int count = 0;
+		int i = 0;
+		final int length = line.length();
+
+		while (i < length) {
+			while (i < length && isSeparator(line.charAt(i))) {
+				i++;
+			}
+
+			final int start = i;
+			int equals = -1;
+			while (i < length && !isSeparator(line.charAt(i))) {
+				if (equals < 0 && line.charAt(i) == '=') {
+					equals = i;
+				}
+				i++;
+			}
+
+			if (equals > start && equals < i - 1) {
+				visitor.visit(line, start, equals, equals + 1, i);
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Converte in double una porzione di stringa senza allocare oggetti nei casi comuni.
+	 * @param s : stringa da convertire
+	 * @param start : indice del primo carattere
+	 * @param end : indice successivo all'ultimo carattere
+	 * @return valore numerico, {@link Double#NaN} se la porzione non è un numero
+	 */
+	public static double parseDouble(final CharSequence s, final int start, final int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+			negative = s.charAt(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		for (; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (decimals >= 0) {
+					decimals++;
+				}
+				if (mantissa >= MAX_EXACT_MANTISSA) {
+					return slowParse(s, start, end);
+				}
+			} else if (c == '.' && decimals < 0) {
+				decimals = 0;
+			} else if (c == 'e' || c == 'E') {
+				return slowParse(s, start, end);
+			} else {
+				return Double.NaN;
+			}
+		}
+
+		if (digits == 0) {
+			return Double.NaN;
+		}
+
+		if (decimals >= POWERS_OF_TEN.length) {
+			return slowParse(s, start, end);
+		}
+
+		final double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Converte un numero decimale senza esponente (ad esempio "-21.53") nell'intero formato da tutte le sue cifre
+	 * ("-2153"), per eseguire calcoli esatti sui valori con la parte decimale. Il numero di cifre decimali
+	 * è dato da {@link #decimals(CharSequence, int, int)}.
+	 * @param s : stringa da convertire
+	 * @param start : indice del primo carattere
+	 * @param end : indice successivo all'ultimo carattere
+	 * @return cifre del numero, {@link #NOT_DECIMAL} se la porzione non è un numero decimale o ha più di 18 cifre
+	 */
+	public static long parseMantissa(final CharSequence s, final int start, final int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+			negative = s.charAt(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c >= '0' && c <= '9' && digits < MAX_DECIMAL_DIGITS) {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				return NOT_DECIMAL;
+			}
+		}
+
+		if (digits == 0) {
+			return NOT_DECIMAL;
+		}
+		return negative ? -mantissa : mantissa;
+	}
+
+	/**
+	 *
+	 * @param s : stringa che contiene un numero decimale
+	 * @param start : indice del primo carattere
+	 * @param end : indice successivo all'ultimo carattere
+	 * @return numero di cifre dopo il punto decimale
+	 */
+	public static int decimals(final CharSequence s, final int start, final int end) {
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) == '.') {
+				return end - i - 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Scrive un numero decimale dato dalle sue cifre e dal numero di cifre decimali (ad esempio "-0.05" da -5 e 2).
+	 * @param builder : oggetto {@link StringBuilder} su cui scrivere
+	 * @param mantissa : cifre del numero
+	 * @param decimals : numero di cifre decimali
+	 * @return il builder dato
+	 */
+	public static StringBuilder appendDecimal(final StringBuilder builder, final long mantissa, final int decimals) {
+		if (decimals == 0) {
+			return builder.append(mantissa);
+		}
+
+		if (mantissa < 0) {
+			builder.append('-');
+		}
+		final String digits = Long.toString(Math.abs(mantissa));
+		final int integers = digits.length() - decimals;
+		if (integers <= 0) {
+			builder.append("0.");
+			for (int i = integers; i < 0; i++) {
+				builder.append('0');
+			}
+			return builder.append(digits);
+		}
+		return builder.append(digits, 0, integers).append('.').append(digits, integers, digits.length());
+	}
+
+	/**
+	 * Scrive un numero nel formato più compatto, senza la parte decimale se il valore è intero.
+	 * @param builder : oggetto {@link StringBuilder} su cui scrivere
+	 * @param value : valore da scrivere
+	 * @return il builder dato
+	 */
+	public static StringBuilder appendNumber(final StringBuilder builder, final double value) {
+		if (value == Math.rint(value) && Math.abs(value) < MAX_EXACT_MANTISSA) {
+			return builder.append((long) value);
+		}
+
+		return builder.append(value);
+	}
+
+	/**
+	 *
+	 * @param c : carattere
+	 * @return true se il carattere separa due coppie chiave/valore
+	 */
+	public static boolean isSeparator(final char c) {
+		return c == ' ' || c == ',' || c == ';' || c == '\t';
+	}
+
+	private static double slowParse(final CharSequence s, final int start, final int end) {
+		try {
+			return Double.parseDouble(s.subSequence(start, end).toString());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package utilities;
+
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Log asincrono per i messaggi frequenti (traffico sulla seriale e sulla socket).
+ *
+ * I messaggi vengono inseriti in un buffer circolare lock-free di dimensione fissa insieme ai loro argomenti
+ * e vengono formattati e stampati da un thread in background, per cui il thread che scrive il log
+ * non esegue operazioni di I/O. Se il buffer è pieno il messaggio viene scartato e conteggiato.
+ *
+ * Ogni messaggio appartiene ad un {@link Type} con un livello minimo e un limite di frequenza opzionale:
+ * i messaggi di livello inferiore o oltre il limite vengono scartati prima di qualsiasi formattazione.
+ * Il testo usa il segnaposto "{}" per gli argomenti, ad esempio {@code Log.info(type, "From {}: {}", id, line)}.
+ *
+ */
+public final class Log {
+
+	/**
+	 * Livelli dei messaggi, in ordine crescente di gravità.
+	 */
+	public enum Level {
+		debug, info, warn, error, off
+	}
+
+	private static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+	private static final String PLACEHOLDER = "{}";
+	private static final Map<String, Type> TYPES = new ConcurrentHashMap<>();
+	private static final Entry[] RING = new Entry[CAPACITY];
+	private static final AtomicLong TAIL = new AtomicLong();
+	private static final LongAdder OVERFLOW = new LongAdder();
+	private static final Thread WRITER;
+	private static volatile Level level = Level.info;
+	private static volatile boolean sleeping;
+	private static long head;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			RING[i] = new Entry(i);
+		}
+		WRITER = new Thread(Log::write, "Log");
+		WRITER.setDaemon(true);
+		WRITER.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+	}
+
+	private Log() { }
+
+	/**
+	 * Restituisce il tipo di messaggio con il nome dato, creandolo se non esiste.
+	 * @param name : nome del tipo (ad esempio "serial.in")
+	 * @return oggetto {@link Type}
+	 */
+	public static Type type(final String name) {
+		return TYPES.computeIfAbsent(name, Type::new);
+	}
+
+	/**
+	 *
+	 * @return tipi di messaggio registrati
+	 */
+	public static Collection<Type> getTypes() {
+		return Collections.unmodifiableCollection(TYPES.values());
+	}
+
+	/**
+	 * Setta il livello minimo dei messaggi stampati, per i tipi che non hanno un livello proprio.
+	 * @param newLevel : livello minimo
+	 */
+	public static void setLevel(final Level newLevel) {
+		level = newLevel;
+	}
+
+	/**
+	 *
+	 * @return livello minimo dei messaggi stampati
+	 */
+	public static Level getLevel() {
+		return level;
+	}
+
+	/**
+	 *
+	 * @return numero di messaggi scartati perchè il buffer era pieno
+	 */
+	public static long getOverflow() {
+		return OVERFLOW.sum();
+	}
+
+	/**
+	 * Scrive un messaggio di livello debug.
+	 * @param type : tipo del messaggio
+	 * @param format : testo con il segnaposto "{}"
+	 * @param arg : argomento, convertito in stringa solo se il messaggio viene stampato
+	 */
+	public static void debug(final Type type, final String format, final Object arg) {
+		log(Level.debug, type, format, arg, null);
+	}
+
+	/**
+	 * Scrive un messaggio di livello debug.
+	 * @param type : tipo del messaggio
+	 * @param format : testo con i segnaposto "{}"
+	 * @param first : primo argomento, convertito in stringa solo se il messaggio viene stampato
+	 * @param second : secondo argomento, convertito in stringa solo se il messaggio viene stampato
+	 */
+	public static void debug(final Type type, final String format, final Object first, final Object second) {
+		log(Level.debug, type, format, first, second);
+	}
+
+	/**
+	 * Scrive un messaggio di livello info.
+	 * @param type : tipo del messaggio
+	 * @param format : testo con il segnaposto "{}"
+	 * @param arg : argomento, convertito in stringa solo se il messaggio viene stampato
+	 */
+	public static void info(final Type type, final String format, final Object arg) {
+		log(Level.info, type, format, arg, null);
+	}
+
+	/**
+	 * Scrive un messaggio di livello info.
+	 * @param type : tipo del messaggio
+	 * @param format : testo con i segnaposto "{}"
+	 * @param first : primo argomento, convertito in stringa solo se il messaggio viene stampato
+	 * @param second : secondo argomento, convertito in stringa solo se il messaggio viene stampato
+	 */
+	public static void info(final Type type, final String format, final Object first, final Object second) {
+		log(Level.info, type, format, first, second);
+	}
+
+	/**
+	 * Scrive un messaggio di livello warn.
+	 * @param type : tipo del messaggio
+	 * @param format : testo con il segnaposto "{}"
+	 * @param arg : argomento, convertito in stringa solo se il messaggio viene stampato
+	 */
+	public static void warn(final Type type, final String format, final Object arg) {
+		log(Level.warn, type, format, arg, null);
+	}
+
+	/**
+	 * Scrive un messaggio di livello warn.
+	 * @param type : tipo del messaggio
+	 * @param format : testo con i segnaposto "{}"
+	 * @param first : primo argomento, convertito in stringa solo se il messaggio viene stampato
+	 * @param second : secondo argomento, convertito in stringa solo se il messaggio viene stampato
+	 */
+	public static void warn(final Type type, final String format, final Object first, final Object second) {
+		log(Level.warn, type, format, first, second);
+	}
+
+	/**
+	 * Scrive un messaggio di livello error.
+	 * @param type : tipo del messaggio
+	 * @param format : testo con il segnaposto "{}"
+	 * @param arg : argomento, convertito in stringa solo se il messaggio viene stampato
+	 */
+	public static void error(final Type type, final String format, final Object arg) {
+		log(Level.error, type, format, arg, null);
+	}
+
+	/**
+	 * Scrive un messaggio di livello error.
+	 * @param type : tipo del messaggio
+	 * @param format : testo con i segnaposto "{}"
+	 * @param first : primo argomento, convertito in stringa solo se il messaggio viene stampato
+	 * @param second : secondo argomento, convertito in stringa solo se il messaggio viene stampato
+	 */
+	public static void error(final Type type, final String format, final Object first, final Object second) {
+		log(Level.error, type, format, first, second);
+	}
+
+	/*
+	 * Inserimento nel buffer circolare con numeri di sequenza per slot: lo slot è libero per la posizione p
+	 * quando la sua sequenza vale p, e viene pubblicato al consumatore portandola a p + 1.
+	 */
+	private static void log(final Level messageLevel, final Type type, final String format, final Object first,
+			final Object second) {
+
+		if (!type.isEnabled(messageLevel) || !type.tryAcquire()) {
+			return;
+		}
+
+		while (true) {
+			final long position = TAIL.get();
+			final Entry entry = RING[(int) (position & MASK)];
+			final long difference = entry.sequence - position;
+			if (difference < 0) {
+				OVERFLOW.increment();
+				type.dropped.increment();
+				return;
+			}
+
+			if (difference == 0 && TAIL.compareAndSet(position, position + 1)) {
+				entry.level = messageLevel;
+				entry.format = format;
+				entry.first = first;
+				entry.second = second;
+				entry.sequence = position + 1;
+				type.logged.increment();
+				if (sleeping) {
+					LockSupport.unpark(WRITER);
+				}
+				return;
+			}
+		}
+	}
+
+	private static void write() {
+		while (true) {
+			if (!drain()) {
+				sleeping = true;
+				if (RING[(int) (head & MASK)].sequence != head + 1) {
+					LockSupport.park();
+				}
+				sleeping = false;
+			}
+		}
+	}
+
+	private static synchronized boolean drain() {
+		final StringBuilder builder = new StringBuilder();
+		boolean written = false;
+		boolean out = false;
+		boolean err = false;
+		Entry entry = RING[(int) (head & MASK)];
+		while (entry.sequence == head + 1) {
+			builder.setLength(0);
+			format(builder, entry);
+			final PrintStream stream = entry.level.compareTo(Level.warn) >= 0 ? System.err : System.out;
+			stream.println(builder);
+			out |= stream == System.out;
+			err |= stream == System.err;
+
+			entry.format = null;
+			entry.first = null;
+			entry.second = null;
+			entry.sequence = head + CAPACITY;
+			head++;
+			written = true;
+			entry = RING[(int) (head & MASK)];
+		}
+
+		if (out) {
+			System.out.flush();
+		}
+		if (err) {
+			System.err.flush();
+		}
+		return written;
+	}
+
+	private static void format(final StringBuilder builder, final Entry entry) {
+		final String format = entry.format;
+		int argument = 0;
+		int from = 0;
+		int index = format.indexOf(PLACEHOLDER);
+		while (index >= 0) {
+			builder.append(format, from, index);
+			builder.append(argument == 0 ? entry.first : argument == 1 ? entry.second : PLACEHOLDER);
+			argument++;
+			from = index + PLACEHOLDER.length();
+			index = format.indexOf(PLACEHOLDER, from);
+		}
+		builder.append(format, from, format.length());
+	}
+
+	/**
+	 *
+	 * Tipo di messaggio con livello minimo e limite di frequenza propri.
+	 *
+	 */
+	public static final class Type {
+
+		private final String name;
+		private final LongAdder logged;
+		private final LongAdder dropped;
+		private volatile Level level;
+		private volatile RateLimiter limiter;
+
+		private Type(final String name) {
+			this.name = name;
+			this.logged = new LongAdder();
+			this.dropped = new LongAdder();
+		}
+
+		/**
+		 *
+		 * @param messageLevel : livello di un messaggio
+		 * @return true se un messaggio di questo tipo con il livello dato viene stampato
+		 */
+		public boolean isEnabled(final Level messageLevel) {
+			final Level threshold = this.level != null ? this.level : Log.level;
+			return messageLevel.compareTo(threshold) >= 0 && threshold != Level.off;
+		}
+
+		/**
+		 * Setta il livello minimo dei messaggi di questo tipo.
+		 * @param newLevel : livello minimo, null per usare il livello globale
+		 */
+		public void setLevel(final Level newLevel) {
+			this.level = newLevel;
+		}
+
+		/**
+		 * Limita il numero di messaggi al secondo di questo tipo, i messaggi oltre il limite vengono scartati.
+		 * @param newLimiter : oggetto {@link RateLimiter}, null per rimuovere il limite
+		 */
+		public void setRateLimit(final RateLimiter newLimiter) {
+			this.limiter = newLimiter;
+		}
+
+		/**
+		 *
+		 * @return nome del tipo
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 *
+		 * @return numero di messaggi inseriti nel buffer
+		 */
+		public long getLogged() {
+			return this.logged.sum();
+		}
+
+		/**
+		 *
+		 * @return numero di messaggi scartati per il limite di frequenza o per il buffer pieno
+		 */
+		public long getDropped() {
+			return this.dropped.sum();
+		}
+
+		@Override
+		public String toString() {
+			return this.name + " (" + (this.level != null ? this.level : Log.level) + ")"
+					+ (this.limiter != null ? " " + this.limiter.getRate() + "/s" : "")
+					+ ": " + this.getLogged() + " logged, " + this.getDropped() + " dropped";
+		}
+
+		private boolean tryAcquire() {
+			final RateLimiter current = this.limiter;
+			if (current != null && current.acquire() != 0) {
+				this.dropped.increment();
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 *
+	 * Slot del buffer circolare, riutilizzato per tutta la durata dell'applicazione.
+	 *
+	 */
+	private static final class Entry {
+
+		private volatile long sequence;
+		private Level level;
+		private String format;
+		private Object first;
+		private Object second;
+
+		Entry(final long sequence) {
+			this.sequence = sequence;
+		}
+	}
+}
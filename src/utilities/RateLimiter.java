@@ -0,0 +1,154 @@
+package utilities;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Limitatore di frequenza a token bucket, implementato con l'algoritmo GCRA (generic cell rate algorithm).
+ *
+ * Lo stato del secchio è un solo istante teorico di arrivo aggiornato con compare-and-set,
+ * per cui il limitatore non usa lock e può essere interrogato da più thread senza contesa.
+ * Sono ammessi fino a {@code burst} messaggi consecutivi, poi un messaggio ogni {@code 1 / rate} secondi.
+ *
+ * Oltre il limite i messaggi vengono scartati oppure, in modalità ritardo, ammessi con un ritardo
+ * che ne rispetta l'ordine (fino a MAX_DELAY, oltre il quale vengono comunque scartati).
+ *
+ */
+public final class RateLimiter {
+
+	/**
+	 * Ritardo massimo in modalità ritardo, oltre il quale i messaggi vengono scartati.
+	 */
+	public static final long MAX_DELAY = TimeUnit.SECONDS.toNanos(10);
+
+	private final AtomicLong theoreticalArrival;
+	private final long interval;
+	private final long burstWindow;
+	private final long maxDelay;
+	private final double rate;
+	private final int burst;
+	private final LongAdder accepted;
+	private final LongAdder delayed;
+	private final LongAdder rejected;
+
+	/**
+	 *
+	 * @param rate : numero di messaggi al secondo
+	 * @param burst : numero di messaggi consecutivi ammessi
+	 * @param delay : true per ritardare i messaggi oltre il limite invece di scartarli
+	 */
+	public RateLimiter(final double rate, final int burst, final boolean delay) {
+		if (rate <= 0 || burst <= 0) {
+			throw new IllegalArgumentException("Rate and burst must be positive");
+		}
+
+		this.rate = rate;
+		this.burst = burst;
+		this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		this.burstWindow = this.interval * burst;
+		this.maxDelay = delay ? MAX_DELAY : 0;
+		this.theoreticalArrival = new AtomicLong(System.nanoTime() - this.burstWindow);
+		this.accepted = new LongAdder();
+		this.delayed = new LongAdder();
+		this.rejected = new LongAdder();
+	}
+
+	/**
+	 * Prova ad ammettere un messaggio.
+	 * @return -1 se il messaggio deve essere scartato, altrimenti il ritardo in nanosecondi
+	 * con cui il messaggio deve essere elaborato (0 se può essere elaborato subito)
+	 */
+	public long acquire() {
+		while (true) {
+			final long now = System.nanoTime();
+			final long current = this.theoreticalArrival.get();
+			final long next = Math.max(current, now - this.burstWindow) + this.interval;
+			final long wait = next - now;
+			if (wait > this.maxDelay) {
+				this.rejected.increment();
+				return -1;
+			}
+
+			if (this.theoreticalArrival.compareAndSet(current, next)) {
+				if (wait > 0) {
+					this.delayed.increment();
+					return wait;
+				}
+				this.accepted.increment();
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Restituisce il token ottenuto con {@link #acquire()} per un messaggio che non viene elaborato,
+	 * ad esempio perchè scartato da un altro limitatore.
+	 * @param wait : ritardo restituito da {@link #acquire()}, non negativo
+	 */
+	public void release(final long wait) {
+		this.theoreticalArrival.addAndGet(-this.interval);
+		if (wait > 0) {
+			this.delayed.decrement();
+		} else {
+			this.accepted.decrement();
+		}
+	}
+
+	/**
+	 *
+	 * @return true se i messaggi oltre il limite vengono ritardati invece che scartati
+	 */
+	public boolean isDelaying() {
+		return this.maxDelay > 0;
+	}
+
+	/**
+	 *
+	 * @return numero di messaggi al secondo
+	 */
+	public double getRate() {
+		return this.rate;
+	}
+
+	/**
+	 *
+	 * @return numero di messaggi consecutivi ammessi
+	 */
+	public int getBurst() {
+		return this.burst;
+	}
+
+	/**
+	 *
+	 * @return numero di messaggi ammessi senza ritardo
+	 */
+	public long getAccepted() {
+		return this.accepted.sum();
+	}
+
+	/**
+	 *
+	 * @return numero di messaggi ammessi con ritardo
+	 */
+	public long getDelayed() {
+		return this.delayed.sum();
+	}
+
+	/**
+	 *
+	 * @return numero di messaggi scartati
+	 */
+	public long getRejected() {
+		return this.rejected.sum();
+	}
+
+	@Override
+	public String toString() {
+		return this.rate + "/s burst " + this.burst + (this.isDelaying() ? " delay" : " drop") + ": " 
+				+ this.getAccepted() + " accepted, " + this.getDelayed() + " delayed, " + this.getRejected() + " rejected";
+	}
+}
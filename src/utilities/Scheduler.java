@@ -0,0 +1,318 @@
+package utilities;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Servizio condiviso per l'esecuzione di operazioni temporizzate (timeout, tentativi, scadenze, heartbeat).
+ * Adotta il pattern singleton
+ *
+ * È implementato come hashed timer wheel: una ruota di WHEEL_SIZE liste, ognuna associata ad un tick di TICK
+ * millisecondi, in cui ogni task viene inserito nella lista del tick in cui scade. Inserimento e annullamento
+ * costano O(1) e le richieste degli altri thread vengono passate al thread della ruota tramite code non bloccanti.
+ *
+ * Un solo thread daemon fa avanzare la ruota ed esegue i task, per cui devono essere brevi e non bloccanti;
+ * le operazioni bloccanti (ad esempio l'apertura di una connessione) devono essere pianificate con
+ * {@link #scheduleBlocking(Runnable, long)}, che le esegue su un pool di thread condiviso.
+ * Quando nessun task è in scadenza il thread resta fermo fino al primo tick utile, senza risvegli periodici.
+ *
+ */
+public final class Scheduler {
+
+	/**
+	 * Risoluzione della ruota in millisecondi.
+	 */
+	public static final long TICK = 10;
+
+	private static final int WHEEL_SIZE = 512;
+	private static final int MASK = WHEEL_SIZE - 1;
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK);
+	private static final Scheduler SINGLETON = new Scheduler();
+
+	private final Task[] wheel;
+	private final Task[] tails;
+	private final Queue<Task> scheduled;
+	private final Queue<Task> cancelled;
+	private final ExecutorService workers;
+	private final Thread ticker;
+	private final long start;
+	private volatile long wakeUpTick;
+	private long currentTick;
+	private int size;
+
+	private Scheduler() {
+		this.wheel = new Task[WHEEL_SIZE];
+		this.tails = new Task[WHEEL_SIZE];
+		this.scheduled = new ConcurrentLinkedQueue<>();
+		this.cancelled = new ConcurrentLinkedQueue<>();
+		this.start = System.nanoTime();
+		this.workers = Executors.newCachedThreadPool(r -> {
+			final Thread t = new Thread(r, "Scheduler-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		this.ticker = new Thread(this::run, "Scheduler");
+		this.ticker.setDaemon(true);
+		this.ticker.start();
+	}
+
+	/**
+	 *
+	 * @return unica istanza di {@link Scheduler}
+	 */
+	public static Scheduler getScheduler() {
+		return SINGLETON;
+	}
+
+	/**
+	 * Pianifica l'esecuzione di un task dopo il ritardo dato.
+	 * @param task : operazione da eseguire
+	 * @param delay : ritardo in millisecondi
+	 * @return oggetto {@link Timeout} con cui è possibile annullare il task
+	 */
+	public Timeout schedule(final Runnable task, final long delay) {
+		return this.add(new Task(task, this.deadline(delay), 0));
+	}
+
+	/**
+	 * Pianifica l'esecuzione periodica di un task, a partire da un periodo dopo l'invocazione.
+	 * @param task : operazione da eseguire
+	 * @param period : periodo in millisecondi
+	 * @return oggetto {@link Timeout} con cui è possibile interrompere l'esecuzione periodica
+	 */
+	public Timeout scheduleAtFixedRate(final Runnable task, final long period) {
+		return this.add(new Task(task, this.deadline(period), Math.max(1, ticks(period))));
+	}
+
+	/**
+	 * Pianifica l'esecuzione di un'operazione bloccante dopo il ritardo dato.
+	 * Allo scadere del ritardo l'operazione viene eseguita sul pool di thread condiviso.
+	 * @param task : operazione da eseguire
+	 * @param delay : ritardo in millisecondi
+	 * @return oggetto {@link Timeout} con cui è possibile annullare il task se non è ancora stato avviato
+	 */
+	public Timeout scheduleBlocking(final Runnable task, final long delay) {
+		return this.schedule(() -> this.workers.execute(task), delay);
+	}
+
+	/**
+	 * Esegue subito un'operazione bloccante sul pool di thread condiviso.
+	 * @param task : operazione da eseguire
+	 */
+	public void execute(final Runnable task) {
+		this.workers.execute(task);
+	}
+
+	/**
+	 *
+	 * Riferimento ad un task pianificato.
+	 *
+	 */
+	public interface Timeout {
+
+		/**
+		 * Annulla il task se non è ancora stato eseguito.
+		 */
+		void cancel();
+	}
+
+	private Timeout add(final Task task) {
+		this.scheduled.add(task);
+		if (task.deadline < this.wakeUpTick) {
+			LockSupport.unpark(this.ticker);
+		}
+		return task;
+	}
+
+	private long deadline(final long delay) {
+		return this.tickOf(System.nanoTime()) + Math.max(1, ticks(delay));
+	}
+
+	private long tickOf(final long nanos) {
+		return (nanos - this.start) / TICK_NANOS;
+	}
+
+	private static long ticks(final long millis) {
+		return (millis + TICK - 1) / TICK;
+	}
+
+	/*
+	 * Ciclo del thread della ruota: inserisce i nuovi task, rimuove quelli annullati, esegue quelli scaduti
+	 * nei tick trascorsi e si ferma fino al prossimo tick con almeno un task (o fino ad una nuova richiesta).
+	 */
+	private void run() {
+		while (true) {
+			final long now = this.tickOf(System.nanoTime());
+			this.transferScheduled();
+			this.processCancelled();
+
+			final long ticks = Math.min(now - this.currentTick, WHEEL_SIZE);
+			for (long t = 1; t <= ticks; t++) {
+				this.expire((int) ((this.currentTick + t) & MASK), now);
+			}
+			this.currentTick = now;
+
+			final long next = this.nextOccupiedTick();
+			this.wakeUpTick = next;
+			if (this.scheduled.isEmpty() && this.cancelled.isEmpty()) {
+				if (next == Long.MAX_VALUE) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, this.start + next * TICK_NANOS - System.nanoTime());
+				}
+			}
+		}
+	}
+
+	private void transferScheduled() {
+		Task task = this.scheduled.poll();
+		while (task != null) {
+			if (task.state.get() == Task.PENDING) {
+				this.insert(task);
+			}
+			task = this.scheduled.poll();
+		}
+	}
+
+	private void processCancelled() {
+		Task task = this.cancelled.poll();
+		while (task != null) {
+			if (task.inWheel) {
+				this.unlink(task);
+			}
+			task = this.cancelled.poll();
+		}
+	}
+
+	private void expire(final int bucket, final long now) {
+		Task task = this.wheel[bucket];
+		while (task != null) {
+			final Task next = task.next;
+			if (task.deadline <= now) {
+				this.unlink(task);
+				task.execute();
+				if (task.period > 0 && task.state.get() == Task.PENDING) {
+					task.deadline += task.period;
+					if (task.deadline <= now) {
+						task.deadline = now + 1;
+					}
+					this.insert(task);
+				}
+			}
+			task = next;
+		}
+	}
+
+	/*
+	 * Il primo tick utile è cercato al massimo per un giro di ruota: i task più lontani vengono
+	 * ricontrollati quando la ruota passa sulla loro lista.
+	 */
+	private long nextOccupiedTick() {
+		if (this.size == 0) {
+			return Long.MAX_VALUE;
+		}
+
+		for (long t = 1; t <= WHEEL_SIZE; t++) {
+			if (this.wheel[(int) ((this.currentTick + t) & MASK)] != null) {
+				return this.currentTick + t;
+			}
+		}
+		return this.currentTick + WHEEL_SIZE;
+	}
+
+	/*
+	 * I task vengono aggiunti in coda alla lista, per cui quelli che scadono nello stesso tick
+	 * vengono eseguiti nell'ordine in cui sono stati pianificati.
+	 */
+	private void insert(final Task task) {
+		final int bucket = (int) (Math.max(task.deadline, this.currentTick + 1) & MASK);
+		task.bucket = bucket;
+		task.next = null;
+		task.prev = this.tails[bucket];
+		if (task.prev != null) {
+			task.prev.next = task;
+		} else {
+			this.wheel[bucket] = task;
+		}
+		this.tails[bucket] = task;
+		task.inWheel = true;
+		this.size++;
+	}
+
+	private void unlink(final Task task) {
+		if (task.prev != null) {
+			task.prev.next = task.next;
+		} else {
+			this.wheel[task.bucket] = task.next;
+		}
+		if (task.next != null) {
+			task.next.prev = task.prev;
+		} else {
+			this.tails[task.bucket] = task.prev;
+		}
+		task.next = null;
+		task.prev = null;
+		task.inWheel = false;
+		this.size--;
+	}
+
+	/**
+	 *
+	 * Task pianificato, elemento di una lista della ruota.
+	 * I campi di collegamento sono usati solo dal thread della ruota.
+	 *
+	 */
+	private final class Task implements Timeout {
+
+		static final int PENDING = 0;
+		static final int EXPIRED = 1;
+		static final int CANCELLED = 2;
+
+		private final Runnable runnable;
+		private final long period;
+		private final AtomicInteger state;
+		private long deadline;
+		private Task next;
+		private Task prev;
+		private int bucket;
+		private boolean inWheel;
+
+		Task(final Runnable runnable, final long deadline, final long period) {
+			this.runnable = runnable;
+			this.deadline = deadline;
+			this.period = period;
+			this.state = new AtomicInteger(PENDING);
+		}
+
+		@Override
+		public void cancel() {
+			if (this.state.compareAndSet(PENDING, CANCELLED)) {
+				cancelled.add(this);
+				LockSupport.unpark(ticker);
+			}
+		}
+
+		void execute() {
+			final boolean active = this.period > 0 
+					? this.state.get() == PENDING 
+					: this.state.compareAndSet(PENDING, EXPIRED);
+			if (!active) {
+				return;
+			}
+
+			try {
+				this.runnable.run();
+			} catch (RuntimeException e) {
+				System.err.println("Scheduler : " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package utilities;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * @author Gabriele Giunchi
+ *
+ * Tracciamento opzionale della latenza dei messaggi ricevuti dalla seriale, dalla lettura alla scrittura sulla socket.
+ *
+ * Un messaggio ogni N (scelto a caso) riceve un oggetto {@link Trace} che viaggia con il suo evento e viene marcato
+ * con {@link System#nanoTime()} ad ogni fase ({@link Stage}). Quando il messaggio è stato scritto sulla socket
+ * gli intervalli tra le fasi consecutive vengono aggiunti agli istogrammi, per cui la fase più lenta è quella con
+ * la latenza più alta. I messaggi che non raggiungono la socket (filtrati, ritardati, accodati su disco
+ * o senza connessione) non vengono conteggiati.
+ *
+ * Con il tracciamento disabilitato il costo per messaggio è la lettura di un campo volatile.
+ *
+ */
+public final class Tracer {
+
+	/**
+	 * Fasi del percorso di un messaggio, in ordine.
+	 */
+	public enum Stage {
+		/** riga letta dal thread di lettura della seriale */
+		read,
+		/** evento inserito nella coda del dispatcher */
+		enqueue,
+		/** evento estratto dalla coda del dispatcher */
+		dequeue,
+		/** inizio della gestione del messaggio nell'event handler, dopo l'eventuale ritardo dei limitatori di frequenza */
+		handle,
+		/** scrittura sulla socket completata */
+		write
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+	private static final Histogram[] HISTOGRAMS = new Histogram[STAGES.length];
+	private static final Histogram TOTAL = new Histogram(Stage.read + " -> " + Stage.write);
+	private static volatile int sampling;
+
+	static {
+		for (int i = 1; i < STAGES.length; i++) {
+			HISTOGRAMS[i] = new Histogram(STAGES[i - 1] + " -> " + STAGES[i]);
+		}
+	}
+
+	private Tracer() { }
+
+	/**
+	 * Abilita il tracciamento di un messaggio ogni n e azzera gli istogrammi.
+	 * @param n : frequenza di campionamento, 0 per disabilitare il tracciamento
+	 */
+	public static void setSampling(final int n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("Sampling must be positive");
+		}
+		for (int i = 1; i < HISTOGRAMS.length; i++) {
+			HISTOGRAMS[i].reset();
+		}
+		TOTAL.reset();
+		sampling = n;
+	}
+
+	/**
+	 *
+	 * @return frequenza di campionamento, 0 se il tracciamento è disabilitato
+	 */
+	public static int getSampling() {
+		return sampling;
+	}
+
+	/**
+	 * Decide se tracciare un nuovo messaggio e, in caso affermativo, lo marca con la fase {@link Stage#read}.
+	 * @return oggetto {@link Trace}, null se il messaggio non viene tracciato
+	 */
+	public static Trace sample() {
+		final int n = sampling;
+		if (n == 0 || n > 1 && ThreadLocalRandom.current().nextInt(n) != 0) {
+			return null;
+		}
+
+		final Trace trace = new Trace();
+		trace.stamp(Stage.read);
+		return trace;
+	}
+
+	/**
+	 * Stampa gli istogrammi delle fasi indicando quella con la latenza mediana più alta.
+	 */
+	public static void printStats() {
+		int slowest = 1;
+		for (int i = 1; i < HISTOGRAMS.length; i++) {
+			if (HISTOGRAMS[i].percentile(0.5) > HISTOGRAMS[slowest].percentile(0.5)) {
+				slowest = i;
+			}
+		}
+
+		System.out.println("Tracing " + (sampling == 0 ? "disabled" : "1 message every " + sampling) 
+				+ ", " + TOTAL.getCount() + " messages traced");
+		for (int i = 1; i < HISTOGRAMS.length; i++) {
+			System.out.println(HISTOGRAMS[i] + (i == slowest && TOTAL.getCount() > 0 ? "  <- slowest" : ""));
+		}
+		System.out.println(TOTAL);
+	}
+
+	/**
+	 *
+	 * Istanti di passaggio di un messaggio tracciato per ogni fase.
+	 * Le fasi sono marcate in sequenza da thread diversi, la pubblicazione avviene attraverso la coda degli eventi.
+	 *
+	 */
+	public static final class Trace {
+
+		private final long[] stamps = new long[STAGES.length];
+		private final boolean[] stamped = new boolean[STAGES.length];
+
+		private Trace() { }
+
+		/**
+		 * Marca il passaggio del messaggio per una fase. Alla fase {@link Stage#write} la traccia viene registrata.
+		 * Viene mantenuto il primo passaggio: un messaggio ritardato dai limitatori di frequenza torna nella coda
+		 * del dispatcher, e il ritardo viene attribuito alla fase {@link Stage#handle}.
+		 * @param stage : fase raggiunta
+		 */
+		public void stamp(final Stage stage) {
+			if (this.stamped[stage.ordinal()]) {
+				return;
+			}
+			this.stamped[stage.ordinal()] = true;
+			this.stamps[stage.ordinal()] = System.nanoTime();
+			if (stage == Stage.write) {
+				for (int i = 1; i < this.stamps.length; i++) {
+					HISTOGRAMS[i].record(this.stamps[i] - this.stamps[i - 1]);
+				}
+				TOTAL.record(this.stamps[Stage.write.ordinal()] - this.stamps[Stage.read.ordinal()]);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Istogramma delle latenze con bucket logaritmici: SUB_BUCKETS bucket per ogni potenza di 2 di nanosecondi,
+	 * con un errore massimo del 25% sul valore riportato.
+	 *
+	 */
+	private static final class Histogram {
+
+		private static final int SUB_BITS = 2;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		private final String name;
+		private final AtomicLongArray counts;
+		private final AtomicLongArray totals;
+
+		Histogram(final String name) {
+			this.name = name;
+			this.counts = new AtomicLongArray((Long.SIZE + 1) * SUB_BUCKETS);
+			this.totals = new AtomicLongArray(2);
+		}
+
+		void record(final long nanos) {
+			final long value = Math.max(0, nanos);
+			this.counts.incrementAndGet(bucket(value));
+			this.totals.incrementAndGet(0);
+			this.totals.addAndGet(1, value);
+		}
+
+		void reset() {
+			for (int i = 0; i < this.counts.length(); i++) {
+				this.counts.set(i, 0);
+			}
+			this.totals.set(0, 0);
+			this.totals.set(1, 0);
+		}
+
+		long getCount() {
+			return this.totals.get(0);
+		}
+
+		/*
+		 * Restituisce il limite superiore del bucket che contiene il percentile.
+		 */
+		long percentile(final double p) {
+			final long count = this.getCount();
+			if (count == 0) {
+				return 0;
+			}
+
+			final long rank = Math.max(1, (long) Math.ceil(p * count));
+			long seen = 0;
+			for (int i = 0; i < this.counts.length(); i++) {
+				seen += this.counts.get(i);
+				if (seen >= rank) {
+					return upperBound(i);
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		public String toString() {
+			final long count = this.getCount();
+			return String.format("%-20s count %8d  mean %10.1f us  p50 %10.1f us  p99 %10.1f us  p99.9 %10.1f us",
+					this.name, count, count == 0 ? 0 : this.totals.get(1) / 1e3 / count, 
+					this.percentile(0.5) / 1e3, this.percentile(0.99) / 1e3, this.percentile(0.999) / 1e3);
+		}
+
+		private static int bucket(final long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+			final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		private static long upperBound(final int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			final long sub = bucket % SUB_BUCKETS;
+			return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+		}
+	}
+}
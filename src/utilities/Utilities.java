@@ -1,5 +1,10 @@
 package utilities;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
 import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
 import gnu.io.NoSuchPortException;
@@ -62,4 +67,33 @@ public final class Utilities {
         
         return serialPort;
 	}
+	
+	/**
+	 * Rilascia subito la mappatura di un file in memoria, che altrimenti resta attiva finchè il buffer 
+	 * non viene raccolto dal garbage collector: su Windows un file mappato non può essere cancellato né ridimensionato.
+	 * Dopo l'invocazione il buffer non deve più essere usato.
+	 * Se la JVM non permette di rilasciare la mappatura il metodo non fa nulla.
+	 * @param buffer : oggetto {@link MappedByteBuffer} da rilasciare
+	 */
+	public static void unmap(final MappedByteBuffer buffer) {
+		try {
+			if (System.getProperty("java.specification.version").startsWith("1.")) {
+				// Java 8: sun.nio.ch.DirectBuffer.cleaner().clean()
+				final Method cleaner = buffer.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				final Object clean = cleaner.invoke(buffer);
+				if (clean != null) {
+					clean.getClass().getMethod("clean").invoke(clean);
+				}
+			} else {
+				// Java 9+: sun.misc.Unsafe.invokeCleaner(ByteBuffer)
+				final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			System.err.println("Utilities : unable to unmap the buffer, " + e);
+		}
+	}
 }